@@ -4,6 +4,10 @@
 Nginx下载日志解析脚本
 用于解析Nginx访问日志并将统计数据发送到Spring Boot应用
 
+应用与Nginx在同一主机（或共享日志目录）时，改用应用内的日志跟踪：
+设置 app.statistics.tailer.enabled=true 和 app.statistics.tailer.path，
+新日志在一秒内入库，并能正确处理日志轮转。本脚本只用于应用无法读取日志文件的部署
+
 使用方法:
 python parse_nginx_logs.py /var/log/nginx/download_stats.log
 
@@ -1,24 +1,108 @@
 package com.watermelon.embybalance.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.watermelon.embybalance.service.EmbyConnectionPoolMonitor;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.ReactorClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.client.ResponseErrorHandler;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
 
 @Configuration
 public class AppConfig {
 
+    private static final ResponseErrorHandler NO_ERROR_HANDLER = response -> false;
+
+    /**
+     * Emby上游连接池，按远端地址（即每个路由）限制最大连接数，并在后台驱逐空闲连接
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider embyConnectionProvider(
+            EmbyConnectionPoolMonitor poolMonitor,
+            @Value("${app.emby.client.max-connections:100}") int maxConnections,
+            @Value("${app.emby.client.pending-acquire-timeout-ms:5000}") long pendingAcquireTimeoutMs,
+            @Value("${app.emby.client.max-idle-time-ms:30000}") long maxIdleTimeMs,
+            @Value("${app.emby.client.max-life-time-ms:300000}") long maxLifeTimeMs,
+            @Value("${app.emby.client.evict-interval-ms:15000}") long evictIntervalMs) {
+        return ConnectionProvider.builder("emby-upstream")
+                .maxConnections(maxConnections)
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMs))
+                .maxIdleTime(Duration.ofMillis(maxIdleTimeMs))
+                .maxLifeTime(Duration.ofMillis(maxLifeTimeMs))
+                .evictInBackground(Duration.ofMillis(evictIntervalMs))
+                .lifo()
+                .metrics(true, () -> poolMonitor)
+                .build();
+    }
+
+    /**
+     * 基于Reactor Netty的Emby上游HTTP客户端，开启TCP keep-alive，可选HTTP/2
+     */
+    @Bean
+    public HttpClient embyHttpClient(
+            ConnectionProvider embyConnectionProvider,
+            @Value("${emby.server.url}") String embyServerUrl,
+            @Value("${app.emby.client.connect-timeout-ms:5000}") int connectTimeoutMs,
+            @Value("${app.emby.client.tcp-keep-alive:true}") boolean tcpKeepAlive,
+            @Value("${app.emby.client.tcp-keep-alive-idle-seconds:60}") int keepAliveIdleSeconds,
+            @Value("${app.emby.client.http2:false}") boolean http2) {
+        HttpClient httpClient = HttpClient.create(embyConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .option(ChannelOption.SO_KEEPALIVE, tcpKeepAlive);
+
+        // epoll可用时缩短keep-alive探测间隔，尽早发现被中间设备断开的空闲连接
+        if (tcpKeepAlive && Epoll.isAvailable()) {
+            httpClient = httpClient
+                    .option(EpollChannelOption.TCP_KEEPIDLE, keepAliveIdleSeconds)
+                    .option(EpollChannelOption.TCP_KEEPINTVL, 10)
+                    .option(EpollChannelOption.TCP_KEEPCNT, 3);
+        }
+
+        if (http2) {
+            httpClient = embyServerUrl.startsWith("https")
+                    ? httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure()
+                    : httpClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+        }
+        return httpClient;
+    }
+
+    @Bean
+    public RestTemplate restTemplate(
+            HttpClient embyHttpClient,
+            @Value("${app.emby.client.read-timeout-ms:10000}") long readTimeoutMs) {
+        ReactorClientHttpRequestFactory factory = new ReactorClientHttpRequestFactory(embyHttpClient);
+        factory.setReadTimeout(Duration.ofMillis(readTimeoutMs));
+        RestTemplate restTemplate = new RestTemplate(factory);
+        // 4xx/5xx不抛出异常，交给响应提取器：4xx原样转发给客户端且不计入熔断和实例失败，5xx由调用方计为失败
+        restTemplate.setErrorHandler(NO_ERROR_HANDLER);
+        return restTemplate;
+    }
+
+    /**
+     * 响应式模式下访问Emby的WebClient，与RestTemplate共享同一个连接池
+     */
     @Bean
-    public RestTemplate restTemplate() {
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(5000);
-        factory.setReadTimeout(10000);
-        return new RestTemplate(factory);
+    public WebClient embyWebClient(
+            HttpClient embyHttpClient,
+            @Value("${app.emby.client.read-timeout-ms:10000}") long readTimeoutMs) {
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(embyHttpClient.responseTimeout(Duration.ofMillis(readTimeoutMs))))
+                .build();
     }
 
     @Bean
     public ObjectMapper objectMapper() {
         return new ObjectMapper();
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,9 @@ package com.watermelon.embybalance.config;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Cache;
+import com.watermelon.embybalance.service.MediaSourceInfo;
+import com.watermelon.embybalance.service.UpstreamResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -17,4 +20,48 @@ public class CacheConfig {
                 .expireAfterWrite(Duration.ofMinutes(30))
                 .build();
     }
-}
\ No newline at end of file
+
+    /**
+     * PlaybackInfo上游响应缓存，按响应体字节数限制总大小
+     */
+    @Bean
+    public Cache<String, UpstreamResponse> playbackInfoResponseCache(
+            @Value("${app.emby.playback-cache.max-size-bytes:67108864}") long maxSizeBytes,
+            @Value("${app.emby.playback-cache.ttl-seconds:15}") long ttlSeconds) {
+        return Caffeine.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((String key, UpstreamResponse response) -> response.getBody().length)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 媒体项到原始文件路径的索引，条目很小，按条数限制
+     */
+    @Bean
+    public Cache<String, MediaSourceInfo> mediaPathIndexCache(
+            @Value("${app.emby.media-path-index.max-size:200000}") long maxSize,
+            @Value("${app.emby.media-path-index.ttl-hours:24}") long ttlHours) {
+        return Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofHours(ttlHours))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * PlaybackInfo上游响应的过期副本，Emby上游熔断时兜底使用
+     * 与playbackInfoResponseCache共享响应对象，只多占用条目本身
+     */
+    @Bean
+    public Cache<String, UpstreamResponse> stalePlaybackInfoResponseCache(
+            @Value("${app.emby.playback-cache.max-size-bytes:67108864}") long maxSizeBytes,
+            @Value("${app.emby.playback-cache.stale-ttl-seconds:600}") long staleTtlSeconds) {
+        return Caffeine.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((String key, UpstreamResponse response) -> response.getBody().length)
+                .expireAfterWrite(Duration.ofSeconds(staleTtlSeconds))
+                .build();
+    }
+}
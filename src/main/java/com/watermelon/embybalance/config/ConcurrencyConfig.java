@@ -0,0 +1,72 @@
+package com.watermelon.embybalance.config;
+
+import com.watermelon.embybalance.service.CircuitBreaker;
+import com.watermelon.embybalance.service.ConcurrencyLimiter;
+import com.watermelon.embybalance.service.SingleFlight;
+import com.watermelon.embybalance.service.UpstreamResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableAsync;
+
+/**
+ * 并发控制配置
+ * 启用@Async（开启spring.threads.virtual.enabled时异步任务运行在虚拟线程上），
+ * 为SQLite和Emby上游提供有界信号量，并提供并发相同请求的合并和Emby上游熔断器
+ */
+@Configuration
+@EnableAsync
+public class ConcurrencyConfig {
+
+    /**
+     * Emby上游并发限制
+     */
+    @Bean
+    public ConcurrencyLimiter embyUpstreamLimiter(
+            @Value("${app.concurrency.emby-upstream.max-concurrent:200}") int maxConcurrent,
+            @Value("${app.concurrency.emby-upstream.acquire-timeout-ms:5000}") long acquireTimeoutMs) {
+        return new ConcurrencyLimiter("Emby上游", maxConcurrent, acquireTimeoutMs);
+    }
+
+    /**
+     * SQLite写入并发限制，SQLite同一时刻只允许一个写事务，过多的并发只会在锁上排队
+     */
+    @Bean
+    public ConcurrencyLimiter sqliteLimiter(
+            @Value("${app.concurrency.sqlite.max-concurrent:4}") int maxConcurrent,
+            @Value("${app.concurrency.sqlite.acquire-timeout-ms:10000}") long acquireTimeoutMs) {
+        return new ConcurrencyLimiter("SQLite", maxConcurrent, acquireTimeoutMs);
+    }
+
+    /**
+     * 合并并发的相同PlaybackInfo上游请求
+     */
+    @Bean
+    public SingleFlight<String, UpstreamResponse> playbackInfoFlight() {
+        return new SingleFlight<>("PlaybackInfo");
+    }
+
+    /**
+     * 合并并发的相同CD2路径查询
+     */
+    @Bean
+    public SingleFlight<String, String> cd2LookupFlight() {
+        return new SingleFlight<>("CD2");
+    }
+
+    /**
+     * Emby上游熔断器，最近调用中失败率或慢调用率超过阈值时打开
+     */
+    @Bean
+    public CircuitBreaker embyCircuitBreaker(
+            @Value("${app.emby.resilience.circuit-breaker.window-size:50}") int windowSize,
+            @Value("${app.emby.resilience.circuit-breaker.minimum-calls:20}") int minimumCalls,
+            @Value("${app.emby.resilience.circuit-breaker.failure-rate-threshold:0.5}") double failureRateThreshold,
+            @Value("${app.emby.resilience.circuit-breaker.slow-call-rate-threshold:0.8}") double slowCallRateThreshold,
+            @Value("${app.emby.resilience.circuit-breaker.slow-call-threshold-ms:3000}") long slowCallThresholdMs,
+            @Value("${app.emby.resilience.circuit-breaker.open-duration-ms:10000}") long openDurationMs,
+            @Value("${app.emby.resilience.circuit-breaker.half-open-calls:3}") int halfOpenCalls) {
+        return new CircuitBreaker("Emby上游", windowSize, minimumCalls, failureRateThreshold,
+                slowCallRateThreshold, slowCallThresholdMs, openDurationMs, halfOpenCalls);
+    }
+}
@@ -0,0 +1,63 @@
+package com.watermelon.embybalance.config;
+
+import com.watermelon.embybalance.service.ReactiveEmbyProxyService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+
+/**
+ * 响应式PlaybackInfo服务器（可选）
+ * 在独立端口上以Reactor Netty事件循环处理PlaybackInfo，不占用Tomcat线程；
+ * 启用后需在Nginx中将PlaybackInfo请求转发到该端口
+ */
+@Component
+@ConditionalOnProperty(name = "app.emby.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class ReactivePlaybackInfoServer implements SmartLifecycle {
+
+    private final ReactiveEmbyProxyService reactiveEmbyProxyService;
+
+    @Value("${app.emby.reactive.port:8081}")
+    private int port;
+
+    private volatile DisposableServer server;
+
+    @Override
+    public void start() {
+        RouterFunction<ServerResponse> routes = RouterFunctions.route(
+                POST("/emby/Items/{itemId}/PlaybackInfo"), reactiveEmbyProxyService::handlePlaybackInfo);
+
+        server = HttpServer.create()
+                .port(port)
+                .handle(new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(routes)))
+                .bindNow();
+        log.info("响应式PlaybackInfo服务器已启动，端口: {}", port);
+    }
+
+    @Override
+    public void stop() {
+        DisposableServer current = server;
+        if (current != null) {
+            current.disposeNow();
+            server = null;
+            log.info("响应式PlaybackInfo服务器已停止");
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+}
@@ -1,8 +1,13 @@
 package com.watermelon.embybalance.config;
 
-import com.watermelon.embybalance.service.DownloadStatisticsService;
+import com.watermelon.embybalance.service.EmbyLibraryCrawler;
+import com.watermelon.embybalance.service.RouteHealthProber;
+import com.watermelon.embybalance.service.RouteRegistry;
+import com.watermelon.embybalance.service.RouteStatisticsRollupService;
+import com.watermelon.embybalance.service.StatisticsRetentionService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -13,19 +18,83 @@ import org.springframework.scheduling.annotation.Scheduled;
 @Slf4j
 public class SchedulingConfig {
     
-    private final DownloadStatisticsService downloadStatisticsService;
+    private final RouteRegistry routeRegistry;
+    private final EmbyLibraryCrawler embyLibraryCrawler;
+    private final RouteHealthProber routeHealthProber;
+    private final RouteStatisticsRollupService routeStatisticsRollupService;
+    private final StatisticsRetentionService statisticsRetentionService;
+    
+    @Value("${app.scheduler.cleanup.enabled:true}")
+    private boolean cleanupEnabled;
     
     /**
-     * 每天凌晨2点清理过期的统计数据
+     * 定时清理过期的统计数据（默认每天凌晨2点）
      */
-    @Scheduled(cron = "0 0 2 * * ?")
+    @Scheduled(cron = "${app.scheduler.cleanup.cron:0 0 2 * * ?}")
     public void cleanupOldStatistics() {
+        if (!cleanupEnabled) {
+            return;
+        }
         log.info("开始执行定时清理统计数据任务");
         try {
-            downloadStatisticsService.cleanupOldStatistics();
+            statisticsRetentionService.cleanup();
             log.info("定时清理统计数据任务完成");
         } catch (Exception e) {
             log.error("定时清理统计数据任务失败", e);
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * 定时重新计算线路评分并刷新线路注册表
+     */
+    @Scheduled(fixedDelayString = "${app.route.registry.refresh-interval-ms:30000}",
+               initialDelayString = "${app.route.registry.refresh-interval-ms:30000}")
+    public void refreshRouteRegistry() {
+        routeRegistry.rebuild();
+    }
+    
+    /**
+     * 定时同步Emby媒体库到本地媒体项表
+     */
+    @Scheduled(fixedDelayString = "${app.emby.crawler.interval-ms:3600000}",
+               initialDelayString = "${app.emby.crawler.initial-delay-ms:60000}")
+    public void crawlEmbyLibrary() {
+        if (!embyLibraryCrawler.isEnabled()) {
+            return;
+        }
+        try {
+            embyLibraryCrawler.crawl();
+        } catch (Exception e) {
+            log.error("同步Emby媒体库失败", e);
+        }
+    }
+    
+    /**
+     * 定时主动探测各下载线路的健康状态
+     */
+    @Scheduled(fixedDelayString = "${app.route.health.interval-ms:10000}",
+               initialDelayString = "${app.route.health.initial-delay-ms:15000}")
+    public void probeRouteHealth() {
+        if (!routeHealthProber.isEnabled()) {
+            return;
+        }
+        try {
+            routeHealthProber.probeAll();
+        } catch (Exception e) {
+            log.error("探测下载线路健康状态失败", e);
+        }
+    }
+    
+    /**
+     * 定时把新增的下载统计合并到分钟/小时聚合表
+     */
+    @Scheduled(fixedDelayString = "${app.statistics.rollup.interval-ms:60000}",
+               initialDelayString = "${app.statistics.rollup.interval-ms:60000}")
+    public void compactStatisticsRollups() {
+        try {
+            routeStatisticsRollupService.compact();
+        } catch (Exception e) {
+            log.error("聚合下载统计失败", e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.watermelon.embybalance.controller;
+
+import com.watermelon.embybalance.entity.ClientSubnetMapping;
+import com.watermelon.embybalance.service.ClientSubnetRouter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 客户端网段到线路组映射的管理接口
+ */
+@RestController
+@RequestMapping("/api/client-subnets")
+@RequiredArgsConstructor
+@Slf4j
+public class ClientSubnetController {
+
+    private final ClientSubnetRouter clientSubnetRouter;
+
+    /**
+     * 获取所有网段映射
+     */
+    @GetMapping
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<List<ClientSubnetMapping>> getAllMappings() {
+        return ResponseEntity.ok(clientSubnetRouter.getAllMappings());
+    }
+
+    /**
+     * 创建网段映射，立即生效
+     */
+    @PostMapping
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<?> createMapping(@RequestBody ClientSubnetMapping mapping) {
+        try {
+            return ResponseEntity.status(HttpStatus.CREATED).body(clientSubnetRouter.createMapping(mapping));
+        } catch (IllegalArgumentException e) {
+            log.warn("创建网段映射失败: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * 删除网段映射，立即生效
+     */
+    @DeleteMapping("/{id}")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<?> deleteMapping(@PathVariable Long id) {
+        try {
+            clientSubnetRouter.deleteMapping(id);
+            return ResponseEntity.ok(Map.of("message", "网段映射删除成功"));
+        } catch (IllegalArgumentException e) {
+            log.warn("删除网段映射失败: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * 从数据库重新加载网段映射（直接修改数据库后使用）
+     */
+    @PostMapping("/reload")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> reload() {
+        return ResponseEntity.ok(Map.of("prefixes", clientSubnetRouter.reload()));
+    }
+
+    /**
+     * 查询客户端IP匹配到的线路组
+     */
+    @GetMapping("/lookup")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> lookup(@RequestParam String ip) {
+        String group = clientSubnetRouter.routeGroupFor(ip);
+        return ResponseEntity.ok(Map.of("ip", ip, "routeGroup", group != null ? group : ""));
+    }
+}
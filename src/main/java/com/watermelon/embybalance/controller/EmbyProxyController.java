@@ -1,90 +1,84 @@
 package com.watermelon.embybalance.controller;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.watermelon.embybalance.service.EmbyProxyService;
+import com.watermelon.embybalance.service.MediaSourceInfo;
+import com.watermelon.embybalance.service.PlaybackInfoRequestBody;
+import com.watermelon.embybalance.service.RouteCapacityExceededException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequiredArgsConstructor
 @Slf4j
 public class EmbyProxyController {
 
-    private final ObjectMapper objectMapper;
     private final EmbyProxyService embyProxyService;
 
+    @Value("${app.route.admission.retry-after-seconds:30}")
+    private int capacityRetryAfterSeconds;
+
     @PostMapping(value = "/emby/Items/{itemId}/PlaybackInfo", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.TEXT_PLAIN_VALUE})
-    public ResponseEntity<Object> handlePlaybackInfo(
+    public void handlePlaybackInfo(
             @PathVariable("itemId") String itemId,
-            @RequestBody(required = false)  String requestBodyString,
             @RequestParam Map<String, String> queryParams,
-            @RequestHeader Map<String, String> headers) {
+            @RequestHeader Map<String, String> headers,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         log.info("收到PlaybackInfo请求,itemId={}", itemId);
+        log.debug("请求头信息: {}", headers);
+        log.debug("查询参数: {}", queryParams);
         
-        // 记录请求头信息
-        log.info("请求头信息: {}", headers);
-        
-        // 记录查询参数
-        log.info("查询参数: {}", queryParams);
-        
-        // 记录请求体
-        log.info("原始请求体: {}", requestBodyString);
-        
-        Map<String, Object> requestBody = new HashMap<>();
-        if (requestBodyString != null && !requestBodyString.isEmpty()) {
-            try {
-                // 尝试将请求体解析为JSON
-                requestBody = objectMapper.readValue(requestBodyString, new TypeReference<Map<String, Object>>() {
-                });
-                log.info("解析后的请求体: {}", requestBody);
-            } catch (Exception e) {
-                // 如果解析失败，将原始文本作为"content"字段
-                requestBody.put("content", requestBodyString);
-                log.warn("请求体解析失败，作为content字段处理: {}", e.getMessage());
-            }
-        }
+        // 请求体按原始字节读取后直接转发，只有规则需要时才解析其中的字段
+        PlaybackInfoRequestBody requestBody = PlaybackInfoRequestBody.read(request);
 
-        ResponseEntity<Object> response = embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers);
-        
-        // 记录响应状态和头信息
-        log.info("响应状态码: {}", response.getStatusCode());
-        log.info("响应头信息: {}", response.getHeaders());
+        // 响应体由服务层流式改写后直接写入response
+        embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers, response);
         
-        // 记录响应体（注意可能很大，考虑是否需要完整记录）
-        if (response.getBody() != null) {
-            try {
-                String responseBodyStr = objectMapper.writeValueAsString(response.getBody());
-                // 如果响应体太大，可以只记录一部分
-                if (responseBodyStr.length() > 1000) {
-                    log.info("响应体(截断): {}...", responseBodyStr.substring(0, 1000));
-                } else {
-                    log.info("响应体: {}", responseBodyStr);
-                }
-            } catch (Exception e) {
-                log.warn("响应体序列化失败: {}", e.getMessage());
-            }
-        }
-        
-        return response;
+        // 记录响应状态
+        log.info("响应状态码: {}", response.getStatus());
     }
 
-    @GetMapping(value = "/emby/videos/{itemId}/original.{container}", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.TEXT_PLAIN_VALUE})
+    /**
+     * 原始文件请求：从本地索引查出媒体路径，按PlaybackInfo相同的线路选择逻辑302到下载线路
+     */
+    @GetMapping("/emby/videos/{itemId}/original.{container}")
     public ResponseEntity<Object> handleVideosDownload(
             @PathVariable("itemId") String itemId,
             @PathVariable("container") String container,
-            @RequestBody(required = false)  String requestBodyString,
-            @RequestParam Map<String, String> queryParams,
+            @RequestParam(value = "MediaSourceId", required = false) String mediaSourceId,
             @RequestHeader Map<String, String> headers) {
 
         log.info("收到videos请求,itemId={},container={}", itemId, container);
-        //返回302  重定向
-        return ResponseEntity.status(302).header("Location", "https://www.w3schools.com/html/movie.mp4").build();
+        Optional<MediaSourceInfo> mediaSource = embyProxyService.findMediaSource(itemId, mediaSourceId);
+        if (mediaSource.isEmpty()) {
+            log.warn("媒体路径索引中没有该媒体项: itemId={}, mediaSourceId={}", itemId, mediaSourceId);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "未找到媒体项路径"));
+        }
+
+        Optional<String> downloadUrl;
+        try {
+            downloadUrl = embyProxyService.selectDownloadUrl(mediaSource.get().getPath(), mediaSource.get().getBitrate(), headers);
+        } catch (RouteCapacityExceededException e) {
+            // 降级：所有线路满载时明确拒绝，客户端稍后重试，而不是继续压到已满载的节点上
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(capacityRetryAfterSeconds))
+                    .body(Map.of("error", e.getMessage(), "degraded", true));
+        }
+        if (downloadUrl.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of("error", "没有可用的下载线路"));
+        }
+        return ResponseEntity.status(HttpStatus.FOUND).header(HttpHeaders.LOCATION, downloadUrl.get()).build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package com.watermelon.embybalance.controller;
+
+import com.watermelon.embybalance.service.ConcurrencyLimiter;
+import com.watermelon.embybalance.service.EmbyBackendPool;
+import com.watermelon.embybalance.service.EmbyConnectionPoolMonitor;
+import com.watermelon.embybalance.service.EmbyLibraryCrawler;
+import com.watermelon.embybalance.service.EmbyUpstreamResilience;
+import com.watermelon.embybalance.service.MediaPathIndex;
+import com.watermelon.embybalance.service.PlaybackInfoCache;
+import com.watermelon.embybalance.service.SingleFlight;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Emby上游相关的运行时指标：连接池、并发限制、缓存、请求合并、媒体库索引和实例状态
+ * 下载线路和下载统计的指标分别见 {@link RouteMetricsController} 和 {@link StatisticsMetricsController}
+ */
+@RestController
+@RequestMapping("/api/metrics")
+@RequiredArgsConstructor
+public class MetricsController {
+
+    private final EmbyConnectionPoolMonitor embyConnectionPoolMonitor;
+    private final ConcurrencyLimiter embyUpstreamLimiter;
+    private final ConcurrencyLimiter sqliteLimiter;
+    private final PlaybackInfoCache playbackInfoCache;
+    private final List<SingleFlight<?, ?>> singleFlights;
+    private final MediaPathIndex mediaPathIndex;
+    private final EmbyLibraryCrawler embyLibraryCrawler;
+    private final EmbyUpstreamResilience embyUpstreamResilience;
+    private final EmbyBackendPool embyBackendPool;
+
+    /**
+     * 获取Emby上游连接池占用情况
+     */
+    @GetMapping("/upstream-pool")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Map<String, Integer>>> getUpstreamPoolStatistics() {
+        return ResponseEntity.ok(embyConnectionPoolMonitor.getPoolStatistics());
+    }
+
+    /**
+     * 获取SQLite和Emby上游并发限制器的占用情况
+     */
+    @GetMapping("/concurrency")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Map<String, Object>>> getConcurrencyStatistics() {
+        return ResponseEntity.ok(Map.of(
+                "embyUpstream", embyUpstreamLimiter.getStatistics(),
+                "sqlite", sqliteLimiter.getStatistics()
+        ));
+    }
+
+    /**
+     * 获取PlaybackInfo缓存命中情况
+     */
+    @GetMapping("/playback-cache")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getPlaybackCacheStatistics() {
+        return ResponseEntity.ok(playbackInfoCache.getStatistics());
+    }
+
+    /**
+     * 获取并发相同请求的合并情况
+     */
+    @GetMapping("/coalescing")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Map<String, Object>>> getCoalescingStatistics() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        singleFlights.forEach(flight -> result.put(flight.getName(), flight.getStatistics()));
+        return ResponseEntity.ok(result);
+    }
+
+    /**
+     * 获取媒体路径索引的大小和命中情况
+     */
+    @GetMapping("/media-path-index")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getMediaPathIndexStatistics() {
+        return ResponseEntity.ok(mediaPathIndex.getStatistics());
+    }
+
+    /**
+     * 获取媒体库同步状态和上次同步结果
+     */
+    @GetMapping("/library-crawler")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getLibraryCrawlerStatistics() {
+        return ResponseEntity.ok(embyLibraryCrawler.getStatistics());
+    }
+
+    /**
+     * 获取Emby上游熔断、超时、对冲和过期缓存兜底的触发情况
+     */
+    @GetMapping("/upstream-resilience")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getUpstreamResilienceStatistics() {
+        return ResponseEntity.ok(embyUpstreamResilience.getStatistics());
+    }
+
+    /**
+     * 获取各Emby实例的进行中请求、摘除状态和延迟分布
+     */
+    @GetMapping("/emby-backends")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Map<String, Object>>> getEmbyBackendStatistics() {
+        return ResponseEntity.ok(embyBackendPool.getStatistics());
+    }
+}
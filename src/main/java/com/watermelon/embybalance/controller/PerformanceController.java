@@ -2,8 +2,10 @@ package com.watermelon.embybalance.controller;
 
 import com.watermelon.embybalance.service.DownloadRouteService;
 import com.watermelon.embybalance.service.DownloadStatisticsService;
+import com.watermelon.embybalance.service.StatisticsRetentionService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
@@ -19,15 +21,16 @@ public class PerformanceController {
     
     private final DownloadRouteService downloadRouteService;
     private final DownloadStatisticsService downloadStatisticsService;
+    private final StatisticsRetentionService statisticsRetentionService;
     
     /**
      * 获取所有线路的性能排名
      */
     @GetMapping("/ranking")
     @PreAuthorize("isAuthenticated()")
-    public ResponseEntity<List<Map<String, Object>>> getPerformanceRanking() {
+    public ResponseEntity<List<Map<String, Object>>> getPerformanceRanking(@RequestParam(defaultValue = "24") int hours) {
         try {
-            List<Map<String, Object>> ranking = downloadRouteService.getRoutePerformanceRanking();
+            List<Map<String, Object>> ranking = downloadRouteService.getRoutePerformanceRanking(hours);
             return ResponseEntity.ok(ranking);
         } catch (Exception e) {
             log.error("获取性能排名失败", e);
@@ -40,9 +43,10 @@ public class PerformanceController {
      */
     @GetMapping("/route/{routeId}")
     @PreAuthorize("isAuthenticated()")
-    public ResponseEntity<Map<String, Object>> getRoutePerformance(@PathVariable Long routeId) {
+    public ResponseEntity<Map<String, Object>> getRoutePerformance(@PathVariable Long routeId,
+                                                                   @RequestParam(defaultValue = "24") int hours) {
         try {
-            Map<String, Object> report = downloadRouteService.getRoutePerformanceReport(routeId);
+            Map<String, Object> report = downloadRouteService.getRoutePerformanceReport(routeId, hours);
             if (report.isEmpty()) {
                 return ResponseEntity.notFound().build();
             }
@@ -58,9 +62,9 @@ public class PerformanceController {
      */
     @GetMapping("/overview")
     @PreAuthorize("isAuthenticated()")
-    public ResponseEntity<List<Map<String, Object>>> getPerformanceOverview() {
+    public ResponseEntity<List<Map<String, Object>>> getPerformanceOverview(@RequestParam(defaultValue = "24") int hours) {
         try {
-            List<Map<String, Object>> overview = downloadStatisticsService.getAllRoutePerformanceStatistics();
+            List<Map<String, Object>> overview = downloadStatisticsService.getAllRoutePerformanceStatistics(hours);
             return ResponseEntity.ok(overview);
         } catch (Exception e) {
             log.error("获取性能概览失败", e);
@@ -69,14 +73,15 @@ public class PerformanceController {
     }
     
     /**
-     * 手动清理过期统计数据
+     * 手动清理过期统计数据，返回删除数量和归档文件
      */
     @PostMapping("/cleanup")
     @PreAuthorize("isAuthenticated()")
-    public ResponseEntity<Map<String, String>> cleanupStatistics() {
+    public ResponseEntity<Map<String, Object>> cleanupStatistics() {
         try {
-            downloadStatisticsService.cleanupOldStatistics();
-            return ResponseEntity.ok(Map.of("message", "统计数据清理完成"));
+            return ResponseEntity.ok(statisticsRetentionService.cleanup());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             log.error("清理统计数据失败", e);
             return ResponseEntity.internalServerError()
@@ -0,0 +1,64 @@
+package com.watermelon.embybalance.controller;
+
+import com.watermelon.embybalance.service.ClientSubnetRouter;
+import com.watermelon.embybalance.service.RouteAdmissionController;
+import com.watermelon.embybalance.service.RouteHealthProber;
+import com.watermelon.embybalance.service.RouteLoadTracker;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 下载线路选择相关的运行时指标：健康探测、进行中下载数、准入和客户端网段
+ */
+@RestController
+@RequestMapping("/api/metrics")
+@RequiredArgsConstructor
+public class RouteMetricsController {
+
+    private final RouteHealthProber routeHealthProber;
+    private final RouteLoadTracker routeLoadTracker;
+    private final RouteAdmissionController routeAdmissionController;
+    private final ClientSubnetRouter clientSubnetRouter;
+
+    /**
+     * 获取各下载线路的主动探测健康状态
+     */
+    @GetMapping("/route-health")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getRouteHealthStatistics() {
+        return ResponseEntity.ok(routeHealthProber.getStatistics());
+    }
+
+    /**
+     * 获取各下载线路的进行中下载数
+     */
+    @GetMapping("/route-load")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<Long, Double>> getRouteLoadStatistics() {
+        return ResponseEntity.ok(routeLoadTracker.getStatistics());
+    }
+
+    /**
+     * 获取各下载线路的准入占用和拒绝情况
+     */
+    @GetMapping("/route-admission")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getRouteAdmissionStatistics() {
+        return ResponseEntity.ok(routeAdmissionController.getStatistics());
+    }
+
+    /**
+     * 获取客户端网段映射的前缀数和匹配情况
+     */
+    @GetMapping("/client-subnets")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getClientSubnetStatistics() {
+        return ResponseEntity.ok(clientSubnetRouter.getStatistics());
+    }
+}
@@ -1,12 +1,17 @@
 package com.watermelon.embybalance.controller;
 
 import com.watermelon.embybalance.service.DownloadStatisticsService;
+import com.watermelon.embybalance.service.NginxLogBackfill;
+import com.watermelon.embybalance.service.StatisticsBulkIngestor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.InputStream;
 import java.util.Map;
 
 @RestController
@@ -16,6 +21,8 @@ import java.util.Map;
 public class StatisticsController {
     
     private final DownloadStatisticsService downloadStatisticsService;
+    private final StatisticsBulkIngestor statisticsBulkIngestor;
+    private final NginxLogBackfill nginxLogBackfill;
     
     /**
      * 记录下载统计信息（由Nginx调用）
@@ -35,14 +42,15 @@ public class StatisticsController {
             Long responseTime = getLongValue(statisticsData, "responseTime");
             Boolean success = getBooleanValue(statisticsData, "success");
             String userAgent = getStringValue(statisticsData, "userAgent");
+            Long leaseId = getLongValue(statisticsData, "leaseId");
             
             // 如果clientIp为空，从请求头中获取
             if (clientIp == null || clientIp.isEmpty()) {
                 clientIp = getClientIpAddress(request);
             }
             
-            // 记录统计信息
-            downloadStatisticsService.recordDownloadStatistics(
+            // 提交到写入队列，批量入库
+            boolean accepted = downloadStatisticsService.recordDownloadStatistics(
                 routeId != null ? routeId : 0L,
                 clientIp,
                 filePath,
@@ -50,12 +58,16 @@ public class StatisticsController {
                 downloadDuration != null ? downloadDuration : 0L,
                 responseTime != null ? responseTime : 0L,
                 success != null ? success : false,
-                userAgent
+                userAgent,
+                leaseId
             );
             
             log.debug("记录下载统计: routeId={}, clientIp={}, filePath={}, size={}, duration={}", 
                      routeId, clientIp, filePath, downloadSize, downloadDuration);
             
+            if (!accepted) {
+                return ResponseEntity.status(503).body("统计写入队列已满，记录被丢弃");
+            }
             return ResponseEntity.ok("统计信息记录成功");
             
         } catch (Exception e) {
@@ -94,12 +106,13 @@ public class StatisticsController {
                     Long responseTime = getLongValue(statisticsData, "responseTime");
                     Boolean success = getBooleanValue(statisticsData, "success");
                     String userAgent = getStringValue(statisticsData, "userAgent");
+                    Long leaseId = getLongValue(statisticsData, "leaseId");
                     
                     if (clientIp == null || clientIp.isEmpty()) {
                         clientIp = getClientIpAddress(request);
                     }
                     
-                    downloadStatisticsService.recordDownloadStatistics(
+                    boolean accepted = downloadStatisticsService.recordDownloadStatistics(
                         routeId != null ? routeId : 0L,
                         clientIp,
                         filePath,
@@ -107,10 +120,15 @@ public class StatisticsController {
                         downloadDuration != null ? downloadDuration : 0L,
                         responseTime != null ? responseTime : 0L,
                         success != null ? success : false,
-                        userAgent
+                        userAgent,
+                        leaseId
                     );
                     
-                    successCount++;
+                    if (accepted) {
+                        successCount++;
+                    } else {
+                        failCount++;
+                    }
                 } catch (Exception e) {
                     log.error("批量记录统计信息时出错", e);
                     failCount++;
@@ -128,6 +146,49 @@ public class StatisticsController {
         }
     }
     
+    /**
+     * 流式导入NDJSON格式的下载统计，请求体可以是gzip压缩的
+     * 每行一个与/record请求体相同字段的JSON对象，另可带timestamp（毫秒时间戳或ISO-8601时间）；
+     * 格式错误的行跳过并在响应中列出行号和原因
+     */
+    @PostMapping("/ingest")
+    public ResponseEntity<Map<String, Object>> ingestStatistics(InputStream body, HttpServletRequest request) {
+        StatisticsBulkIngestor.Result result = statisticsBulkIngestor.ingest(body, getClientIpAddress(request));
+        // 请求体损坏或连接中断时返回400，出错位置之前的行已经提交
+        if (result.getError() != null) {
+            return ResponseEntity.badRequest().body(result.toMap());
+        }
+        return ResponseEntity.ok(result.toMap());
+    }
+    
+    /**
+     * 在后台回填nginx日志目录中文件名匹配pattern的历史日志（支持.gz），默认只匹配轮转后的文件；
+     * 日志跟踪中的文件和已经回填过的文件被跳过
+     */
+    @PostMapping("/backfill")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> startBackfill(@RequestParam(defaultValue = "download_stats.log.*") String pattern) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(nginxLogBackfill.start(pattern));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            log.error("启动nginx日志回填失败", e);
+            return ResponseEntity.status(500).body(Map.of("error", "启动回填失败: " + e.getMessage()));
+        }
+    }
+    
+    /**
+     * 获取当前或最近一次回填的进度和每秒处理行数
+     */
+    @GetMapping("/backfill")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getBackfillProgress() {
+        return ResponseEntity.ok(nginxLogBackfill.getStatistics());
+    }
+    
     /**
      * 获取客户端真实IP地址
      */
@@ -0,0 +1,75 @@
+package com.watermelon.embybalance.controller;
+
+import com.watermelon.embybalance.service.NginxLogTailer;
+import com.watermelon.embybalance.service.NginxSyslogReceiver;
+import com.watermelon.embybalance.service.RouteStatisticsRollupService;
+import com.watermelon.embybalance.service.StatisticsIngestPipeline;
+import com.watermelon.embybalance.service.StatisticsRetentionService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 下载统计管道的运行时指标：写入队列、nginx日志跟踪和syslog接收、聚合和过期清理
+ */
+@RestController
+@RequestMapping("/api/metrics")
+@RequiredArgsConstructor
+public class StatisticsMetricsController {
+
+    private final StatisticsIngestPipeline statisticsIngestPipeline;
+    private final NginxLogTailer nginxLogTailer;
+    private final NginxSyslogReceiver nginxSyslogReceiver;
+    private final RouteStatisticsRollupService routeStatisticsRollupService;
+    private final StatisticsRetentionService statisticsRetentionService;
+
+    /**
+     * 获取下载统计写入队列的深度、丢弃数和批量写入延迟
+     */
+    @GetMapping("/statistics-ingest")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getStatisticsIngestStatistics() {
+        return ResponseEntity.ok(statisticsIngestPipeline.getStatistics());
+    }
+
+    /**
+     * 获取nginx下载日志跟踪的读取位置、积压字节数、解析错误和轮转次数
+     */
+    @GetMapping("/nginx-log-tailer")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getNginxLogTailerStatistics() {
+        return ResponseEntity.ok(nginxLogTailer.getStatistics());
+    }
+
+    /**
+     * 获取nginx syslog接收的报文数、丢弃数和解析错误数
+     */
+    @GetMapping("/nginx-syslog")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getNginxSyslogStatistics() {
+        return ResponseEntity.ok(nginxSyslogReceiver.getStatistics());
+    }
+
+    /**
+     * 获取下载统计聚合任务的最近一次执行情况
+     */
+    @GetMapping("/statistics-rollup")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getStatisticsRollupStatistics() {
+        return ResponseEntity.ok(routeStatisticsRollupService.getStatistics());
+    }
+
+    /**
+     * 获取统计数据过期清理的配置和最近一次执行情况
+     */
+    @GetMapping("/statistics-retention")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getStatisticsRetentionStatistics() {
+        return ResponseEntity.ok(statisticsRetentionService.getStatistics());
+    }
+}
@@ -0,0 +1,39 @@
+package com.watermelon.embybalance.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 客户端网段到优先线路组的映射，来自该网段的客户端优先使用该组的下载线路
+ */
+@Entity
+@Table(name = "client_subnet_mappings")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClientSubnetMapping {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(nullable = false, unique = true)
+    private String cidr; // 如 10.0.0.0/8、2001:db8::/32
+    
+    @Column(name = "route_group", nullable = false)
+    private String routeGroup; // 对应DownloadRoute.routeGroup
+    
+    private String description;
+    
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
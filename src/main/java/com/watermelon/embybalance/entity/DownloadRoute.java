@@ -5,6 +5,9 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
 @Entity
 @Table(name = "download_routes")
 @Data
@@ -29,6 +32,15 @@ public class DownloadRoute {
     @Column(nullable = false)
     private Integer weight = 1; // 权重，默认为1
     
+    @Column(name = "max_concurrent_streams")
+    private Integer maxConcurrentStreams; // 最大并发下载数，为空表示不限制
+    
+    @Column(name = "max_bandwidth_mbps")
+    private Integer maxBandwidthMbps; // 最大总带宽（Mbit/s），为空表示不限制
+    
+    @Column(name = "route_group")
+    private String routeGroup; // 线路组，配合客户端网段映射按网段优先选择，为空表示不属于任何组
+    
     @Column(name = "created_at")
     private java.time.LocalDateTime createdAt;
     
@@ -56,4 +68,24 @@ public class DownloadRoute {
     public String getFullUrl() {
         return protocol.name().toLowerCase() + "://" + domain + ":" + port;
     }
+    
+    /**
+     * 构建经由本线路下载原始文件的地址：线路URL + emby_download路径 + 原始路径作为参数，附带路由ID用于统计
+     */
+    public String buildDownloadUrl(String originalPath) {
+        String baseUrl = getFullUrl();
+        // 确保URL末尾没有重复的斜杠
+        if (baseUrl.endsWith("/")) {
+            baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        }
+        return baseUrl + "/emby_download?path=" + URLEncoder.encode(originalPath, StandardCharsets.UTF_8) + "&route_id=" + id;
+    }
+    
+    /**
+     * 构建带准入租约ID的下载地址，nginx的下载统计回传lease_id以释放该租约；leaseId不大于0时不附带
+     */
+    public String buildDownloadUrl(String originalPath, long leaseId) {
+        String url = buildDownloadUrl(originalPath);
+        return leaseId > 0 ? url + "&lease_id=" + leaseId : url;
+    }
 }
\ No newline at end of file
@@ -48,6 +48,9 @@ public class DownloadStatistics {
     @Column(name = "created_at")
     private LocalDateTime createdAt;
     
+    @Transient
+    private Long leaseId; // 下载地址中的准入租约ID，由nginx回传，只用于释放租约，不入库
+    
     @PrePersist
     protected void onCreate() {
         createdAt = LocalDateTime.now();
@@ -0,0 +1,51 @@
+package com.watermelon.embybalance.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Emby媒体项的媒体源，一个媒体项的每个版本（MediaSource）一行
+ */
+@Entity
+@Table(name = "media_items", indexes = @Index(name = "idx_media_items_item_id", columnList = "item_id"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MediaItem {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(name = "item_id", nullable = false)
+    private String itemId; // Emby媒体项ID
+    
+    @Column(name = "media_source_id")
+    private String mediaSourceId; // MediaSource ID
+    
+    @Column(name = "source_index", nullable = false)
+    private Integer sourceIndex; // 在MediaSources中的序号，0为默认版本
+    
+    @Column(nullable = false, length = 1024)
+    private String path; // 原始文件路径
+    
+    private Long size; // 文件大小（字节）
+    
+    private Long bitrate; // 码率（bps）
+    
+    @Column(name = "date_modified")
+    private String dateModified; // Emby返回的DateModified原文，用于判断是否变化
+    
+    @Column(name = "synced_at")
+    private LocalDateTime syncedAt;
+    
+    @PrePersist
+    @PreUpdate
+    protected void onSave() {
+        syncedAt = LocalDateTime.now();
+    }
+}
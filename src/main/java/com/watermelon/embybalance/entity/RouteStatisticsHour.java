@@ -0,0 +1,19 @@
+package com.watermelon.embybalance.entity;
+
+import jakarta.persistence.*;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+/**
+ * 按线路和小时聚合的下载统计
+ */
+@Entity
+@Table(name = "route_statistics_hour",
+       uniqueConstraints = @UniqueConstraint(name = "uk_route_statistics_hour_route_bucket", columnNames = {"route_id", "bucket_start"}),
+       indexes = @Index(name = "idx_route_statistics_hour_bucket_start", columnList = "bucket_start"))
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+public class RouteStatisticsHour extends RouteStatisticsRollup {
+}
@@ -0,0 +1,99 @@
+package com.watermelon.embybalance.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 按线路和时间桶预聚合的下载统计，分钟表和小时表共用的字段
+ * 和值可以直接相加合并，均值由和值除以次数得到
+ */
+@MappedSuperclass
+@Data
+@NoArgsConstructor
+public abstract class RouteStatisticsRollup {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(name = "route_id", nullable = false)
+    private Long routeId;
+    
+    @Column(name = "bucket_start", nullable = false)
+    private LocalDateTime bucketStart; // 时间桶起点
+    
+    @Column(name = "request_count", nullable = false)
+    private long requestCount;
+    
+    @Column(name = "success_count", nullable = false)
+    private long successCount;
+    
+    @Column(name = "bytes_sum", nullable = false)
+    private long bytesSum; // 下载字节数之和
+    
+    @Column(name = "duration_sum", nullable = false)
+    private long durationSum; // 下载耗时之和（毫秒）
+    
+    @Column(name = "response_time_sum", nullable = false)
+    private long responseTimeSum; // 响应时间之和（毫秒）
+    
+    @Column(name = "min_response_time", nullable = false)
+    private long minResponseTime;
+    
+    @Column(name = "max_response_time", nullable = false)
+    private long maxResponseTime;
+    
+    @Column(name = "bandwidth_sum", nullable = false)
+    private double bandwidthSum; // 各次下载带宽之和（MB/s）
+    
+    @Column(name = "max_bandwidth", nullable = false)
+    private double maxBandwidth;
+    
+    @Column(name = "success_bandwidth_sum", nullable = false)
+    private double successBandwidthSum; // 成功下载的带宽之和
+    
+    @Column(name = "success_response_time_sum", nullable = false)
+    private long successResponseTimeSum; // 成功下载的响应时间之和
+    
+    /**
+     * 累加一次下载
+     */
+    public void add(long bytes, long duration, double bandwidth, long responseTime, boolean success) {
+        minResponseTime = requestCount == 0 ? responseTime : Math.min(minResponseTime, responseTime);
+        maxResponseTime = requestCount == 0 ? responseTime : Math.max(maxResponseTime, responseTime);
+        maxBandwidth = Math.max(maxBandwidth, bandwidth);
+        requestCount++;
+        bytesSum += bytes;
+        durationSum += duration;
+        responseTimeSum += responseTime;
+        bandwidthSum += bandwidth;
+        if (success) {
+            successCount++;
+            successBandwidthSum += bandwidth;
+            successResponseTimeSum += responseTime;
+        }
+    }
+    
+    /**
+     * 合并同一线路同一时间桶的另一份聚合
+     */
+    public void merge(RouteStatisticsRollup other) {
+        if (other.requestCount == 0) {
+            return;
+        }
+        minResponseTime = requestCount == 0 ? other.minResponseTime : Math.min(minResponseTime, other.minResponseTime);
+        maxResponseTime = requestCount == 0 ? other.maxResponseTime : Math.max(maxResponseTime, other.maxResponseTime);
+        maxBandwidth = Math.max(maxBandwidth, other.maxBandwidth);
+        requestCount += other.requestCount;
+        successCount += other.successCount;
+        bytesSum += other.bytesSum;
+        durationSum += other.durationSum;
+        responseTimeSum += other.responseTimeSum;
+        bandwidthSum += other.bandwidthSum;
+        successBandwidthSum += other.successBandwidthSum;
+        successResponseTimeSum += other.successResponseTimeSum;
+    }
+}
@@ -0,0 +1,34 @@
+package com.watermelon.embybalance.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 后台同步任务的断点，按任务名保存上次成功同步到的位置
+ */
+@Entity
+@Table(name = "sync_checkpoints")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncCheckpoint {
+    
+    @Id
+    private String name; // 任务名
+    
+    @Column(nullable = false)
+    private String position; // 同步位置，格式由任务决定
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+    
+    @PrePersist
+    @PreUpdate
+    protected void onSave() {
+        updatedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,11 @@
+package com.watermelon.embybalance.repository;
+
+import com.watermelon.embybalance.entity.ClientSubnetMapping;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ClientSubnetMappingRepository extends JpaRepository<ClientSubnetMapping, Long> {
+    
+    boolean existsByCidr(String cidr);
+}
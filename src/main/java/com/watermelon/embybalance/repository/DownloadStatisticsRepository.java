@@ -1,6 +1,7 @@
 package com.watermelon.embybalance.repository;
 
 import com.watermelon.embybalance.entity.DownloadStatistics;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -33,38 +34,25 @@ public interface DownloadStatisticsRepository extends JpaRepository<DownloadStat
     List<DownloadStatistics> findByRouteIdAndCreatedAtBetween(Long routeId, LocalDateTime startTime, LocalDateTime endTime);
     
     /**
-     * 计算指定线路在指定时间范围内的平均带宽
+     * 当前最大的统计记录ID
      */
-    @Query("SELECT AVG(ds.bandwidth) FROM DownloadStatistics ds WHERE ds.routeId = :routeId AND ds.success = true AND ds.createdAt >= :startTime")
-    Double calculateAverageBandwidthByRoute(@Param("routeId") Long routeId, @Param("startTime") LocalDateTime startTime);
+    @Query("SELECT MAX(ds.id) FROM DownloadStatistics ds")
+    Long findMaxId();
     
     /**
-     * 计算指定线路在指定时间范围内的平均响应时间
+     * 按ID分页读取时间窗口内的统计（id, routeId, createdAt, bandwidth, responseTime, success），用于重建内存窗口
      */
-    @Query("SELECT AVG(ds.responseTime) FROM DownloadStatistics ds WHERE ds.routeId = :routeId AND ds.success = true AND ds.createdAt >= :startTime")
-    Double calculateAverageResponseTimeByRoute(@Param("routeId") Long routeId, @Param("startTime") LocalDateTime startTime);
+    @Query("SELECT ds.id, ds.routeId, ds.createdAt, ds.bandwidth, ds.responseTime, ds.success FROM DownloadStatistics ds " +
+           "WHERE ds.id > :afterId AND ds.id <= :maxId AND ds.createdAt >= :startTime ORDER BY ds.id")
+    List<Object[]> findWindowRows(@Param("afterId") long afterId, @Param("maxId") long maxId,
+                                  @Param("startTime") LocalDateTime startTime, Pageable pageable);
     
     /**
-     * 获取指定线路的成功率
+     * 按ID顺序读取指定ID之后的统计（id, routeId, createdAt, downloadSize, downloadDuration, bandwidth, responseTime, success），用于增量聚合
      */
-    @Query("SELECT (COUNT(ds) * 100.0 / (SELECT COUNT(ds2) FROM DownloadStatistics ds2 WHERE ds2.routeId = :routeId AND ds2.createdAt >= :startTime)) " +
-           "FROM DownloadStatistics ds WHERE ds.routeId = :routeId AND ds.success = true AND ds.createdAt >= :startTime")
-    Double calculateSuccessRateByRoute(@Param("routeId") Long routeId, @Param("startTime") LocalDateTime startTime);
-    
-    /**
-     * 获取所有线路的性能统计（最近24小时）
-     */
-    @Query("SELECT ds.routeId, AVG(ds.bandwidth) as avgBandwidth, AVG(ds.responseTime) as avgResponseTime, " +
-           "(COUNT(CASE WHEN ds.success = true THEN 1 END) * 100.0 / COUNT(ds)) as successRate, COUNT(ds) as totalRequests " +
-           "FROM DownloadStatistics ds WHERE ds.createdAt >= :startTime " +
-           "GROUP BY ds.routeId " +
-           "ORDER BY avgBandwidth DESC")
-    List<Object[]> getRoutePerformanceStatistics(@Param("startTime") LocalDateTime startTime);
-    
-    /**
-     * 删除指定时间之前的统计记录（用于数据清理）
-     */
-    void deleteByCreatedAtBefore(LocalDateTime cutoffTime);
+    @Query("SELECT ds.id, ds.routeId, ds.createdAt, ds.downloadSize, ds.downloadDuration, ds.bandwidth, ds.responseTime, ds.success " +
+           "FROM DownloadStatistics ds WHERE ds.id > :afterId ORDER BY ds.id")
+    List<Object[]> findRowsAfterId(@Param("afterId") long afterId, Pageable pageable);
     
     /**
      * 统计指定IP地址的下载次数
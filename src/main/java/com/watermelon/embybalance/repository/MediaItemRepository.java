@@ -0,0 +1,38 @@
+package com.watermelon.embybalance.repository;
+
+import com.watermelon.embybalance.entity.MediaItem;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface MediaItemRepository extends JpaRepository<MediaItem, Long> {
+    
+    /**
+     * 根据媒体项ID和MediaSource ID查找媒体源
+     */
+    Optional<MediaItem> findFirstByItemIdAndMediaSourceId(String itemId, String mediaSourceId);
+    
+    /**
+     * 查找媒体项的默认媒体源
+     */
+    Optional<MediaItem> findFirstByItemIdOrderBySourceIndexAsc(String itemId);
+    
+    /**
+     * 批量查找媒体项的所有媒体源
+     */
+    List<MediaItem> findByItemIdIn(Collection<String> itemIds);
+    
+    /**
+     * 删除媒体项的所有媒体源
+     */
+    @Modifying
+    @Query("DELETE FROM MediaItem mi WHERE mi.itemId IN :itemIds")
+    int deleteByItemIdIn(@Param("itemIds") Collection<String> itemIds);
+}
@@ -0,0 +1,31 @@
+package com.watermelon.embybalance.repository;
+
+import com.watermelon.embybalance.entity.RouteStatisticsHour;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface RouteStatisticsHourRepository extends JpaRepository<RouteStatisticsHour, Long> {
+    
+    Optional<RouteStatisticsHour> findByRouteIdAndBucketStart(Long routeId, LocalDateTime bucketStart);
+    
+    /**
+     * 指定线路从指定时间开始的小时聚合，按时间升序
+     */
+    List<RouteStatisticsHour> findByRouteIdAndBucketStartGreaterThanEqualOrderByBucketStartAsc(Long routeId, LocalDateTime startTime);
+    
+    /**
+     * 按线路汇总指定时间之后的小时聚合
+     * 返回 routeId, 次数, 成功次数, 带宽和, 响应时间和, 成功带宽和, 成功响应时间和
+     */
+    @Query("SELECT r.routeId, SUM(r.requestCount), SUM(r.successCount), SUM(r.bandwidthSum), SUM(r.responseTimeSum), " +
+           "SUM(r.successBandwidthSum), SUM(r.successResponseTimeSum) " +
+           "FROM RouteStatisticsHour r WHERE r.bucketStart >= :startTime GROUP BY r.routeId")
+    List<Object[]> summarizeByRoute(@Param("startTime") LocalDateTime startTime);
+}
@@ -0,0 +1,30 @@
+package com.watermelon.embybalance.repository;
+
+import com.watermelon.embybalance.entity.RouteStatisticsMinute;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface RouteStatisticsMinuteRepository extends JpaRepository<RouteStatisticsMinute, Long> {
+    
+    Optional<RouteStatisticsMinute> findByRouteIdAndBucketStart(Long routeId, LocalDateTime bucketStart);
+    
+    /**
+     * 查找指定时间之后的分钟聚合，用于重建内存窗口
+     */
+    List<RouteStatisticsMinute> findByBucketStartGreaterThanEqual(LocalDateTime startTime);
+    
+    /**
+     * 删除指定时间之前的分钟聚合
+     */
+    @Modifying
+    @Query("DELETE FROM RouteStatisticsMinute r WHERE r.bucketStart < :cutoffTime")
+    int deleteByBucketStartBefore(@Param("cutoffTime") LocalDateTime cutoffTime);
+}
@@ -0,0 +1,9 @@
+package com.watermelon.embybalance.repository;
+
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface SyncCheckpointRepository extends JpaRepository<SyncCheckpoint, String> {
+}
@@ -1,18 +1,28 @@
 package com.watermelon.embybalance.service;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.time.Duration;
 import java.util.*;
 
 @Service
+@RequiredArgsConstructor
 public class Cd2Service {
 
     private static final String CD2_API_URL = "http://127.0.0.1:19798/api/fs/list";
+    private static final Duration LOOKUP_COALESCE_TIMEOUT = Duration.ofSeconds(10);
     private final RestTemplate restTemplate = new RestTemplate();
+    private final SingleFlight<String, String> cd2LookupFlight;
 
-    public String getFileIdByPath(String path) {
+    public String getFileIdByPath(String path) throws Exception {
+        // 同一路径的并发查询只请求一次CD2
+        return cd2LookupFlight.execute(path, () -> lookupFileId(path), LOOKUP_COALESCE_TIMEOUT);
+    }
+
+    private String lookupFileId(String path) {
         Map<String, String> req = new HashMap<>();
         req.put("path", path);
 
@@ -26,4 +36,4 @@ public class Cd2Service {
         }
         return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,205 @@
+package com.watermelon.embybalance.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于最近调用结果的熔断器
+ * 在最近windowSize次调用中，失败率或慢调用率超过阈值时打开；打开openDurationMs后进入半开，
+ * 放行halfOpenCalls次试探调用，全部成功则关闭，任一失败或变慢则重新打开。
+ * 半开后openDurationMs内试探仍未全部报告结果（调用被放弃且未归还许可）时重新放行试探，避免一直停在半开。
+ * 状态变更很少，用ReentrantLock保护滑动窗口，不使用synchronized以免固定虚拟线程
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallThresholdMs;
+    private final long openDurationMs;
+    private final int halfOpenCalls;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // 滑动窗口：0成功，1失败，2慢调用
+    private final byte[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int failures;
+    private int slowCalls;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private long halfOpenedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+                          double slowCallRateThreshold, long slowCallThresholdMs, long openDurationMs, int halfOpenCalls) {
+        if (windowSize <= 0 || minimumCalls <= 0 || halfOpenCalls <= 0) {
+            throw new IllegalArgumentException("熔断器窗口大小、最少调用数和半开试探数必须大于0");
+        }
+        this.name = name;
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallThresholdMs = slowCallThresholdMs;
+        this.openDurationMs = openDurationMs;
+        this.halfOpenCalls = halfOpenCalls;
+        this.window = new byte[windowSize];
+    }
+
+    /**
+     * 是否允许本次调用，允许后必须以onSuccess或onFailure报告结果
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if ((state == State.OPEN && now - openedAt >= openDurationMs)
+                    || (state == State.HALF_OPEN && halfOpenPermits == 0 && now - halfOpenedAt >= openDurationMs)) {
+                state = State.HALF_OPEN;
+                halfOpenedAt = now;
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+            }
+            if (state == State.HALF_OPEN && halfOpenPermits > 0) {
+                halfOpenPermits--;
+                return true;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void onSuccess(long latencyMs) {
+        record(latencyMs > slowCallThresholdMs ? (byte) 2 : (byte) 0);
+    }
+
+    public void onFailure() {
+        record((byte) 1);
+    }
+
+    /**
+     * 已允许的调用在得到结果前被取消或放弃，不报告结果时归还半开试探许可
+     */
+    public void release() {
+        if (state != State.HALF_OPEN) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN && halfOpenPermits < halfOpenCalls - halfOpenSuccesses) {
+                halfOpenPermits++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("state", state.name());
+            stats.put("windowCalls", windowCount);
+            stats.put("failureRate", windowCount == 0 ? 0.0 : (double) failures / windowCount);
+            stats.put("slowCallRate", windowCount == 0 ? 0.0 : (double) slowCalls / windowCount);
+        } finally {
+            lock.unlock();
+        }
+        stats.put("opened", opened.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    private void record(byte outcome) {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                if (outcome == 0) {
+                    if (++halfOpenSuccesses >= halfOpenCalls) {
+                        close();
+                    }
+                } else {
+                    open();
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // 打开前已放行的调用返回较晚，不再计入窗口
+                return;
+            }
+
+            if (windowCount == windowSize) {
+                byte evicted = window[windowIndex];
+                if (evicted == 1) {
+                    failures--;
+                } else if (evicted == 2) {
+                    slowCalls--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = outcome;
+            windowIndex = (windowIndex + 1) % windowSize;
+            if (outcome == 1) {
+                failures++;
+            } else if (outcome == 2) {
+                slowCalls++;
+            }
+
+            if (windowCount >= minimumCalls
+                    && ((double) failures / windowCount >= failureRateThreshold
+                    || (double) slowCalls / windowCount >= slowCallRateThreshold)) {
+                open();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        opened.incrementAndGet();
+        log.warn("{}熔断器打开，{}ms内拒绝调用", name, openDurationMs);
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        log.info("{}熔断器关闭", name);
+        windowIndex = 0;
+        windowCount = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
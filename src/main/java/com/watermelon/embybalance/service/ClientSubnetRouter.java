@@ -0,0 +1,136 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.ClientSubnetMapping;
+import com.watermelon.embybalance.repository.ClientSubnetMappingRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按客户端网段选择优先线路组
+ * 网段映射编译为IPv4/IPv6前缀字典树，按最长前缀匹配；映射变更时在后台构建新字典树后整体替换，
+ * 替换期间查找继续使用旧字典树，不会停顿
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ClientSubnetRouter {
+
+    private final ClientSubnetMappingRepository clientSubnetMappingRepository;
+
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    private volatile IpPrefixTrie<String> trie = IpPrefixTrie.<String>builder().build();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        reload();
+    }
+
+    /**
+     * 从数据库重新加载网段映射并替换字典树，格式无效的映射跳过
+     */
+    public int reload() {
+        reloadLock.lock();
+        try {
+            IpPrefixTrie.Builder<String> builder = IpPrefixTrie.builder();
+            for (ClientSubnetMapping mapping : clientSubnetMappingRepository.findAll()) {
+                try {
+                    builder.add(mapping.getCidr(), mapping.getRouteGroup());
+                } catch (IllegalArgumentException e) {
+                    log.warn("跳过无效的网段映射: {}", e.getMessage());
+                }
+            }
+            trie = builder.build();
+            log.info("客户端网段映射已加载: {}条", trie.size());
+            return trie.size();
+        } catch (Exception e) {
+            log.error("加载客户端网段映射失败，继续使用旧映射", e);
+            return trie.size();
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * 客户端IP所属网段的优先线路组，没有匹配时返回null
+     */
+    public String routeGroupFor(String clientIp) {
+        String group = trie.lookup(clientIp);
+        (group != null ? matched : unmatched).incrementAndGet();
+        return group;
+    }
+
+    /**
+     * 从转发请求头中取客户端IP：X-Forwarded-For的第一个地址，其次X-Real-IP
+     */
+    public static String clientIp(Map<String, String> headers) {
+        String realIp = null;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            String value = entry.getValue();
+            if (value == null || value.isEmpty() || "unknown".equalsIgnoreCase(value)) {
+                continue;
+            }
+            if ("X-Forwarded-For".equalsIgnoreCase(entry.getKey())) {
+                return value.split(",")[0].trim();
+            }
+            if ("X-Real-IP".equalsIgnoreCase(entry.getKey())) {
+                realIp = value.trim();
+            }
+        }
+        return realIp;
+    }
+
+    public ClientSubnetMapping createMapping(ClientSubnetMapping mapping) {
+        validateMapping(mapping);
+        if (clientSubnetMappingRepository.existsByCidr(mapping.getCidr().trim())) {
+            throw new IllegalArgumentException("网段已存在: " + mapping.getCidr());
+        }
+        mapping.setCidr(mapping.getCidr().trim());
+        mapping.setRouteGroup(mapping.getRouteGroup().trim());
+        ClientSubnetMapping saved = clientSubnetMappingRepository.save(mapping);
+        reload();
+        return saved;
+    }
+
+    public void deleteMapping(Long id) {
+        if (!clientSubnetMappingRepository.existsById(id)) {
+            throw new IllegalArgumentException("网段映射不存在: ID=" + id);
+        }
+        clientSubnetMappingRepository.deleteById(id);
+        reload();
+    }
+
+    public List<ClientSubnetMapping> getAllMappings() {
+        return clientSubnetMappingRepository.findAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("prefixes", trie.size());
+        stats.put("matched", matched.get());
+        stats.put("unmatched", unmatched.get());
+        return stats;
+    }
+
+    private void validateMapping(ClientSubnetMapping mapping) {
+        if (mapping.getCidr() == null || mapping.getCidr().trim().isEmpty()) {
+            throw new IllegalArgumentException("网段不能为空");
+        }
+        if (mapping.getRouteGroup() == null || mapping.getRouteGroup().trim().isEmpty()) {
+            throw new IllegalArgumentException("线路组不能为空");
+        }
+        // 按字典树的规则校验CIDR格式
+        IpPrefixTrie.<String>builder().add(mapping.getCidr(), mapping.getRouteGroup());
+    }
+}
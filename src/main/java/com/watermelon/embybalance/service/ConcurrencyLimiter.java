@@ -0,0 +1,62 @@
+package com.watermelon.embybalance.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于信号量的并发限制器
+ * 在虚拟线程下请求线程不再是稀缺资源，由它限制同时访问SQLite或Emby上游的阻塞调用数量
+ */
+public class ConcurrencyLimiter {
+
+    private final String name;
+    private final int maxConcurrent;
+    private final long acquireTimeoutMs;
+    private final Semaphore semaphore;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ConcurrencyLimiter(String name, int maxConcurrent, long acquireTimeoutMs) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.semaphore = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * 在许可范围内执行调用，等待超时则抛出IllegalStateException
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        if (!semaphore.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException(name + "并发已满，等待超时");
+        }
+        try {
+            return callable.call();
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * 在许可范围内执行无返回值的调用
+     */
+    public void run(Runnable runnable) throws Exception {
+        call(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("inUse", maxConcurrent - semaphore.availablePermits());
+        stats.put("waiting", semaphore.getQueueLength());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+}
@@ -4,15 +4,16 @@ import com.watermelon.embybalance.entity.DownloadRoute;
 import com.watermelon.embybalance.repository.DownloadRouteRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.Random;
+import java.util.OptionalLong;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Service
 @RequiredArgsConstructor
@@ -21,6 +22,12 @@ public class DownloadRouteService {
     
     private final DownloadRouteRepository downloadRouteRepository;
     private final DownloadStatisticsService downloadStatisticsService;
+    private final RouteRegistry routeRegistry;
+    private final RouteLoadTracker routeLoadTracker;
+    private final RouteAdmissionController routeAdmissionController;
+    
+    @Value("${app.route.selection.algorithm:performance}")
+    private String selectionAlgorithm;
     
     /**
      * 获取所有下载线路
@@ -50,7 +57,9 @@ public class DownloadRouteService {
         validateRoute(route);
         
         log.info("创建新的下载线路: {}", route.getFullUrl());
-        return downloadRouteRepository.save(route);
+        DownloadRoute savedRoute = downloadRouteRepository.save(route);
+        routeRegistry.refresh();
+        return savedRoute;
     }
     
     /**
@@ -71,9 +80,15 @@ public class DownloadRouteService {
                     existingRoute.setDomain(updatedRoute.getDomain());
                     existingRoute.setProtocol(updatedRoute.getProtocol());
                     existingRoute.setPort(updatedRoute.getPort());
+                    existingRoute.setMaxConcurrentStreams(updatedRoute.getMaxConcurrentStreams());
+                    existingRoute.setMaxBandwidthMbps(updatedRoute.getMaxBandwidthMbps());
+                    existingRoute.setRouteGroup(updatedRoute.getRouteGroup() != null && !updatedRoute.getRouteGroup().isBlank()
+                            ? updatedRoute.getRouteGroup().trim() : null);
                     
                     log.info("更新下载线路: ID={}, URL={}", id, existingRoute.getFullUrl());
-                    return downloadRouteRepository.save(existingRoute);
+                    DownloadRoute savedRoute = downloadRouteRepository.save(existingRoute);
+                    routeRegistry.refresh();
+                    return savedRoute;
                 })
                 .orElseThrow(() -> new IllegalArgumentException("下载线路不存在: ID=" + id));
     }
@@ -89,6 +104,7 @@ public class DownloadRouteService {
         
         log.info("删除下载线路: ID={}", id);
         downloadRouteRepository.deleteById(id);
+        routeRegistry.refresh();
     }
     
     /**
@@ -105,119 +121,179 @@ public class DownloadRouteService {
         return downloadRouteRepository.findByProtocol(protocol);
     }
     
+    /**
+     * 按配置的选择算法为媒体文件选择下载线路，选中的线路计入一次进行中下载
+     * weight：按权重随机；performance：按性能评分随机；rendezvous：按媒体路径做一致性哈希，同一文件固定走同一线路；
+     * least-loaded：随机取两条线路，选按容量折算后进行中下载较少的一条。
+     * 给出线路组且该组有可用线路时只在组内选择；选中的线路已达并发或带宽上限时分流到下一条线路
+     *
+     * 只跳过已满载的线路，不占用准入租约，用于PlaybackInfo改写（客户端不一定播放）
+     *
+     * @param bitrate    媒体源码率（bit/s），用于判断带宽容量，未知时为null
+     * @param routeGroup 客户端网段对应的优先线路组，没有时为null
+     * @throws RouteCapacityExceededException 所有可用线路都已满载
+     */
+    public Optional<DownloadRoute> selectRoute(String mediaPath, Long bitrate, String routeGroup) {
+        return select(mediaPath, bitrate, routeGroup, false).map(RouteLease::route);
+    }
+    
+    /**
+     * 与selectRoute相同，但在选中的线路上占用准入租约，用于实际下发下载地址（302跳转）。
+     * 租约ID需要随下载地址下发，下载统计记录回传后释放
+     *
+     * @throws RouteCapacityExceededException 所有可用线路都已满载
+     */
+    public Optional<RouteLease> reserveRoute(String mediaPath, Long bitrate, String routeGroup) {
+        return select(mediaPath, bitrate, routeGroup, true);
+    }
+    
+    private Optional<RouteLease> select(String mediaPath, Long bitrate, String routeGroup, boolean reserve) {
+        RouteRegistry.Snapshot snapshot = routeRegistry.snapshot().forGroup(routeGroup);
+        Optional<DownloadRoute> selected = switch (selectionAlgorithm) {
+            case "weight" -> selectRouteByWeight(snapshot);
+            case "rendezvous" -> selectRouteByRendezvous(snapshot, mediaPath);
+            case "least-loaded" -> selectRouteByLeastLoaded(snapshot);
+            default -> selectRouteByPerformance(snapshot);
+        };
+        if (selected.isEmpty()) {
+            return Optional.empty();
+        }
+        RouteLease lease = admit(selected.get(), mediaPath, bitrate, reserve);
+        routeLoadTracker.onIssued(lease.route().getId());
+        return Optional.of(lease);
+    }
+    
+    /**
+     * 在选中的线路上准入，满载时按分流顺序尝试其他可用线路
+     */
+    private RouteLease admit(DownloadRoute selected, String mediaPath, Long bitrate, boolean reserve) {
+        OptionalLong leaseId = admits(selected, bitrate, reserve);
+        if (leaseId.isPresent()) {
+            return new RouteLease(selected, leaseId.getAsLong());
+        }
+        RouteRegistry.Snapshot snapshot = routeRegistry.snapshot();
+        for (int index : snapshot.spilloverOrder(selected.getId(), "rendezvous".equals(selectionAlgorithm) ? mediaPath : null)) {
+            DownloadRoute candidate = snapshot.route(index);
+            leaseId = admits(candidate, bitrate, reserve);
+            if (leaseId.isPresent()) {
+                log.info("线路已满载，分流: {} -> {}", selected.getFullUrl(), candidate.getFullUrl());
+                return new RouteLease(candidate, leaseId.getAsLong());
+            }
+        }
+        log.warn("所有下载线路均已满载，拒绝分配: {}", mediaPath);
+        throw new RouteCapacityExceededException("所有下载线路均已满载，请稍后重试");
+    }
+    
+    private OptionalLong admits(DownloadRoute route, Long bitrate, boolean reserve) {
+        if (reserve) {
+            return routeAdmissionController.tryAdmit(route, bitrate);
+        }
+        return routeAdmissionController.hasCapacity(route, bitrate)
+                ? OptionalLong.of(RouteAdmissionController.NO_LEASE) : OptionalLong.empty();
+    }
+    
+    /**
+     * 选中的线路及其准入租约ID，没有占用租约时为RouteAdmissionController.NO_LEASE
+     */
+    public record RouteLease(DownloadRoute route, long leaseId) {
+    }
+    
     /**
      * 根据权重随机选择一个下载线路
      */
     public Optional<DownloadRoute> selectRouteByWeight() {
-        List<DownloadRoute> routes = getAllRoutes();
-        if (routes.isEmpty()) {
+        return selectRouteByWeight(routeRegistry.snapshot());
+    }
+    
+    private Optional<DownloadRoute> selectRouteByWeight(RouteRegistry.Snapshot snapshot) {
+        int totalWeight = snapshot.totalWeight();
+        if (totalWeight <= 0) {
             return Optional.empty();
         }
         
-        // 计算总权重
-        int totalWeight = routes.stream()
-                .mapToInt(DownloadRoute::getWeight)
-                .sum();
-        
-        if (totalWeight == 0) {
+        int index = snapshot.indexByWeight(ThreadLocalRandom.current().nextInt(totalWeight));
+        if (index < 0) {
             return Optional.empty();
         }
         
-        // 生成随机数
-        Random random = new Random();
-        int randomWeight = random.nextInt(totalWeight);
-        
-        // 根据权重选择线路
-        int currentWeight = 0;
-        for (DownloadRoute route : routes) {
-            currentWeight += route.getWeight();
-            if (randomWeight < currentWeight) {
-                log.info("根据权重选择线路: {} (权重: {})", route.getFullUrl(), route.getWeight());
-                return Optional.of(route);
-            }
-        }
-        
-        // 如果没有选中任何线路，返回第一个
-        return Optional.empty();
+        DownloadRoute route = snapshot.route(index);
+        log.debug("根据权重选择线路: {} (权重: {})", route.getFullUrl(), route.getWeight());
+        return Optional.of(route);
     }
     
     /**
      * 基于性能统计智能选择下载线路
-     * 优先选择带宽高、响应时间短、成功率高的线路
+     * 优先选择带宽高、响应时间短、成功率高的线路，评分由{@link RouteRegistry}预先计算
      */
     public Optional<DownloadRoute> selectRouteByPerformance() {
-        List<DownloadRoute> routes = getAllRoutes();
-        if (routes.isEmpty()) {
+        return selectRouteByPerformance(routeRegistry.snapshot());
+    }
+    
+    private Optional<DownloadRoute> selectRouteByPerformance(RouteRegistry.Snapshot snapshot) {
+        if (snapshot.isEmpty()) {
             return Optional.empty();
         }
         
-        // 获取所有线路的性能统计
-        List<Map<String, Object>> performanceStats = downloadStatisticsService.getAllRoutePerformanceStatistics();
-        Map<Long, Map<String, Object>> statsMap = performanceStats.stream()
-                .collect(Collectors.toMap(
-                    stats -> (Long) stats.get("routeId"),
-                    stats -> stats
-                ));
-        
-        // 计算每个线路的综合评分
-        Map<DownloadRoute, Double> routeScores = routes.stream()
-                .collect(Collectors.toMap(
-                    route -> route,
-                    route -> {
-                        Map<String, Object> stats = statsMap.get(route.getId());
-                        if (stats == null || (Long) stats.get("totalRequests") < 5) {
-                            // 如果没有足够的统计数据，使用基础权重
-                            return route.getWeight().doubleValue();
-                        }
-                        
-                        // 计算性能评分
-                        Double avgBandwidth = (Double) stats.get("avgBandwidth");
-                        Double avgResponseTime = (Double) stats.get("avgResponseTime");
-                        Double successRate = (Double) stats.get("successRate");
-                        
-                        // 标准化处理并计算综合评分
-                        double bandwidthScore = Math.min(avgBandwidth / 10.0, 1.0) * 100;
-                        double responseTimeScore = Math.max(0, 100 - (avgResponseTime / 100.0));
-                        double successRateScore = successRate;
-                        
-                        // 加权计算：带宽40% + 响应时间30% + 成功率30%
-                        double performanceScore = (bandwidthScore * 0.4) + (responseTimeScore * 0.3) + (successRateScore * 0.3);
-                        
-                        // 结合原始权重
-                        return performanceScore * (route.getWeight() / 100.0);
-                    }
-                ));
-        
         // 使用加权随机选择，性能好的线路被选中概率更高
-        double totalScore = routeScores.values().stream().mapToDouble(Double::doubleValue).sum();
+        double totalScore = snapshot.totalScore();
         if (totalScore <= 0) {
             // 如果所有评分都为0，回退到基于权重的选择
-            return selectRouteByWeight();
+            return selectRouteByWeight(snapshot);
         }
         
-        Random random = new Random();
-        double randomScore = random.nextDouble() * totalScore;
+        int index = snapshot.indexByScore(ThreadLocalRandom.current().nextDouble() * totalScore);
+        if (index < 0) {
+            // 如果没有选中任何线路，返回评分最高的
+            index = snapshot.bestIndex();
+        }
         
-        double currentScore = 0;
-        for (Map.Entry<DownloadRoute, Double> entry : routeScores.entrySet()) {
-            currentScore += entry.getValue();
-            if (randomScore <= currentScore) {
-                DownloadRoute selectedRoute = entry.getKey();
-                log.info("基于性能选择线路: {} (评分: {:.2f})", selectedRoute.getFullUrl(), entry.getValue());
-                return Optional.of(selectedRoute);
-            }
+        DownloadRoute selectedRoute = snapshot.route(index);
+        log.debug("基于性能选择线路: {} (评分: {})", selectedRoute.getFullUrl(), snapshot.score(index));
+        return Optional.of(selectedRoute);
+    }
+    
+    /**
+     * 两次随机选择：随机取两条可用线路，选进行中下载数除以容量较小的一条
+     * 容量来自性能评分，避免所有请求都涌向过去24小时评分最高的线路
+     */
+    public Optional<DownloadRoute> selectRouteByLeastLoaded() {
+        return selectRouteByLeastLoaded(routeRegistry.snapshot());
+    }
+    
+    private Optional<DownloadRoute> selectRouteByLeastLoaded(RouteRegistry.Snapshot snapshot) {
+        int index = snapshot.indexByTwoChoices(route -> routeLoadTracker.inFlight(route.getId()));
+        if (index < 0) {
+            return Optional.empty();
+        }
+        
+        DownloadRoute route = snapshot.route(index);
+        log.debug("按负载选择线路: {} (进行中: {})", route.getFullUrl(), routeLoadTracker.inFlight(route.getId()));
+        return Optional.of(route);
+    }
+    
+    /**
+     * 按媒体路径做加权Rendezvous哈希选择下载线路
+     * 同一文件稳定落在同一线路上，提高下载节点本地磁盘缓存的命中率；线路增删时只有该线路上的文件迁移
+     */
+    public Optional<DownloadRoute> selectRouteByRendezvous(String mediaPath) {
+        return selectRouteByRendezvous(routeRegistry.snapshot(), mediaPath);
+    }
+    
+    private Optional<DownloadRoute> selectRouteByRendezvous(RouteRegistry.Snapshot snapshot, String mediaPath) {
+        int index = snapshot.indexByRendezvous(mediaPath);
+        if (index < 0) {
+            return Optional.empty();
         }
         
-        // 如果没有选中任何线路，返回评分最高的
-        return routeScores.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey);
+        DownloadRoute route = snapshot.route(index);
+        log.debug("按媒体路径哈希选择线路: {} -> {}", mediaPath, route.getFullUrl());
+        return Optional.of(route);
     }
     
     /**
-     * 获取线路性能报告
+     * 获取线路最近指定小时数的性能报告，含逐小时统计
      */
-    public Map<String, Object> getRoutePerformanceReport(Long routeId) {
+    public Map<String, Object> getRoutePerformanceReport(Long routeId, int hours) {
         Map<String, Object> report = new HashMap<>();
         
         Optional<DownloadRoute> routeOpt = getRouteById(routeId);
@@ -226,29 +302,35 @@ public class DownloadRouteService {
         }
         
         DownloadRoute route = routeOpt.get();
+        RoutePerformanceWindow.Window window = downloadStatisticsService.getRouteWindow(routeId, hours);
         report.put("route", route);
-        report.put("avgBandwidth", downloadStatisticsService.getAverageBandwidth(routeId));
-        report.put("avgResponseTime", downloadStatisticsService.getAverageResponseTime(routeId));
-        report.put("successRate", downloadStatisticsService.getSuccessRate(routeId));
-        report.put("performanceScore", downloadStatisticsService.calculateRouteScore(routeId));
+        report.put("hours", hours);
+        report.put("avgBandwidth", window.avgSuccessBandwidth());
+        report.put("avgResponseTime", window.avgSuccessResponseTime());
+        report.put("successRate", window.successRate());
+        report.put("totalRequests", window.requests());
+        report.put("performanceScore", downloadStatisticsService.calculateRouteScore(window));
+        report.put("hourly", downloadStatisticsService.getRouteHourlyTrend(routeId, hours));
         
         return report;
     }
     
     /**
-     * 获取所有线路的性能排名
+     * 获取所有线路最近指定小时数的性能排名
      */
-    public List<Map<String, Object>> getRoutePerformanceRanking() {
+    public List<Map<String, Object>> getRoutePerformanceRanking(int hours) {
         List<DownloadRoute> routes = getAllRoutes();
+        Map<Long, RoutePerformanceWindow.Window> windows = downloadStatisticsService.getRouteWindows(hours);
         
         return routes.stream()
                 .map(route -> {
+                    RoutePerformanceWindow.Window window = windows.getOrDefault(route.getId(), RoutePerformanceWindow.Window.EMPTY);
                     Map<String, Object> routeInfo = new HashMap<>();
                     routeInfo.put("route", route);
-                    routeInfo.put("avgBandwidth", downloadStatisticsService.getAverageBandwidth(route.getId()));
-                    routeInfo.put("avgResponseTime", downloadStatisticsService.getAverageResponseTime(route.getId()));
-                    routeInfo.put("successRate", downloadStatisticsService.getSuccessRate(route.getId()));
-                    routeInfo.put("performanceScore", downloadStatisticsService.calculateRouteScore(route.getId()));
+                    routeInfo.put("avgBandwidth", window.avgSuccessBandwidth());
+                    routeInfo.put("avgResponseTime", window.avgSuccessResponseTime());
+                    routeInfo.put("successRate", window.successRate());
+                    routeInfo.put("performanceScore", downloadStatisticsService.calculateRouteScore(window));
                     return routeInfo;
                 })
                 .sorted((a, b) -> Double.compare(
@@ -277,5 +359,13 @@ public class DownloadRouteService {
         if (route.getWeight() == null || route.getWeight() < 1 || route.getWeight() > 100) {
             throw new IllegalArgumentException("权重必须在1-100之间");
         }
+        
+        if (route.getMaxConcurrentStreams() != null && route.getMaxConcurrentStreams() < 1) {
+            throw new IllegalArgumentException("最大并发下载数必须大于0");
+        }
+        
+        if (route.getMaxBandwidthMbps() != null && route.getMaxBandwidthMbps() < 1) {
+            throw new IllegalArgumentException("最大带宽必须大于0");
+        }
     }
 }
\ No newline at end of file
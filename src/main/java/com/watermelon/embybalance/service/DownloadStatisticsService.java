@@ -4,11 +4,10 @@ import com.watermelon.embybalance.entity.DownloadStatistics;
 import com.watermelon.embybalance.repository.DownloadStatisticsRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,90 +17,170 @@ import java.util.Map;
 @Slf4j
 public class DownloadStatisticsService {
     
+    private static final int WINDOW_MINUTES = 24 * 60;
+    
     private final DownloadStatisticsRepository statisticsRepository;
+    private final RouteLoadTracker routeLoadTracker;
+    private final RouteAdmissionController routeAdmissionController;
+    private final RoutePerformanceWindow routePerformanceWindow;
+    private final RouteStatisticsRollupService routeStatisticsRollupService;
+    private final StatisticsIngestPipeline statisticsIngestPipeline;
     
     /**
-     * 异步记录下载统计信息
+     * 记录下载统计信息
+     * 校验后提交到写入队列，由写线程批量入库后计入内存性能窗口
+     *
+     * @param leaseId 下载地址中的准入租约ID，PlaybackInfo改写的地址没有租约时为null
+     * @return 记录无效或按写入队列的溢出策略被丢弃时返回false
      */
-    @Async
-    @Transactional
-    public void recordDownloadStatistics(Long routeId, String clientIp, String filePath, 
-                                        Long downloadSize, Long downloadDuration, 
-                                        Long responseTime, Boolean success, String userAgent) {
-        try {
-            DownloadStatistics statistics = new DownloadStatistics();
-            statistics.setRouteId(routeId);
-            statistics.setClientIp(clientIp);
-            statistics.setFilePath(filePath);
-            statistics.setDownloadSize(downloadSize);
-            statistics.setDownloadDuration(downloadDuration);
-            statistics.setResponseTime(responseTime);
-            statistics.setSuccess(success);
-            statistics.setUserAgent(userAgent);
-            
-            // 计算带宽会在@PrePersist中自动执行
-            statisticsRepository.save(statistics);
-            
-            log.info("记录下载统计: 线路ID={}, 客户端IP={}, 带宽={:.2f}MB/s, 成功={}", 
-                    routeId, clientIp, statistics.getBandwidth(), success);
-        } catch (Exception e) {
-            log.error("记录下载统计失败", e);
+    public boolean recordDownloadStatistics(Long routeId, String clientIp, String filePath, 
+                                           Long downloadSize, Long downloadDuration, 
+                                           Long responseTime, Boolean success, String userAgent, Long leaseId) {
+        if (routeId == null || clientIp == null) {
+            if (routeId != null) {
+                routeLoadTracker.onCompleted(routeId);
+                routeAdmissionController.release(routeId, leaseId);
+            }
+            log.warn("下载统计缺少线路ID或客户端IP，已忽略");
+            return false;
         }
+        
+        DownloadStatistics statistics = new DownloadStatistics();
+        statistics.setRouteId(routeId);
+        statistics.setClientIp(clientIp);
+        statistics.setFilePath(filePath);
+        statistics.setDownloadSize(downloadSize != null ? downloadSize : 0L);
+        statistics.setDownloadDuration(downloadDuration != null ? downloadDuration : 0L);
+        statistics.setResponseTime(responseTime != null ? responseTime : 0L);
+        statistics.setSuccess(Boolean.TRUE.equals(success));
+        statistics.setUserAgent(userAgent);
+        statistics.setLeaseId(leaseId);
+        
+        boolean accepted = recordDownloadStatistics(statistics, false);
+        log.debug("记录下载统计: 线路ID={}, 客户端IP={}, 带宽={}MB/s, 成功={}, 接收={}", 
+                routeId, clientIp, String.format("%.2f", statistics.getBandwidth()), success, accepted);
+        return accepted;
+    }
+    
+    /**
+     * 记录一条刚结束的下载（单条上报、nginx日志跟踪、syslog），未设置时间时使用当前时间
+     * 同时结束该线路的一个进行中下载，记录带有租约ID时释放该准入租约
+     *
+     * @param waitForSpace 为true时写入队列满时等待而不按溢出策略丢弃
+     */
+    public boolean recordDownloadStatistics(DownloadStatistics statistics, boolean waitForSpace) {
+        // 下载已结束，不再计入该线路的进行中下载
+        routeLoadTracker.onCompleted(statistics.getRouteId());
+        routeAdmissionController.release(statistics.getRouteId(), statistics.getLeaseId());
+        return submit(statistics, waitForSpace);
     }
     
     /**
-     * 获取指定线路的平均带宽（最近24小时）
+     * 导入一条历史下载统计（批量导入、归档重新导入），写入队列满时等待
+     * 这些下载早已结束，不影响线路当前的进行中下载数和准入租约
+     */
+    public boolean importDownloadStatistics(DownloadStatistics statistics) {
+        return submit(statistics, true);
+    }
+    
+    private boolean submit(DownloadStatistics statistics, boolean waitForSpace) {
+        if (statistics.getCreatedAt() == null) {
+            statistics.setCreatedAt(LocalDateTime.now());
+        }
+        statistics.calculateBandwidth();
+        return waitForSpace ? statisticsIngestPipeline.submitAndWait(statistics) : statisticsIngestPipeline.submit(statistics);
+    }
+    
+    /**
+     * 获取指定线路的平均带宽（最近24小时，成功的下载）
      */
     public Double getAverageBandwidth(Long routeId) {
-        LocalDateTime startTime = LocalDateTime.now().minusHours(24);
-        Double avgBandwidth = statisticsRepository.calculateAverageBandwidthByRoute(routeId, startTime);
-        return avgBandwidth != null ? avgBandwidth : 0.0;
+        return routePerformanceWindow.window(routeId, WINDOW_MINUTES).avgSuccessBandwidth();
     }
     
     /**
-     * 获取指定线路的平均响应时间（最近24小时）
+     * 获取指定线路的平均响应时间（最近24小时，成功的下载）
      */
     public Double getAverageResponseTime(Long routeId) {
-        LocalDateTime startTime = LocalDateTime.now().minusHours(24);
-        Double avgResponseTime = statisticsRepository.calculateAverageResponseTimeByRoute(routeId, startTime);
-        return avgResponseTime != null ? avgResponseTime : 0.0;
+        return routePerformanceWindow.window(routeId, WINDOW_MINUTES).avgSuccessResponseTime();
     }
     
     /**
      * 获取指定线路的成功率（最近24小时）
      */
     public Double getSuccessRate(Long routeId) {
-        LocalDateTime startTime = LocalDateTime.now().minusHours(24);
-        Double successRate = statisticsRepository.calculateSuccessRateByRoute(routeId, startTime);
-        return successRate != null ? successRate : 0.0;
+        return routePerformanceWindow.window(routeId, WINDOW_MINUTES).successRate();
     }
     
     /**
-     * 获取所有线路的性能统计
+     * 获取所有线路的性能统计（最近24小时），由内存滑动窗口计算，按平均带宽降序
      */
     public List<Map<String, Object>> getAllRoutePerformanceStatistics() {
-        LocalDateTime startTime = LocalDateTime.now().minusHours(24);
-        List<Object[]> results = statisticsRepository.getRoutePerformanceStatistics(startTime);
-        
-        return results.stream().map(result -> {
-            Map<String, Object> stats = new HashMap<>();
-            stats.put("routeId", result[0]);
-            stats.put("avgBandwidth", result[1] != null ? result[1] : 0.0);
-            stats.put("avgResponseTime", result[2] != null ? result[2] : 0.0);
-            stats.put("successRate", result[3] != null ? result[3] : 0.0);
-            stats.put("totalRequests", result[4] != null ? result[4] : 0L);
-            return stats;
-        }).toList();
+        return getAllRoutePerformanceStatistics(24);
     }
     
     /**
-     * 计算线路的综合性能评分
-     * 评分算法：带宽权重40% + 响应时间权重30% + 成功率权重30%
+     * 获取所有线路最近指定小时数的性能统计，按平均带宽降序
+     */
+    public List<Map<String, Object>> getAllRoutePerformanceStatistics(int hours) {
+        return getRouteWindows(hours).entrySet().stream()
+                .sorted(Comparator.comparingDouble(
+                        (Map.Entry<Long, RoutePerformanceWindow.Window> entry) -> entry.getValue().avgBandwidth()).reversed())
+                .map(entry -> {
+                    RoutePerformanceWindow.Window window = entry.getValue();
+                    Map<String, Object> stats = new HashMap<>();
+                    stats.put("routeId", entry.getKey());
+                    stats.put("avgBandwidth", window.avgBandwidth());
+                    stats.put("avgResponseTime", window.avgResponseTime());
+                    stats.put("successRate", window.successRate());
+                    stats.put("totalRequests", window.requests());
+                    return stats;
+                }).toList();
+    }
+    
+    /**
+     * 所有线路最近指定小时数的汇总
+     * 24小时以内由内存滑动窗口计算，更长的时间范围按小时聚合表汇总（不含尚未聚合的最近一分钟左右的统计）
+     */
+    public Map<Long, RoutePerformanceWindow.Window> getRouteWindows(int hours) {
+        if (hours <= 24) {
+            return routePerformanceWindow.windows(hours * 60);
+        }
+        return routeStatisticsRollupService.hourWindows(LocalDateTime.now().minusHours(hours));
+    }
+    
+    /**
+     * 指定线路最近指定小时数的汇总
+     */
+    public RoutePerformanceWindow.Window getRouteWindow(Long routeId, int hours) {
+        if (hours <= 24) {
+            return routePerformanceWindow.window(routeId, hours * 60);
+        }
+        return getRouteWindows(hours).getOrDefault(routeId, RoutePerformanceWindow.Window.EMPTY);
+    }
+    
+    /**
+     * 指定线路最近指定小时数的逐小时统计，来自小时聚合表
+     */
+    public List<Map<String, Object>> getRouteHourlyTrend(Long routeId, int hours) {
+        return routeStatisticsRollupService.hourlyTrend(routeId, LocalDateTime.now().minusHours(hours));
+    }
+    
+    /**
+     * 计算线路的综合性能评分（最近24小时）
      */
     public Double calculateRouteScore(Long routeId) {
-        Double avgBandwidth = getAverageBandwidth(routeId);
-        Double avgResponseTime = getAverageResponseTime(routeId);
-        Double successRate = getSuccessRate(routeId);
+        return calculateRouteScore(routePerformanceWindow.window(routeId, WINDOW_MINUTES));
+    }
+    
+    /**
+     * 计算综合性能评分
+     * 评分算法：带宽权重40% + 响应时间权重30% + 成功率权重30%
+     */
+    public Double calculateRouteScore(RoutePerformanceWindow.Window window) {
+        double avgBandwidth = window.avgSuccessBandwidth();
+        double avgResponseTime = window.avgSuccessResponseTime();
+        double successRate = window.successRate();
         
         // 标准化处理
         double bandwidthScore = Math.min(avgBandwidth / 10.0, 1.0) * 100; // 假设10MB/s为满分
@@ -109,12 +188,7 @@ public class DownloadStatisticsService {
         double successRateScore = successRate;
         
         // 加权计算
-        double totalScore = (bandwidthScore * 0.4) + (responseTimeScore * 0.3) + (successRateScore * 0.3);
-        
-        log.debug("线路{}性能评分: 带宽={:.2f}, 响应时间={:.2f}, 成功率={:.2f}, 总分={:.2f}", 
-                routeId, bandwidthScore, responseTimeScore, successRateScore, totalScore);
-        
-        return totalScore;
+        return (bandwidthScore * 0.4) + (responseTimeScore * 0.3) + (successRateScore * 0.3);
     }
     
     /**
@@ -127,20 +201,6 @@ public class DownloadStatisticsService {
                 .toList();
     }
     
-    /**
-     * 清理过期的统计数据（保留最近7天的数据）
-     */
-    @Transactional
-    public void cleanupOldStatistics() {
-        LocalDateTime cutoffTime = LocalDateTime.now().minusDays(7);
-        try {
-            statisticsRepository.deleteByCreatedAtBefore(cutoffTime);
-            log.info("清理了{}之前的统计数据", cutoffTime);
-        } catch (Exception e) {
-            log.error("清理统计数据失败", e);
-        }
-    }
-    
     /**
      * 检查客户端是否频繁下载（防止滥用）
      */
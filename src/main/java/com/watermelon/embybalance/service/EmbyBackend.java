@@ -0,0 +1,97 @@
+package com.watermelon.embybalance.service;
+
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个上游Emby实例的运行状态
+ * 进行中请求数、连续失败、摘除和慢启动状态，以及该实例的延迟直方图
+ */
+public class EmbyBackend {
+
+    @Getter
+    private final String url;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger ejections = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private volatile long ejectedUntil;
+
+    public EmbyBackend(String url) {
+        // 去掉末尾斜杠，调用方直接拼接路径
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    public boolean isEjected(long now) {
+        return now < ejectedUntil;
+    }
+
+    /**
+     * 慢启动系数：摘除结束后在slowStartMs内从0.1线性升到1
+     */
+    public double weightFactor(long now, long slowStartMs) {
+        long sinceRecovered = now - ejectedUntil;
+        if (ejectedUntil == 0 || slowStartMs <= 0 || sinceRecovered >= slowStartMs) {
+            return 1.0;
+        }
+        return Math.max(0.1, (double) sinceRecovered / slowStartMs);
+    }
+
+    void onAcquire() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    /**
+     * 记录一次请求的结果，连续失败达到阈值时摘除，摘除时长随摘除次数递增
+     */
+    void onRelease(long latencyMs, boolean success, int ejectionThreshold, long baseEjectionMs, long maxEjectionMs) {
+        outstanding.decrementAndGet();
+        if (success) {
+            latency.record(latencyMs);
+            consecutiveFailures.set(0);
+            return;
+        }
+        failures.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= ejectionThreshold) {
+            consecutiveFailures.set(0);
+            long ejectionMs = Math.min(maxEjectionMs, baseEjectionMs * ejections.incrementAndGet());
+            ejectedUntil = System.currentTimeMillis() + ejectionMs;
+        }
+    }
+
+    void onAbandon() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * 持续健康后逐步降低摘除时长的递增倍数
+     */
+    void decayEjections() {
+        ejections.updateAndGet(count -> Math.max(0, count - 1));
+    }
+
+    public Map<String, Object> getStatistics(long now, long slowStartMs) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("outstanding", outstanding.get());
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        stats.put("ejected", isEjected(now));
+        stats.put("ejections", ejections.get());
+        stats.put("weightFactor", weightFactor(now, slowStartMs));
+        stats.put("latency", latency.getStatistics());
+        return stats;
+    }
+}
@@ -0,0 +1,118 @@
+package com.watermelon.embybalance.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 上游Emby实例池
+ * 按最少进行中请求选择实例（进行中请求数除以慢启动系数），连续失败的实例被动摘除一段时间，
+ * 摘除结束后在慢启动期内逐步恢复流量；所有实例都被摘除时退化为在全部实例中选择
+ */
+@Component
+@Slf4j
+public class EmbyBackendPool {
+
+    private final List<EmbyBackend> backends;
+
+    @Value("${app.emby.backends.ejection.consecutive-failures:3}")
+    private int ejectionThreshold;
+
+    @Value("${app.emby.backends.ejection.base-ms:30000}")
+    private long baseEjectionMs;
+
+    @Value("${app.emby.backends.ejection.max-ms:300000}")
+    private long maxEjectionMs;
+
+    @Value("${app.emby.backends.slow-start-ms:30000}")
+    private long slowStartMs;
+
+    public EmbyBackendPool(@Value("${emby.server.urls:${emby.server.url}}") List<String> urls) {
+        this.backends = urls.stream()
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .distinct()
+                .map(EmbyBackend::new)
+                .toList();
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("至少需要配置一个Emby服务器地址");
+        }
+        log.info("上游Emby实例: {}", backends.stream().map(EmbyBackend::getUrl).toList());
+    }
+
+    /**
+     * 选择一个实例并计入进行中请求，调用结束后必须release
+     * 对冲请求发出时首个请求仍计在原实例上，因此自然会发往另一个实例
+     */
+    public EmbyBackend acquire() {
+        EmbyBackend selected = select(false);
+        if (selected == null) {
+            selected = select(true);
+        }
+        selected.onAcquire();
+        return selected;
+    }
+
+    public void release(EmbyBackend backend, long latencyMs, boolean success) {
+        boolean wasEjected = backend.isEjected(System.currentTimeMillis());
+        backend.onRelease(latencyMs, success, ejectionThreshold, baseEjectionMs, maxEjectionMs);
+        if (!wasEjected && backend.isEjected(System.currentTimeMillis())) {
+            log.warn("Emby实例连续失败，暂时摘除: {}", backend.getUrl());
+        }
+    }
+
+    /**
+     * 请求未到达上游（本地限流拒绝）或被自己取消时只归还进行中计数，不计入成败
+     */
+    public void release(EmbyBackend backend) {
+        backend.onAbandon();
+    }
+
+    public List<EmbyBackend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * 定期衰减摘除次数，长期健康的实例再次失败时从基础摘除时长开始
+     */
+    @Scheduled(fixedDelayString = "${app.emby.backends.ejection.decay-interval-ms:300000}")
+    public void decayEjections() {
+        long now = System.currentTimeMillis();
+        backends.stream().filter(backend -> !backend.isEjected(now)).forEach(EmbyBackend::decayEjections);
+    }
+
+    public Map<String, Map<String, Object>> getStatistics() {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        backends.forEach(backend -> stats.put(backend.getUrl(), backend.getStatistics(now, slowStartMs)));
+        return stats;
+    }
+
+    private EmbyBackend select(boolean includeEjected) {
+        long now = System.currentTimeMillis();
+        EmbyBackend best = null;
+        double bestScore = Double.MAX_VALUE;
+        int ties = 0;
+        for (EmbyBackend backend : backends) {
+            if (!includeEjected && backend.isEjected(now)) {
+                continue;
+            }
+            double score = (backend.outstanding() + 1) / backend.weightFactor(now, slowStartMs);
+            if (score < bestScore) {
+                best = backend;
+                bestScore = score;
+                ties = 1;
+            } else if (score == bestScore && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                // 得分相同时等概率随机选择，避免总是压到第一个实例
+                best = backend;
+            }
+        }
+        return best;
+    }
+}
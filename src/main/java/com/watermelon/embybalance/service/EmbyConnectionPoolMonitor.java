@@ -0,0 +1,97 @@
+package com.watermelon.embybalance.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Emby上游连接池监控
+ * 接收Reactor Netty连接池注册的指标，提供连接池占用情况，并在启动时预热连接
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class EmbyConnectionPoolMonitor implements ConnectionProvider.MeterRegistrar {
+
+    private static final Duration PREWARM_TIMEOUT = Duration.ofSeconds(10);
+
+    private final ObjectProvider<HttpClient> embyHttpClient;
+    private final EmbyBackendPool embyBackendPool;
+
+    private final Map<String, ConnectionPoolMetrics> pools = new ConcurrentHashMap<>();
+
+    @Value("${app.emby.client.prewarm-connections:4}")
+    private int prewarmConnections;
+
+    @Override
+    public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+        log.info("Emby上游连接池已创建: {} -> {}", poolName, remoteAddress);
+        pools.put(poolName + "@" + remoteAddress, metrics);
+    }
+
+    @Override
+    public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+        pools.remove(poolName + "@" + remoteAddress);
+    }
+
+    /**
+     * 获取每个远端地址的连接池占用情况
+     */
+    public Map<String, Map<String, Integer>> getPoolStatistics() {
+        Map<String, Map<String, Integer>> result = new LinkedHashMap<>();
+        pools.forEach((key, metrics) -> {
+            Map<String, Integer> stats = new LinkedHashMap<>();
+            stats.put("acquired", metrics.acquiredSize());
+            stats.put("idle", metrics.idleSize());
+            stats.put("allocated", metrics.allocatedSize());
+            stats.put("maxAllocated", metrics.maxAllocatedSize());
+            stats.put("pendingAcquire", metrics.pendingAcquireSize());
+            stats.put("maxPendingAcquire", metrics.maxPendingAcquireSize());
+            result.put(key, stats);
+        });
+        return result;
+    }
+
+    /**
+     * 启动完成后并发访问每个Emby实例的Ping接口，提前建立连接，避免首批PlaybackInfo承担建连开销
+     * 异步执行不阻塞启动，每个请求单独超时；Emby无响应或不可达时只记录日志，不影响应用启动
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarm() {
+        if (prewarmConnections <= 0) {
+            return;
+        }
+
+        HttpClient httpClient = embyHttpClient.getObject();
+        List<EmbyBackend> backends = embyBackendPool.getBackends();
+        int total = prewarmConnections * backends.size();
+        Flux.range(0, total)
+                .flatMap(i -> httpClient.get()
+                        .uri(backends.get(i % backends.size()).getUrl() + "/emby/System/Ping")
+                        .responseSingle((response, body) -> body.then(Mono.just(response.status().code())))
+                        .timeout(PREWARM_TIMEOUT)
+                        .onErrorResume(e -> {
+                            log.debug("预热Emby连接失败: {}", e.toString());
+                            return Mono.empty();
+                        }), total)
+                .count()
+                .subscribe(succeeded -> log.info("Emby上游连接预热完成: 成功{}/{}", succeeded, total),
+                        e -> log.warn("Emby上游连接预热失败: {}", e.toString()));
+    }
+}
@@ -0,0 +1,239 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.watermelon.embybalance.entity.MediaItem;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.MediaItemRepository;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Emby媒体库爬虫
+ * 分页遍历Emby Items接口，将每个媒体项的MediaSource（Id、Path、Size、Bitrate）保存到本地表，
+ * 重启后原始文件重定向和线路选择对冷门媒体项也无需请求Emby。
+ *
+ * 增量同步：上次成功同步的开始时间作为MinDateLastSaved，只拉取之后保存过的媒体项；
+ * 同一媒体项的DateModified未变化时不写库。首个分页确定总数后，其余分页按有界并发拉取
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EmbyLibraryCrawler {
+
+    static final String CHECKPOINT_NAME = "emby-library";
+
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+    private final MediaItemRepository mediaItemRepository;
+    private final SyncCheckpointRepository syncCheckpointRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrencyLimiter embyUpstreamLimiter;
+    private final ConcurrencyLimiter sqliteLimiter;
+    private final MediaPathIndex mediaPathIndex;
+    private final EmbyBackendPool embyBackendPool;
+
+    private final ReentrantLock crawlLock = new ReentrantLock();
+    private volatile Map<String, Object> lastRun = Map.of();
+
+    @Value("${emby.api.key}")
+    private String embyApiKey;
+
+    @Value("${app.emby.crawler.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.emby.crawler.page-size:200}")
+    private int pageSize;
+
+    @Value("${app.emby.crawler.parallelism:4}")
+    private int parallelism;
+
+    @Value("${app.emby.crawler.item-types:Movie,Episode,MusicVideo,Video}")
+    private String itemTypes;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 执行一次同步，已有同步在进行时直接返回
+     */
+    public void crawl() throws Exception {
+        if (!crawlLock.tryLock()) {
+            log.info("媒体库同步正在进行，跳过本次同步");
+            return;
+        }
+        try {
+            Instant startedAt = Instant.now();
+            String since = syncCheckpointRepository.findById(CHECKPOINT_NAME)
+                    .map(SyncCheckpoint::getPosition)
+                    .orElse(null);
+            log.info("开始同步Emby媒体库: {}", since == null ? "全量" : "增量，MinDateLastSaved=" + since);
+
+            AtomicInteger items = new AtomicInteger();
+            AtomicInteger changed = new AtomicInteger();
+            JsonNode firstPage = fetchPage(0, since);
+            int total = firstPage.path("TotalRecordCount").asInt(0);
+            storePage(firstPage, items, changed);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+            try {
+                List<Future<?>> pages = new ArrayList<>();
+                for (int startIndex = pageSize; startIndex < total; startIndex += pageSize) {
+                    int pageStart = startIndex;
+                    pages.add(executor.submit(() -> {
+                        storePage(fetchPage(pageStart, since), items, changed);
+                        return null;
+                    }));
+                }
+                for (Future<?> page : pages) {
+                    page.get();
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // 全部分页成功后才推进断点，失败时下次从原断点重试
+            sqliteLimiter.run(() -> syncCheckpointRepository.save(
+                    new SyncCheckpoint(CHECKPOINT_NAME, startedAt.toString(), null)));
+
+            long durationMs = Instant.now().toEpochMilli() - startedAt.toEpochMilli();
+            Map<String, Object> run = new LinkedHashMap<>();
+            run.put("startedAt", startedAt.toString());
+            run.put("incremental", since != null);
+            run.put("items", items.get());
+            run.put("changed", changed.get());
+            run.put("durationMs", durationMs);
+            lastRun = run;
+            log.info("Emby媒体库同步完成: 媒体项={}, 变化={}, 耗时={}ms", items.get(), changed.get(), durationMs);
+        } finally {
+            crawlLock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("running", crawlLock.isLocked());
+        stats.put("storedSources", mediaItemRepository.count());
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+
+    private JsonNode fetchPage(int startIndex, String since) throws Exception {
+        // 各实例共享同一媒体库，分页可以发往任意实例
+        EmbyBackend backend = embyBackendPool.acquire();
+        long startedAt = System.currentTimeMillis();
+        boolean succeeded = false;
+        try {
+            JsonNode page = fetchPage(backend, startIndex, since);
+            succeeded = true;
+            return page;
+        } finally {
+            embyBackendPool.release(backend, System.currentTimeMillis() - startedAt, succeeded);
+        }
+    }
+
+    private JsonNode fetchPage(EmbyBackend backend, int startIndex, String since) throws Exception {
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(backend.getUrl() + "/emby/Items")
+                .queryParam("Recursive", "true")
+                .queryParam("IncludeItemTypes", itemTypes)
+                .queryParam("Fields", "MediaSources,Path,DateModified")
+                .queryParam("StartIndex", startIndex)
+                .queryParam("Limit", pageSize)
+                .queryParam("api_key", embyApiKey);
+        if (since != null) {
+            builder.queryParam("MinDateLastSaved", since);
+        }
+        URI uri = builder.build().encode().toUri();
+        JsonNode page = embyUpstreamLimiter.call(() -> restTemplate.execute(uri, HttpMethod.GET, null, response -> {
+            // Emby的RestTemplate不对错误状态码抛出异常
+            if (response.getStatusCode().isError()) {
+                throw new IllegalStateException("Emby媒体库分页请求失败: HTTP " + response.getStatusCode().value()
+                        + ", StartIndex=" + startIndex);
+            }
+            return objectMapper.readTree(response.getBody());
+        }));
+        if (page == null) {
+            throw new IllegalStateException("Emby媒体库分页响应为空: StartIndex=" + startIndex);
+        }
+        return page;
+    }
+
+    /**
+     * 保存一页媒体项，DateModified未变化的媒体项跳过，变化的媒体项整体替换其媒体源
+     */
+    private void storePage(JsonNode page, AtomicInteger items, AtomicInteger changed) throws Exception {
+        Map<String, List<MediaItem>> sourcesByItem = new LinkedHashMap<>();
+        for (JsonNode item : page.path("Items")) {
+            String itemId = item.path("Id").asText(null);
+            JsonNode mediaSources = item.path("MediaSources");
+            if (itemId == null || !mediaSources.isArray() || mediaSources.isEmpty()) {
+                continue;
+            }
+            String dateModified = item.path("DateModified").asText(null);
+            List<MediaItem> sources = new ArrayList<>();
+            int sourceIndex = 0;
+            for (JsonNode source : mediaSources) {
+                String path = source.path("Path").asText(null);
+                if (path != null) {
+                    sources.add(new MediaItem(null, itemId, source.path("Id").asText(null), sourceIndex, path,
+                            longOrNull(source.path("Size")), longOrNull(source.path("Bitrate")), dateModified, null));
+                }
+                sourceIndex++;
+            }
+            if (!sources.isEmpty()) {
+                sourcesByItem.put(itemId, sources);
+            }
+        }
+        items.addAndGet(sourcesByItem.size());
+        if (sourcesByItem.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> storedDates = new HashMap<>();
+        mediaItemRepository.findByItemIdIn(sourcesByItem.keySet())
+                .forEach(stored -> storedDates.put(stored.getItemId(), stored.getDateModified()));
+        sourcesByItem.entrySet().removeIf(entry -> storedDates.containsKey(entry.getKey())
+                && Objects.equals(storedDates.get(entry.getKey()), entry.getValue().get(0).getDateModified()));
+        if (sourcesByItem.isEmpty()) {
+            return;
+        }
+
+        List<MediaItem> rows = sourcesByItem.values().stream().flatMap(List::stream).toList();
+        sqliteLimiter.run(() -> transactionTemplate.executeWithoutResult(status -> {
+            mediaItemRepository.deleteByItemIdIn(sourcesByItem.keySet());
+            mediaItemRepository.saveAll(rows);
+        }));
+        rows.forEach(row -> mediaPathIndex.put(MediaPathIndex.toInfo(row), row.getSourceIndex() == 0));
+        changed.addAndGet(sourcesByItem.size());
+    }
+
+    private static Long longOrNull(JsonNode node) {
+        return node.isIntegralNumber() ? node.asLong() : null;
+    }
+}
@@ -1,23 +1,33 @@
 package com.watermelon.embybalance.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.watermelon.embybalance.entity.DownloadRoute;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.ClosedByInterruptException;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 @Service
 @RequiredArgsConstructor
@@ -27,178 +37,394 @@ public class EmbyProxyService {
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
     private final DownloadRouteService downloadRouteService;
-
-    @Value("${emby.server.url}")
-    private String embyServerUrl;
+    private final PlaybackInfoRewriter playbackInfoRewriter;
+    private final ConcurrencyLimiter embyUpstreamLimiter;
+    private final PlaybackInfoCache playbackInfoCache;
+    private final SingleFlight<String, UpstreamResponse> playbackInfoFlight;
+    private final MediaPathIndex mediaPathIndex;
+    private final EmbyUpstreamResilience upstreamResilience;
+    private final EmbyBackendPool embyBackendPool;
+    private final ClientSubnetRouter clientSubnetRouter;
 
     @Value("${emby.api.key}")
     private String embyApiKey;
     
     @Value("${path.modification.prefix:}")
     private String pathModificationPrefix;
+    
+    @Value("${app.emby.coalesce-timeout-ms:15000}")
+    private long coalesceTimeoutMs;
 
-    public ResponseEntity<Object> processPlaybackInfoRequest(String itemId, 
-                                                      Map<String, Object> requestBody, 
-                                                      Map<String, String> queryParams, 
-                                                      Map<String, String> headers) {
+    /**
+     * 转发PlaybackInfo请求到Emby服务器，并将响应流式改写后直接写入客户端响应
+     * 可缓存的请求先查PlaybackInfo缓存，未命中时完整读取上游响应后写入缓存，
+     * 并发的相同请求合并为一次上游调用。请求体按原始字节转发
+     */
+    public void processPlaybackInfoRequest(String itemId,
+                                           PlaybackInfoRequestBody requestBody,
+                                           Map<String, String> queryParams,
+                                           Map<String, String> headers,
+                                           HttpServletResponse servletResponse) {
         try {
-            // 构建请求URL
-            String url = embyServerUrl + "/emby/Items/" + itemId + "/PlaybackInfo";
-            UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(url);
-            
-            // 添加所有查询参数
-            queryParams.forEach(builder::queryParam);
-            
-            // 确保API密钥被添加
-            if (!queryParams.containsKey("api_key")) {
-                builder.queryParam("api_key", embyApiKey);
-            }
-            
-            // 记录完整URL
-            String fullUrl = builder.build().toUriString();
-            log.info("向Emby服务器发送请求: {}", fullUrl);
+            // 请求URL在每次调用时按选中的Emby实例构建
+            Function<EmbyBackend, URI> uri = backend -> playbackInfoUri(backend, itemId, queryParams);
             
             // 准备请求头
             HttpHeaders requestHeaders = new HttpHeaders();
             headers.forEach((key, value) -> {
-                if (!key.equalsIgnoreCase("host") && !key.equalsIgnoreCase("content-length")) {
+                if (isForwardableRequestHeader(key)) {
                     requestHeaders.add(key, value);
                 }
             });
             
             // 设置内容类型为application/json
             requestHeaders.setContentType(MediaType.APPLICATION_JSON);
-            log.info("发送到Emby的请求头: {}", requestHeaders);
+            log.debug("发送到Emby的请求头: {}", requestHeaders);
             
-            // 创建请求实体
-            HttpEntity<String> requestEntity;
-            if (requestBody != null && !requestBody.isEmpty()) {
-                // 将Map转换为JSON字符串
-                String jsonBody = objectMapper.writeValueAsString(requestBody);
-                log.info("发送到Emby的请求体: {}", jsonBody);
-                requestEntity = new HttpEntity<>(jsonBody, requestHeaders);
-            } else {
-                log.info("发送到Emby的请求体为空");
-                requestEntity = new HttpEntity<>(requestHeaders);
-            }
-            
-            // 发送请求到Emby服务器
-            log.info("开始向Emby服务器发送请求...");
-            ResponseEntity<String> response = restTemplate.exchange(
-                    builder.build().toUri(),
-                    HttpMethod.POST,
-                    requestEntity,
-                    String.class
-            );
+            // 请求体原样转发，不解析也不重新序列化
+            byte[] body = requestBody.getBytes();
+            log.debug("发送到Emby的请求体长度: {}", requestBody.length());
             
-            // 记录Emby服务器响应
-            log.info("Emby服务器响应状态码: {}", response.getStatusCode());
-            log.info("Emby服务器响应头: {}", response.getHeaders());
+            // 按客户端网段确定优先线路组，同一请求内的所有媒体源使用同一组
+            UnaryOperator<String> pathMapper = pathMapperFor(headers);
             
-            // 记录原始响应体（可能很大，考虑是否需要完整记录）
-            String responseBody = response.getBody();
-            if (responseBody != null) {
-                if (responseBody.length() > 1000) {
-                    log.info("Emby服务器原始响应体(截断): {}...", responseBody.substring(0, 1000));
-                } else {
-                    log.info("Emby服务器原始响应体: {}", responseBody);
-                }
+            long timeoutMs = upstreamResilience.timeoutFor(headers);
+            String cacheKey = playbackInfoCache.keyFor(itemId, queryParams, headers, requestBody);
+            if (cacheKey == null) {
+                // 不可缓存：在响应到达后边读边改写边输出
+                streamPlaybackInfo(itemId, uri, requestHeaders, body, pathMapper, servletResponse);
+                return;
             }
             
-            // 修改响应中的Path
-            log.info("开始修改响应中的Path...");
-            String modifiedResponse = modifyPathInResponse(responseBody);
-            
-            // 记录修改后的响应体
-            if (modifiedResponse != null && modifiedResponse.length() > 1000) {
-                log.info("修改后的响应体(截断): {}...", modifiedResponse.substring(0, 1000));
+            UpstreamResponse upstreamResponse = playbackInfoCache.get(cacheKey);
+            if (upstreamResponse != null) {
+                log.info("PlaybackInfo命中缓存: itemId={}", itemId);
             } else {
-                log.info("修改后的响应体: {}", modifiedResponse);
+                // 并发的相同请求共享同一次上游调用，上游调用受熔断、时限和对冲保护
+                upstreamResponse = playbackInfoFlight.execute(cacheKey, () -> {
+                    UpstreamResponse fetched = upstreamResilience.execute(
+                            () -> fetchPlaybackInfo(uri, requestHeaders, body),
+                            () -> playbackInfoCache.getStale(cacheKey),
+                            timeoutMs);
+                    playbackInfoCache.put(cacheKey, fetched);
+                    return fetched;
+                }, Duration.ofMillis(Math.min(coalesceTimeoutMs, timeoutMs)));
             }
-            
-            // 创建新的响应头，不直接使用原始响应头
-            HttpHeaders responseHeaders = new HttpHeaders();
-            
-            // 复制原始响应头中的重要信息，但不包括Content-Length
-            response.getHeaders().forEach((key, values) -> {
-                if (!key.equalsIgnoreCase("Content-Length")) {
-                    responseHeaders.put(key, values);
-                }
-            });
-            
-            // 设置正确的Content-Type
-            responseHeaders.setContentType(MediaType.APPLICATION_JSON);
-            
-            // 返回修改后的响应，让Spring自动计算Content-Length
-            Object newResponseBody = objectMapper.readValue(modifiedResponse, Object.class);
-            return new ResponseEntity<>(newResponseBody, responseHeaders, response.getStatusCode());
+            writePlaybackInfo(itemId, upstreamResponse, pathMapper, servletResponse);
             
         } catch (Exception e) {
             log.error("处理PlaybackInfo请求时出错", e);
-            // 记录详细的异常堆栈
-            log.error("异常详情: ", e);
-            return ResponseEntity.internalServerError().body(Map.of("error", e.getMessage()));
+            writeError(servletResponse, e);
         }
     }
     
-    private String modifyPathInResponse(String responseBody) throws JsonProcessingException {
-        if (responseBody == null || responseBody.isEmpty()) {
-            return responseBody;
+    /**
+     * 请求Emby并将响应流式改写后直接写入客户端响应
+     * 响应边读边写，无法对冲或中途放弃，只经过熔断器
+     */
+    private void streamPlaybackInfo(String itemId, Function<EmbyBackend, URI> uri, HttpHeaders requestHeaders, byte[] body,
+                                    UnaryOperator<String> pathMapper, HttpServletResponse servletResponse) throws Exception {
+        if (!upstreamResilience.tryAcquire()) {
+            throw new IllegalStateException("Emby上游熔断中");
         }
-        
-        JsonNode rootNode = objectMapper.readTree(responseBody);
-        
-        // 修改MediaSources数组中的Path
-        if (rootNode.has("MediaSources") && rootNode.get("MediaSources").isArray()) {
-            ArrayNode mediaSources = (ArrayNode) rootNode.get("MediaSources");
-            
-            for (int i = 0; i < mediaSources.size(); i++) {
-                JsonNode mediaSource = mediaSources.get(i);
-                //修改协议为Http，
-                ((ObjectNode) mediaSource).put("Protocol", "Http");
-                //修改IsRemote,SupportsDirectPlay,SupportsDirectStream为true
-                ((ObjectNode) mediaSource).put("IsRemote", true);
-                ((ObjectNode) mediaSource).put("SupportsDirectPlay", true);
-//                ((ObjectNode) mediaSource).put("SupportsDirectStream", false);
-                //修改SupportsTranscoding为false
-                ((ObjectNode) mediaSource).put("SupportsTranscoding", false);
-                if (mediaSource.has("Path")) {
-                    String originalPath = mediaSource.get("Path").asText();
-                    
-                    // 基于性能统计智能选择下载线路
-                    Optional<DownloadRoute> selectedRoute = downloadRouteService.selectRouteByPerformance();
-                    if (selectedRoute.isPresent()) {
-                        DownloadRoute route = selectedRoute.get();
-                        try {
-                            // URL编码原始路径
-                            String encodedOriginalPath = URLEncoder.encode(originalPath, StandardCharsets.UTF_8);
-                            // 构建新的路径：选中的线路URL + emby_download路径 + 原始路径作为参数
-                            String baseUrl = route.getFullUrl();
-                            // 确保URL末尾没有重复的斜杠
-                            if (baseUrl.endsWith("/")) {
-                                baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
-                            }
-                            // 添加路由ID参数用于统计
-                            String modifiedPath = baseUrl + "/emby_download?path=" + encodedOriginalPath + "&route_id=" + route.getId();
-                            ((ObjectNode) mediaSource).put("Path", modifiedPath);
-                            log.info("修改Path: {} -> {}", originalPath, modifiedPath);
-                        } catch (Exception e) {
-                            log.error("构建修改路径时出错", e);
-                            // 如果出错，保持原始路径
-                        }
+        long startedAt = System.nanoTime();
+        AtomicBoolean responded = new AtomicBoolean();
+        AtomicBoolean sent = new AtomicBoolean();
+        try {
+            forwardPlaybackInfo(itemId, uri, requestHeaders, body, pathMapper, servletResponse, startedAt, responded, sent);
+        } catch (Exception e) {
+            if (!responded.get()) {
+                if (sent.get() && !isCancellation(e)) {
+                    upstreamResilience.onFailure();
+                } else {
+                    upstreamResilience.release();
+                }
+            }
+            throw e;
+        }
+    }
+    
+    private void forwardPlaybackInfo(String itemId, Function<EmbyBackend, URI> uri, HttpHeaders requestHeaders, byte[] body,
+                                     UnaryOperator<String> pathMapper, HttpServletResponse servletResponse,
+                                     long startedAt, AtomicBoolean responded, AtomicBoolean sent) throws Exception {
+        EmbyBackend backend = embyBackendPool.acquire();
+        AtomicBoolean succeeded = new AtomicBoolean();
+        boolean upstreamFailed = false;
+        try {
+            embyUpstreamLimiter.call(() -> {
+                sent.set(true);
+                return restTemplate.execute(uri.apply(backend), HttpMethod.POST, playbackInfoRequest(requestHeaders, body), response -> {
+                    log.info("Emby服务器响应状态码: {}", response.getStatusCode());
+                    long latencyMs = elapsedMs(startedAt);
+                    responded.set(true);
+                    succeeded.set(response.getStatusCode().value() < 500);
+                    upstreamResilience.onResponse(response.getStatusCode().value(), latencyMs);
+                    embyBackendPool.release(backend, latencyMs, succeeded.get());
+                
+                    if (!response.getStatusCode().is2xxSuccessful()) {
+                        writeUpstreamError(response.getStatusCode().value(), response.getHeaders(), response.getBody(), servletResponse);
                     } else {
-                        log.warn("没有可用的下载线路，保持原始路径");
+                        writeResponseHead(response.getStatusCode().value(), response.getHeaders(), servletResponse);
+                    
+                        // 修改响应中的Path
+                        playbackInfoRewriter.rewrite(response.getBody(), servletResponse.getOutputStream(), pathMapper,
+                                mediaPathIndex.listenerFor(itemId));
                     }
+                    servletResponse.flushBuffer();
+                    return null;
+                });
+            });
+        } catch (Exception e) {
+            upstreamFailed = sent.get() && !isCancellation(e);
+            throw e;
+        } finally {
+            // 响应到达时已报告结果
+            if (!responded.get()) {
+                if (upstreamFailed) {
+                    embyBackendPool.release(backend, elapsedMs(startedAt), false);
+                } else {
+                    embyBackendPool.release(backend);
                 }
-//                if (mediaSource.has("DirectStreamUrl")) {
-//                    String originalPath = mediaSource.get("DirectStreamUrl").asText();
-////                    String modifiedPath = pathModificationPrefix + originalPath;
-//                    String modifiedPath = "http://46.38.242.30:9090/d/cnd2dkrpqsse7d993?/72小时黄金行动 (2023) {tmdb-1162650} - 1080p.mp4";
-//                    ((ObjectNode) mediaSource).put("DirectStreamUrl", modifiedPath);
-//                }
             }
         }
+    }
+    
+    /**
+     * 请求Emby并完整读取未改写的响应
+     */
+    private UpstreamResponse fetchPlaybackInfo(Function<EmbyBackend, URI> uri, HttpHeaders requestHeaders, byte[] body) throws Exception {
+        EmbyBackend backend = embyBackendPool.acquire();
+        long startedAt = System.nanoTime();
+        AtomicBoolean sent = new AtomicBoolean();
+        // null表示本地限流拒绝或调用被取消，不计入实例的成败
+        Boolean succeeded = null;
+        try {
+            UpstreamResponse response = embyUpstreamLimiter.call(() -> {
+                sent.set(true);
+                return restTemplate.execute(uri.apply(backend), HttpMethod.POST,
+                        playbackInfoRequest(requestHeaders, body), this::readUpstreamResponse);
+            });
+            succeeded = response != null && response.getStatus() < 500;
+            return response;
+        } catch (Exception e) {
+            if (sent.get() && !isCancellation(e)) {
+                succeeded = false;
+            }
+            throw e;
+        } finally {
+            if (succeeded == null) {
+                embyBackendPool.release(backend);
+            } else {
+                embyBackendPool.release(backend, elapsedMs(startedAt), succeeded);
+            }
+        }
+    }
+    
+    /**
+     * 调用是否因本线程被中断（对冲落败或超时后取消）而结束，而不是上游I/O错误
+     * 读取超时（SocketTimeoutException）属于上游错误
+     */
+    private static boolean isCancellation(Throwable e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException
+                    || (cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private UpstreamResponse readUpstreamResponse(ClientHttpResponse response) throws IOException {
+        log.info("Emby服务器响应状态码: {}", response.getStatusCode());
+        
+        HttpHeaders responseHeaders = new HttpHeaders();
+        response.getHeaders().forEach((key, values) -> {
+            // 保留Content-Type，错误响应原样转发时使用
+            if (isForwardableResponseHeader(key) || key.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE)) {
+                responseHeaders.addAll(key, values);
+            }
+        });
+        return new UpstreamResponse(response.getStatusCode().value(), responseHeaders,
+                StreamUtils.copyToByteArray(response.getBody()));
+    }
+    
+    /**
+     * 构建发往指定Emby实例的PlaybackInfo地址，确保API密钥被添加
+     */
+    private URI playbackInfoUri(EmbyBackend backend, String itemId, Map<String, String> queryParams) {
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(backend.getUrl() + "/emby/Items/" + itemId + "/PlaybackInfo");
+        
+        // 添加所有查询参数
+        queryParams.forEach(builder::queryParam);
+        
+        // 确保API密钥被添加
+        if (!queryParams.containsKey("api_key")) {
+            builder.queryParam("api_key", embyApiKey);
+        }
+        
+        // 记录完整URL
+        URI uri = builder.build().toUri();
+        log.info("向Emby服务器发送请求: {}", uri);
+        return uri;
+    }
+    
+    private static long elapsedMs(long startedAt) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+    
+    /**
+     * 将完整读取的上游响应改写后写入客户端响应，每次都会重新选择线路
+     */
+    private void writePlaybackInfo(String itemId, UpstreamResponse upstreamResponse, UnaryOperator<String> pathMapper,
+                                   HttpServletResponse servletResponse) throws IOException {
+        if (!upstreamResponse.isSuccessful()) {
+            writeUpstreamError(upstreamResponse.getStatus(), upstreamResponse.getHeaders(),
+                    new ByteArrayInputStream(upstreamResponse.getBody()), servletResponse);
+            servletResponse.flushBuffer();
+            return;
+        }
+        writeResponseHead(upstreamResponse.getStatus(), upstreamResponse.getHeaders(), servletResponse);
+        playbackInfoRewriter.rewrite(new ByteArrayInputStream(upstreamResponse.getBody()),
+                servletResponse.getOutputStream(), pathMapper, mediaPathIndex.listenerFor(itemId));
+        servletResponse.flushBuffer();
+    }
+    
+    private static RequestCallback playbackInfoRequest(HttpHeaders requestHeaders, byte[] body) {
+        return request -> {
+            request.getHeaders().putAll(requestHeaders);
+            if (body != null) {
+                request.getBody().write(body);
+            }
+        };
+    }
+    
+    /**
+     * 设置状态码并复制原始响应头，但不包括长度、分块等由容器重新计算的头
+     */
+    private static void writeResponseHead(int status, HttpHeaders headers, HttpServletResponse servletResponse) {
+        servletResponse.setStatus(status);
+        headers.forEach((key, values) -> {
+            if (isForwardableResponseHeader(key)) {
+                values.forEach(value -> servletResponse.addHeader(key, value));
+            }
+        });
+        servletResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    }
+    
+    /**
+     * 非2xx响应（令牌过期、媒体项不存在等）不是PlaybackInfo，不改写，状态码、内容类型和响应体原样转发
+     */
+    private static void writeUpstreamError(int status, HttpHeaders headers, InputStream body,
+                                           HttpServletResponse servletResponse) throws IOException {
+        writeResponseHead(status, headers, servletResponse);
+        servletResponse.setContentType(headers.getFirst(HttpHeaders.CONTENT_TYPE));
+        StreamUtils.copy(body, servletResponse.getOutputStream());
+    }
+    
+    /**
+     * 从本地索引查找媒体源，不请求Emby；未指定mediaSourceId时返回默认版本
+     */
+    public Optional<MediaSourceInfo> findMediaSource(String itemId, String mediaSourceId) {
+        return mediaPathIndex.find(itemId, mediaSourceId);
+    }
+    
+    /**
+     * 为原始Path选择下载线路、占用准入租约并构建带route_id和lease_id的下载地址，没有可用线路时返回empty
+     *
+     * @param bitrate 媒体源码率（bit/s），用于线路带宽准入，未知时为null
+     * @param headers 客户端请求头，从转发头中取客户端IP确定优先线路组
+     * @throws RouteCapacityExceededException 所有可用线路都已满载
+     */
+    public Optional<String> selectDownloadUrl(String originalPath, Long bitrate, Map<String, String> headers) {
+        return Optional.ofNullable(buildDownloadUrl(originalPath,
+                downloadRouteService.reserveRoute(originalPath, bitrate, routeGroupFor(headers))));
+    }
+    
+    /**
+     * 按客户端请求头构建PlaybackInfo中媒体源Path的改写函数
+     */
+    public UnaryOperator<String> pathMapperFor(Map<String, String> headers) {
+        String routeGroup = routeGroupFor(headers);
+        return originalPath -> rewriteMediaPath(originalPath, routeGroup);
+    }
+    
+    private String routeGroupFor(Map<String, String> headers) {
+        String clientIp = ClientSubnetRouter.clientIp(headers);
+        String routeGroup = clientSubnetRouter.routeGroupFor(clientIp);
+        if (routeGroup != null) {
+            log.debug("客户端{}匹配线路组: {}", clientIp, routeGroup);
+        }
+        return routeGroup;
+    }
+    
+    /**
+     * 为MediaSource的原始Path选择下载线路并构建新的下载地址
+     * 没有可用线路或所有线路都已满载时返回null，保持原始路径。
+     * PlaybackInfo中的版本客户端不一定播放，缓存重放也会再次改写，这里只跳过已满载的线路，不占用准入租约
+     */
+    private String rewriteMediaPath(String originalPath, String routeGroup) {
+        try {
+            return buildDownloadUrl(originalPath, downloadRouteService.selectRoute(originalPath, null, routeGroup)
+                    .map(route -> new DownloadRouteService.RouteLease(route, RouteAdmissionController.NO_LEASE)));
+        } catch (RouteCapacityExceededException e) {
+            // 降级：不向已满载的线路继续分配，客户端经由Emby原始路径播放
+            log.warn("所有下载线路均已满载，保持原始路径: {}", originalPath);
+            return null;
+        }
+    }
+    
+    private String buildDownloadUrl(String originalPath, Optional<DownloadRouteService.RouteLease> selectedRoute) {
+        if (selectedRoute.isEmpty()) {
+            log.warn("没有可用的下载线路，保持原始路径");
+            return null;
+        }
         
-        return objectMapper.writeValueAsString(rootNode);
+        try {
+            // 占用了准入租约时租约ID随地址下发，下载统计回传后释放
+            String modifiedPath = selectedRoute.get().route().buildDownloadUrl(originalPath, selectedRoute.get().leaseId());
+            log.info("修改Path: {} -> {}", originalPath, modifiedPath);
+            return modifiedPath;
+        } catch (Exception e) {
+            log.error("构建修改路径时出错", e);
+            // 如果出错，保持原始路径
+            return null;
+        }
+    }
+    
+    /**
+     * 响应尚未提交时输出错误信息，上游超出时限时返回504
+     */
+    private void writeError(HttpServletResponse servletResponse, Exception e) {
+        if (servletResponse.isCommitted()) {
+            log.warn("响应已提交，无法返回错误信息");
+            return;
+        }
+        try {
+            servletResponse.reset();
+            servletResponse.setStatus(e instanceof TimeoutException
+                    ? HttpStatus.GATEWAY_TIMEOUT.value()
+                    : HttpStatus.INTERNAL_SERVER_ERROR.value());
+            servletResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            objectMapper.writeValue(servletResponse.getOutputStream(), Map.of("error", String.valueOf(e.getMessage())));
+        } catch (IOException ioException) {
+            log.warn("写入错误响应失败: {}", ioException.getMessage());
+        }
+    }
+    
+    static boolean isForwardableRequestHeader(String name) {
+        // 不转发Accept-Encoding，保证上游返回未压缩的JSON以便流式改写
+        return !name.equalsIgnoreCase("host")
+                && !name.equalsIgnoreCase("content-length")
+                && !name.equalsIgnoreCase("accept-encoding");
+    }
+    
+    static boolean isForwardableResponseHeader(String name) {
+        return !name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                && !name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)
+                && !name.equalsIgnoreCase(HttpHeaders.CONNECTION)
+                && !name.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE);
     }
-}
\ No newline at end of file
+}
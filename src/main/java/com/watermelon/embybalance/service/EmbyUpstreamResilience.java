@@ -0,0 +1,269 @@
+package com.watermelon.embybalance.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Emby上游弹性层
+ * 1. 熔断：按最近调用的失败率和慢调用率打开熔断器，打开期间返回过期缓存或快速失败
+ * 2. 时限：每个请求有自己的时限（客户端可通过请求头指定），超时立即释放请求线程
+ * 3. 对冲：可选，首个请求超过近期p95延迟仍未返回时再发一次，取先成功的结果；熔断器未关闭时不对冲
+ * 每次经熔断器放行的调用都以成功、失败或归还许可三者之一结束，被取消或未开始的调用归还许可
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class EmbyUpstreamResilience {
+
+    private final CircuitBreaker embyCircuitBreaker;
+
+    @Value("${app.emby.resilience.default-timeout-ms:10000}")
+    private long defaultTimeoutMs;
+
+    @Value("${app.emby.resilience.max-timeout-ms:30000}")
+    private long maxTimeoutMs;
+
+    @Value("${app.emby.resilience.deadline-header:X-Request-Timeout-Ms}")
+    private String deadlineHeader;
+
+    @Value("${app.emby.resilience.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+
+    @Value("${app.emby.resilience.hedge.min-delay-ms:50}")
+    private long hedgeMinDelayMs;
+
+    @Value("${app.emby.resilience.hedge.min-samples:20}")
+    private int hedgeMinSamples;
+
+    @Value("${app.emby.resilience.latency-window-ms:60000}")
+    private long latencyWindowMs;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService attemptExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "emby-upstream-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 对冲延迟按当前窗口和上一窗口的延迟计算，只反映近期情况
+    private final ReentrantLock rotateLock = new ReentrantLock();
+    private volatile LatencyHistogram currentWindow = new LatencyHistogram();
+    private volatile LatencyHistogram previousWindow = new LatencyHistogram();
+    private volatile long windowStartedAt = System.currentTimeMillis();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong deadlineExceeded = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+
+    /**
+     * 本次请求的时限：客户端请求头指定时使用该值，否则使用默认值，都不超过max-timeout-ms
+     */
+    public long timeoutFor(Map<String, String> headers) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(deadlineHeader) && entry.getValue() != null) {
+                try {
+                    long requested = Long.parseLong(entry.getValue().trim());
+                    if (requested > 0) {
+                        return Math.min(requested, maxTimeoutMs);
+                    }
+                } catch (NumberFormatException e) {
+                    log.debug("忽略无效的时限请求头: {}", entry.getValue());
+                }
+            }
+        }
+        return Math.min(defaultTimeoutMs, maxTimeoutMs);
+    }
+
+    /**
+     * 在熔断、时限和对冲保护下执行上游调用
+     *
+     * @param attempt       一次完整的上游调用，可能被并发执行两次（对冲）
+     * @param staleFallback 熔断打开时使用的过期响应，没有时返回null
+     * @param timeoutMs     本次请求的时限
+     */
+    public UpstreamResponse execute(Callable<UpstreamResponse> attempt, Supplier<UpstreamResponse> staleFallback,
+                                    long timeoutMs) throws Exception {
+        if (!embyCircuitBreaker.tryAcquire()) {
+            UpstreamResponse stale = staleFallback.get();
+            if (stale != null) {
+                staleServed.incrementAndGet();
+                log.warn("Emby上游熔断中，返回{}秒前的缓存响应",
+                        (System.currentTimeMillis() - stale.getFetchedAt()) / 1000);
+                return stale;
+            }
+            throw new IllegalStateException("Emby上游熔断中，且没有可用的缓存响应");
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        CompletableFuture<UpstreamResponse> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        List<Attempt> attempts = new ArrayList<>(2);
+        attempts.add(submit(attempt, result, pending, false));
+        try {
+            long hedgeDelayMs = hedgeDelayMs();
+            // 半开时试探许可很少，对冲会占用许可，只在熔断器关闭时对冲
+            if (hedgeDelayMs >= 0 && hedgeDelayMs < timeoutMs && embyCircuitBreaker.getState() == CircuitBreaker.State.CLOSED) {
+                try {
+                    return result.get(hedgeDelayMs, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (embyCircuitBreaker.tryAcquire()) {
+                        hedged.incrementAndGet();
+                        pending.incrementAndGet();
+                        attempts.add(submit(attempt, result, pending, true));
+                    }
+                }
+            }
+            return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            deadlineExceeded.incrementAndGet();
+            if (result.completeExceptionally(e)) {
+                embyCircuitBreaker.onFailure();
+            }
+            throw new TimeoutException("Emby上游请求超出时限: " + timeoutMs + "ms");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            for (Attempt running : attempts) {
+                // 尚未开始的调用不会再报告结果，由这里归还许可
+                if (running.started.compareAndSet(false, true)) {
+                    embyCircuitBreaker.release();
+                }
+                running.future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 流式请求无法对冲和中途放弃，只经过熔断器；允许后需报告结果
+     */
+    public boolean tryAcquire() {
+        return embyCircuitBreaker.tryAcquire();
+    }
+
+    public void onResponse(int status, long latencyMs) {
+        recordLatency(latencyMs);
+        if (status >= 500) {
+            embyCircuitBreaker.onFailure();
+        } else {
+            embyCircuitBreaker.onSuccess(latencyMs);
+        }
+    }
+
+    public void onFailure() {
+        embyCircuitBreaker.onFailure();
+    }
+
+    /**
+     * 已放行的流式请求未到达上游或被取消，归还熔断器许可
+     */
+    public void release() {
+        embyCircuitBreaker.release();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("circuitBreaker", embyCircuitBreaker.getStatistics());
+        stats.put("latency", latency.getStatistics());
+        stats.put("hedgeEnabled", hedgeEnabled);
+        stats.put("hedgeDelayMs", hedgeDelayMs());
+        stats.put("hedged", hedged.get());
+        stats.put("hedgeWins", hedgeWins.get());
+        stats.put("deadlineExceeded", deadlineExceeded.get());
+        stats.put("staleServed", staleServed.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        attemptExecutor.shutdownNow();
+    }
+
+    private Attempt submit(Callable<UpstreamResponse> attempt, CompletableFuture<UpstreamResponse> result,
+                           AtomicInteger pending, boolean hedge) {
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> future = attemptExecutor.submit(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            long startedAt = System.nanoTime();
+            try {
+                UpstreamResponse response = attempt.call();
+                onResponse(response.getStatus(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+                // 5xx时若另一次调用仍在进行，等它的结果
+                boolean failed = response.getStatus() >= 500;
+                if ((!failed || pending.decrementAndGet() == 0) && result.complete(response) && hedge && !failed) {
+                    hedgeWins.incrementAndGet();
+                }
+            } catch (Throwable t) {
+                // 已有结果或已超时后被取消的调用不计入熔断，只归还许可
+                if (!result.isDone()) {
+                    embyCircuitBreaker.onFailure();
+                } else {
+                    embyCircuitBreaker.release();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        return new Attempt(started, future);
+    }
+
+    private record Attempt(AtomicBoolean started, Future<?> future) {
+    }
+
+    private void recordLatency(long latencyMs) {
+        long now = System.currentTimeMillis();
+        if (now - windowStartedAt >= latencyWindowMs && rotateLock.tryLock()) {
+            try {
+                if (now - windowStartedAt >= latencyWindowMs) {
+                    previousWindow = currentWindow;
+                    currentWindow = new LatencyHistogram();
+                    windowStartedAt = now;
+                }
+            } finally {
+                rotateLock.unlock();
+            }
+        }
+        currentWindow.record(latencyMs);
+        latency.record(latencyMs);
+    }
+
+    /**
+     * 对冲延迟：近期p95，不低于min-delay-ms；未启用或样本不足时返回-1
+     */
+    private long hedgeDelayMs() {
+        if (!hedgeEnabled) {
+            return -1;
+        }
+        LatencyHistogram current = currentWindow;
+        LatencyHistogram previous = previousWindow;
+        if (current.count() + previous.count() < hedgeMinSamples) {
+            return -1;
+        }
+        return Math.max(hedgeMinDelayMs, current.percentile(0.95, previous));
+    }
+}
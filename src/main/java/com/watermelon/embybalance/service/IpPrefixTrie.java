@@ -0,0 +1,293 @@
+package com.watermelon.embybalance.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IPv4/IPv6前缀二叉字典树，最长前缀匹配
+ * 构建完成后不可变：节点保存在int数组中（每个节点两个子节点下标和一个值下标），
+ * 查找时逐位下降，记录经过的最后一个有值节点，最多32/128步，不分配对象。
+ * 更新映射时构建新的字典树整体替换，读取方无需加锁
+ *
+ * @param <V> 前缀对应的值
+ */
+public final class IpPrefixTrie<V> {
+
+    private final Tree v4;
+    private final Tree v6;
+    private final List<V> values;
+
+    private IpPrefixTrie(Tree v4, Tree v6, List<V> values) {
+        this.v4 = v4;
+        this.v6 = v6;
+        this.values = values;
+    }
+
+    public static <V> Builder<V> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * 查找地址的最长匹配前缀对应的值，地址无效或没有匹配时返回null
+     */
+    public V lookup(String address) {
+        byte[] bytes = parseAddress(address);
+        return bytes != null ? lookup(bytes) : null;
+    }
+
+    public V lookup(byte[] address) {
+        Tree tree = address.length == 4 ? v4 : v6;
+        int index = tree.lookup(address);
+        return index >= 0 ? values.get(index) : null;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * 解析IP字面量，不是IP字面量时返回null
+     * 手写解析而不使用InetAddress.getByName：地址来自客户端转发头，主机名不能触发DNS解析
+     */
+    static byte[] parseAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        String literal = address.trim();
+        if (literal.startsWith("[") && literal.endsWith("]")) {
+            literal = literal.substring(1, literal.length() - 1);
+        }
+        int zone = literal.indexOf('%');
+        if (zone >= 0) {
+            literal = literal.substring(0, zone);
+        }
+        if (literal.indexOf(':') < 0) {
+            byte[] v4 = new byte[4];
+            return parseIpv4(literal, 0, literal.length(), v4, 0) ? v4 : null;
+        }
+        byte[] v6 = parseIpv6(literal);
+        if (v6 == null) {
+            return null;
+        }
+        // IPv4映射的IPv6地址（::ffff:a.b.c.d）按4字节的IPv4地址处理
+        for (int i = 0; i < 10; i++) {
+            if (v6[i] != 0) {
+                return v6;
+            }
+        }
+        return v6[10] == (byte) 0xff && v6[11] == (byte) 0xff ? Arrays.copyOfRange(v6, 12, 16) : v6;
+    }
+
+    /**
+     * 解析点分十进制的IPv4地址写入target[offset..offset+4)，格式不符时返回false
+     */
+    private static boolean parseIpv4(String text, int from, int to, byte[] target, int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = from; i <= to; i++) {
+            char c = i < to ? text.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return false;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || part == 4) {
+                    return false;
+                }
+                target[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        return part == 4;
+    }
+
+    /**
+     * 解析IPv6地址（支持::压缩和末尾的点分IPv4），格式不符时返回null
+     */
+    private static byte[] parseIpv6(String text) {
+        byte[] bytes = new byte[16];
+        int length = text.length();
+        int index = 0;
+        int position = 0;
+        int compressAt = -1;
+        if (text.startsWith("::")) {
+            compressAt = 0;
+            index = 2;
+        } else if (text.startsWith(":")) {
+            return null;
+        }
+        while (index < length) {
+            if (position == 16) {
+                return null;
+            }
+            int start = index;
+            int value = 0;
+            while (index < length && index - start < 5 && Character.digit(text.charAt(index), 16) >= 0) {
+                value = (value << 4) | Character.digit(text.charAt(index), 16);
+                index++;
+            }
+            if (index < length && text.charAt(index) == '.') {
+                // 末尾的IPv4部分占最后4个字节
+                if (position > 12 || !parseIpv4(text, start, length, bytes, position)) {
+                    return null;
+                }
+                position += 4;
+                index = length;
+                break;
+            }
+            int digits = index - start;
+            if (digits == 0 || digits > 4) {
+                return null;
+            }
+            bytes[position++] = (byte) (value >>> 8);
+            bytes[position++] = (byte) value;
+            if (index == length) {
+                break;
+            }
+            if (text.charAt(index) != ':') {
+                return null;
+            }
+            index++;
+            if (index < length && text.charAt(index) == ':') {
+                if (compressAt >= 0) {
+                    return null;
+                }
+                compressAt = position;
+                index++;
+            } else if (index == length) {
+                // 以单个冒号结尾
+                return null;
+            }
+        }
+        if (compressAt < 0) {
+            return position == 16 ? bytes : null;
+        }
+        if (position == 16) {
+            return null;
+        }
+        // ::处补零：把压缩位置之后的字节移到末尾
+        int tail = position - compressAt;
+        System.arraycopy(bytes, compressAt, bytes, 16 - tail, tail);
+        Arrays.fill(bytes, compressAt, 16 - tail, (byte) 0);
+        return bytes;
+    }
+
+    /**
+     * 收集前缀后一次性构建字典树
+     */
+    public static final class Builder<V> {
+
+        private final Tree.Mutable v4 = new Tree.Mutable();
+        private final Tree.Mutable v6 = new Tree.Mutable();
+        private final List<V> values = new ArrayList<>();
+
+        /**
+         * 添加一个CIDR前缀，如 10.0.0.0/8、2001:db8::/32；不带长度时按单个地址处理
+         * 同一前缀重复添加时后添加的值生效
+         *
+         * @throws IllegalArgumentException CIDR格式无效
+         */
+        public Builder<V> add(String cidr, V value) {
+            String[] parts = cidr.trim().split("/", 2);
+            byte[] address = parseAddress(parts[0]);
+            if (address == null) {
+                throw new IllegalArgumentException("无效的IP地址: " + cidr);
+            }
+            int maxLength = address.length * 8;
+            int prefixLength;
+            try {
+                prefixLength = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : maxLength;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("无效的前缀长度: " + cidr);
+            }
+            if (prefixLength < 0 || prefixLength > maxLength) {
+                throw new IllegalArgumentException("前缀长度必须在0-" + maxLength + "之间: " + cidr);
+            }
+            values.add(value);
+            (address.length == 4 ? v4 : v6).insert(address, prefixLength, values.size() - 1);
+            return this;
+        }
+
+        public IpPrefixTrie<V> build() {
+            return new IpPrefixTrie<>(v4.compile(), v6.compile(), List.copyOf(values));
+        }
+    }
+
+    /**
+     * 编译后的一棵树：children[2n]、children[2n+1]为节点n的0/1子节点（0表示没有），valueIndex[n]为值下标（-1表示没有）
+     */
+    private static final class Tree {
+
+        private final int[] children;
+        private final int[] valueIndex;
+
+        private Tree(int[] children, int[] valueIndex) {
+            this.children = children;
+            this.valueIndex = valueIndex;
+        }
+
+        int lookup(byte[] address) {
+            int node = 0;
+            int matched = valueIndex[0];
+            int bits = address.length * 8;
+            for (int bit = 0; bit < bits; bit++) {
+                node = children[2 * node + ((address[bit >>> 3] >>> (7 - (bit & 7))) & 1)];
+                if (node == 0) {
+                    break;
+                }
+                if (valueIndex[node] >= 0) {
+                    matched = valueIndex[node];
+                }
+            }
+            return matched;
+        }
+
+        /**
+         * 构建期使用的可变树
+         */
+        private static final class Mutable {
+
+            private int[] children = new int[64];
+            private int[] valueIndex = new int[32];
+            private int nodes = 1;
+
+            Mutable() {
+                Arrays.fill(valueIndex, -1);
+            }
+
+            void insert(byte[] address, int prefixLength, int value) {
+                int node = 0;
+                for (int bit = 0; bit < prefixLength; bit++) {
+                    int slot = 2 * node + ((address[bit >>> 3] >>> (7 - (bit & 7))) & 1);
+                    if (children[slot] == 0) {
+                        // newNode可能扩容数组，先分配再写入
+                        int child = newNode();
+                        children[slot] = child;
+                    }
+                    node = children[slot];
+                }
+                valueIndex[node] = value;
+            }
+
+            private int newNode() {
+                if (nodes == valueIndex.length) {
+                    children = Arrays.copyOf(children, children.length * 2);
+                    int oldLength = valueIndex.length;
+                    valueIndex = Arrays.copyOf(valueIndex, oldLength * 2);
+                    Arrays.fill(valueIndex, oldLength, valueIndex.length, -1);
+                }
+                return nodes++;
+            }
+
+            Tree compile() {
+                return new Tree(Arrays.copyOf(children, nodes * 2), Arrays.copyOf(valueIndex, nodes));
+            }
+        }
+    }
+}
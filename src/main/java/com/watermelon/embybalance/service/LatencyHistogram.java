@@ -0,0 +1,77 @@
+package com.watermelon.embybalance.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的延迟直方图
+ * 记录无锁，分位数按桶上界近似；桶边界覆盖1ms到30s，更慢的记入最后一个桶
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 300, 500, 750,
+            1000, 1500, 2000, 3000, 5000, 10000, 30000, Long.MAX_VALUE};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMs = new LongAdder();
+
+    public void record(long latencyMs) {
+        int index = 0;
+        while (latencyMs > BOUNDS_MS[index]) {
+            index++;
+        }
+        buckets.incrementAndGet(index);
+        count.increment();
+        sumMs.add(latencyMs);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * 近似分位数（毫秒），没有样本时返回-1
+     */
+    public long percentile(double quantile) {
+        return percentile(quantile, null);
+    }
+
+    /**
+     * 合并另一个直方图后的近似分位数，用于当前窗口与上一窗口一起计算
+     */
+    public long percentile(double quantile, LatencyHistogram other) {
+        long total = count() + (other != null ? other.count() : 0);
+        if (total == 0) {
+            return -1;
+        }
+        long target = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += buckets.get(i) + (other != null ? other.buckets.get(i) : 0);
+            if (seen >= target) {
+                // 最后一个桶没有上界，用30s代替
+                return i == BOUNDS_MS.length - 1 ? BOUNDS_MS[i - 1] : BOUNDS_MS[i];
+            }
+        }
+        return BOUNDS_MS[BOUNDS_MS.length - 2];
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long total = count();
+        stats.put("count", total);
+        stats.put("avgMs", total == 0 ? 0 : sumMs.sum() / total);
+        stats.put("p50Ms", percentile(0.5));
+        stats.put("p95Ms", percentile(0.95));
+        stats.put("p99Ms", percentile(0.99));
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            histogram.put(i == BOUNDS_MS.length - 1 ? "+Inf" : "le" + BOUNDS_MS[i], buckets.get(i));
+        }
+        stats.put("buckets", histogram);
+        return stats;
+    }
+}
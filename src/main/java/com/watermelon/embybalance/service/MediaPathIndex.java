@@ -0,0 +1,102 @@
+package com.watermelon.embybalance.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.watermelon.embybalance.entity.MediaItem;
+import com.watermelon.embybalance.repository.MediaItemRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * 媒体项到原始文件路径的本地索引
+ * 由经过代理的PlaybackInfo响应和媒体库爬虫填充，供原始文件重定向直接查询而不请求Emby。
+ * 每个MediaSource按 itemId/mediaSourceId 存一条，响应中的第一个MediaSource另按itemId存一条作为默认版本；
+ * 内存中未命中时回查媒体库爬虫保存的本地表
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MediaPathIndex {
+
+    private final Cache<String, MediaSourceInfo> mediaPathIndexCache;
+    private final MediaItemRepository mediaItemRepository;
+
+    /**
+     * 为一次PlaybackInfo响应创建索引回调
+     */
+    public PlaybackInfoRewriter.MediaSourceListener listenerFor(String itemId) {
+        return new PlaybackInfoRewriter.MediaSourceListener() {
+            private boolean first = true;
+
+            @Override
+            public void onMediaSource(String mediaSourceId, String path, Long size, Long bitrate) {
+                if (path != null) {
+                    put(new MediaSourceInfo(itemId, mediaSourceId, path, size, bitrate), first);
+                }
+                first = false;
+            }
+        };
+    }
+
+    public void put(MediaSourceInfo info, boolean defaultSource) {
+        if (info.getMediaSourceId() != null) {
+            mediaPathIndexCache.put(key(info.getItemId(), info.getMediaSourceId()), info);
+        }
+        if (defaultSource) {
+            mediaPathIndexCache.put(info.getItemId(), info);
+        }
+    }
+
+    /**
+     * 查找媒体源，未指定mediaSourceId时返回默认版本
+     */
+    public Optional<MediaSourceInfo> find(String itemId, String mediaSourceId) {
+        if (mediaSourceId != null && !mediaSourceId.isEmpty()) {
+            MediaSourceInfo info = mediaPathIndexCache.getIfPresent(key(itemId, mediaSourceId));
+            if (info == null) {
+                info = mediaItemRepository.findFirstByItemIdAndMediaSourceId(itemId, mediaSourceId)
+                        .map(MediaPathIndex::toInfo)
+                        .orElse(null);
+                if (info != null) {
+                    mediaPathIndexCache.put(key(itemId, mediaSourceId), info);
+                }
+            }
+            if (info != null) {
+                return Optional.of(info);
+            }
+        }
+        MediaSourceInfo info = mediaPathIndexCache.getIfPresent(itemId);
+        if (info == null) {
+            info = mediaItemRepository.findFirstByItemIdOrderBySourceIndexAsc(itemId)
+                    .map(MediaPathIndex::toInfo)
+                    .orElse(null);
+            if (info != null) {
+                mediaPathIndexCache.put(itemId, info);
+            }
+        }
+        return Optional.ofNullable(info);
+    }
+
+    static MediaSourceInfo toInfo(MediaItem item) {
+        return new MediaSourceInfo(item.getItemId(), item.getMediaSourceId(), item.getPath(), item.getSize(), item.getBitrate());
+    }
+
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = mediaPathIndexCache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", mediaPathIndexCache.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        return result;
+    }
+
+    private static String key(String itemId, String mediaSourceId) {
+        return itemId + "/" + mediaSourceId;
+    }
+}
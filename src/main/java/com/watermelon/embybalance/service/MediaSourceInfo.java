@@ -0,0 +1,18 @@
+package com.watermelon.embybalance.service;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * 媒体项某个MediaSource的原始文件信息
+ */
+@Getter
+@RequiredArgsConstructor
+public class MediaSourceInfo {
+
+    private final String itemId;
+    private final String mediaSourceId;
+    private final String path;
+    private final Long size;
+    private final Long bitrate;
+}
@@ -0,0 +1,323 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * nginx download_stats日志格式的逐字节解析（格式见nginx-statistics.conf.example）：
+ * <pre>
+ * $remote_addr - $remote_user [$time_local] "$request" $status $bytes_sent
+ * "$http_referer" "$http_user_agent" $request_time $upstream_response_time $request_length $body_bytes_sent
+ * </pre>
+ * 直接在ByteBuffer上按绝对位置扫描分隔符，不使用正则、不先解码成String，堆内缓冲和内存映射文件都可以解析。
+ * 只保留/emby_download请求，其余请求返回null。
+ * 非线程安全：缓存了上一行的时间，每个读取线程使用自己的实例
+ */
+public class NginxDownloadLogParser {
+
+    private static final byte[] DOWNLOAD_PATH = "/emby_download".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+            "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+    // $time_local的长度，如 17/Oct/2026:10:00:00 +0800
+    private static final int TIME_LOCAL_LENGTH = 26;
+
+    private final ZoneId zone;
+    private final byte[] lastTime = new byte[TIME_LOCAL_LENGTH];
+    private LocalDateTime lastCreatedAt;
+
+    public NginxDownloadLogParser() {
+        this(ZoneId.systemDefault());
+    }
+
+    public NginxDownloadLogParser(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * 解析[start, end)范围内的一行（不含换行符）
+     *
+     * @return 下载统计，不是/emby_download请求或没有route_id时返回null
+     * @throws IllegalArgumentException 行不符合download_stats格式
+     */
+    public DownloadStatistics parse(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        int i = start;
+        int j = indexOf(buffer, (byte) ' ', i, end);
+        String clientIp = ascii(buffer, i, j);
+        // " - $remote_user "
+        j = indexOf(buffer, (byte) ' ', j + 1, end);
+        j = indexOf(buffer, (byte) ' ', j + 1, end);
+        i = expect(buffer, j + 1, end, '[');
+        j = indexOf(buffer, (byte) ']', i, end);
+        LocalDateTime createdAt = parseTime(buffer, i, j);
+        i = expect(buffer, j + 2, end, '"');
+        j = indexOf(buffer, (byte) '"', i, end);
+        int requestStart = i;
+        int requestEnd = j;
+
+        i = j + 2;
+        j = indexOf(buffer, (byte) ' ', i, end);
+        int status = (int) parseLong(buffer, i, j);
+        // $bytes_sent
+        j = indexOf(buffer, (byte) ' ', j + 1, end);
+        // "$http_referer"
+        i = expect(buffer, j + 1, end, '"');
+        j = indexOf(buffer, (byte) '"', i, end);
+        i = expect(buffer, j + 2, end, '"');
+        j = indexOf(buffer, (byte) '"', i, end);
+        int userAgentStart = i;
+        int userAgentEnd = j;
+
+        i = j + 2;
+        j = indexOf(buffer, (byte) ' ', i, end);
+        long requestTime = parseMillis(buffer, i, j);
+        // 从行尾反向取$body_bytes_sent和$request_length，中间是可能包含", "的$upstream_response_time
+        int bodyBytesStart = lastIndexOf(buffer, (byte) ' ', j + 1, end) + 1;
+        long bodyBytesSent = parseLong(buffer, bodyBytesStart, end);
+        int requestLengthStart = lastIndexOf(buffer, (byte) ' ', j + 1, bodyBytesStart - 1) + 1;
+        long responseTime = parseUpstreamMillis(buffer, j + 1, requestLengthStart - 1);
+
+        DownloadStatistics statistics = parseRequest(buffer, requestStart, requestEnd);
+        if (statistics == null) {
+            return null;
+        }
+        statistics.setClientIp(clientIp);
+        statistics.setDownloadSize(bodyBytesSent);
+        statistics.setDownloadDuration(requestTime);
+        statistics.setResponseTime(responseTime);
+        // 播放器的Range请求返回206，同样算成功
+        statistics.setSuccess(status >= 200 && status < 300);
+        statistics.setUserAgent(userAgentEnd > userAgentStart && !(userAgentEnd - userAgentStart == 1
+                && buffer.get(userAgentStart) == '-') ? utf8(buffer, userAgentStart, userAgentEnd) : null);
+        statistics.setCreatedAt(createdAt);
+        return statistics;
+    }
+
+    /**
+     * 从请求行"GET /emby_download?route_id=1&path=...&lease_id=... HTTP/1.1"中取出线路ID、文件路径和准入租约ID
+     */
+    private static DownloadStatistics parseRequest(ByteBuffer buffer, int start, int end) {
+        int uriStart = indexOfOrEnd(buffer, (byte) ' ', start, end) + 1;
+        if (uriStart >= end || end - uriStart < DOWNLOAD_PATH.length) {
+            return null;
+        }
+        for (int k = 0; k < DOWNLOAD_PATH.length; k++) {
+            if (buffer.get(uriStart + k) != DOWNLOAD_PATH[k]) {
+                return null;
+            }
+        }
+        int uriEnd = indexOfOrEnd(buffer, (byte) ' ', uriStart, end);
+        int queryStart = uriStart + DOWNLOAD_PATH.length;
+        if (queryStart >= uriEnd || buffer.get(queryStart) != '?') {
+            return null;
+        }
+
+        long routeId = -1;
+        String filePath = null;
+        Long leaseId = null;
+        int param = queryStart + 1;
+        while (param < uriEnd) {
+            int paramEnd = indexOfOrEnd(buffer, (byte) '&', param, uriEnd);
+            int equals = indexOfOrEnd(buffer, (byte) '=', param, paramEnd);
+            if (equals < paramEnd) {
+                if (matches(buffer, param, equals, "route_id")) {
+                    try {
+                        routeId = parseLong(buffer, equals + 1, paramEnd);
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                } else if (matches(buffer, param, equals, "path")) {
+                    filePath = URLDecoder.decode(ascii(buffer, equals + 1, paramEnd), StandardCharsets.UTF_8);
+                } else if (matches(buffer, param, equals, "lease_id")) {
+                    try {
+                        leaseId = parseLong(buffer, equals + 1, paramEnd);
+                    } catch (IllegalArgumentException e) {
+                        // 租约ID无效时记录照常入库，租约由过期回收释放
+                        leaseId = null;
+                    }
+                }
+            }
+            param = paramEnd + 1;
+        }
+        if (routeId <= 0) {
+            return null;
+        }
+        DownloadStatistics statistics = new DownloadStatistics();
+        statistics.setRouteId(routeId);
+        statistics.setFilePath(filePath);
+        statistics.setLeaseId(leaseId);
+        return statistics;
+    }
+
+    /**
+     * 解析$time_local，同一秒内的日志行直接复用上一行的结果
+     */
+    private LocalDateTime parseTime(ByteBuffer buffer, int start, int end) {
+        if (end - start != TIME_LOCAL_LENGTH) {
+            throw new IllegalArgumentException("时间格式错误");
+        }
+        if (lastCreatedAt != null) {
+            boolean same = true;
+            for (int k = 0; k < TIME_LOCAL_LENGTH && same; k++) {
+                same = buffer.get(start + k) == lastTime[k];
+            }
+            if (same) {
+                return lastCreatedAt;
+            }
+        }
+        int day = (int) parseLong(buffer, start, start + 2);
+        int month = parseMonth(buffer, start + 3);
+        int year = (int) parseLong(buffer, start + 7, start + 11);
+        int hour = (int) parseLong(buffer, start + 12, start + 14);
+        int minute = (int) parseLong(buffer, start + 15, start + 17);
+        int second = (int) parseLong(buffer, start + 18, start + 20);
+        byte sign = buffer.get(start + 21);
+        int offsetMinutes = (int) parseLong(buffer, start + 22, start + 24) * 60 + (int) parseLong(buffer, start + 24, start + 26);
+        ZoneOffset offset = ZoneOffset.ofTotalSeconds((sign == '-' ? -offsetMinutes : offsetMinutes) * 60);
+        LocalDateTime createdAt = LocalDateTime.of(year, month, day, hour, minute, second)
+                .atOffset(offset).atZoneSameInstant(zone).toLocalDateTime();
+        for (int k = 0; k < TIME_LOCAL_LENGTH; k++) {
+            lastTime[k] = buffer.get(start + k);
+        }
+        lastCreatedAt = createdAt;
+        return createdAt;
+    }
+
+    private static int parseMonth(ByteBuffer buffer, int start) {
+        for (int m = 0; m < MONTHS.length; m++) {
+            if (matches(buffer, start, start + 3, MONTHS[m])) {
+                return m + 1;
+            }
+        }
+        throw new IllegalArgumentException("月份格式错误");
+    }
+
+    /**
+     * $upstream_response_time可能是"-"，也可能是多个上游的"0.012, 0.034"，取最后一个上游的时间
+     */
+    private static long parseUpstreamMillis(ByteBuffer buffer, int start, int end) {
+        int valueStart = end;
+        while (valueStart > start) {
+            byte b = buffer.get(valueStart - 1);
+            if (b == ' ' || b == ',' || b == ':') {
+                break;
+            }
+            valueStart--;
+        }
+        if (valueStart >= end || buffer.get(valueStart) == '-') {
+            return 0;
+        }
+        return parseMillis(buffer, valueStart, end);
+    }
+
+    /**
+     * 把"1.234"形式的秒数解析为毫秒
+     */
+    private static long parseMillis(ByteBuffer buffer, int start, int end) {
+        long millis = 0;
+        int fractionDigits = -1;
+        for (int k = start; k < end; k++) {
+            byte b = buffer.get(k);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9') {
+                if (fractionDigits < 0) {
+                    millis = millis * 10 + (b - '0');
+                } else if (fractionDigits < 3) {
+                    millis = millis * 10 + (b - '0');
+                    fractionDigits++;
+                }
+            } else {
+                throw new IllegalArgumentException("时间字段格式错误");
+            }
+        }
+        if (end <= start) {
+            throw new IllegalArgumentException("时间字段为空");
+        }
+        for (int k = Math.max(fractionDigits, 0); k < 3; k++) {
+            millis *= 10;
+        }
+        return millis;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int start, int end) {
+        if (end <= start) {
+            throw new IllegalArgumentException("数值字段为空");
+        }
+        long value = 0;
+        for (int k = start; k < end; k++) {
+            byte b = buffer.get(k);
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("数值字段格式错误");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private static int expect(ByteBuffer buffer, int index, int end, char expected) {
+        if (index >= end || buffer.get(index) != expected) {
+            throw new IllegalArgumentException("缺少'" + expected + "'");
+        }
+        return index + 1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte target, int from, int end) {
+        for (int k = from; k < end; k++) {
+            if (buffer.get(k) == target) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("日志行不完整");
+    }
+
+    private static int indexOfOrEnd(ByteBuffer buffer, byte target, int from, int end) {
+        for (int k = from; k < end; k++) {
+            if (buffer.get(k) == target) {
+                return k;
+            }
+        }
+        return end;
+    }
+
+    private static int lastIndexOf(ByteBuffer buffer, byte target, int from, int end) {
+        for (int k = end - 1; k >= from; k--) {
+            if (buffer.get(k) == target) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("日志行不完整");
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int k = 0; k < text.length(); k++) {
+            if (buffer.get(start + k) != text.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String utf8(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
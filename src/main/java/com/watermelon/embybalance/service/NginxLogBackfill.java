@@ -0,0 +1,571 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 历史nginx下载日志的并行回填
+ * 未压缩的日志按chunk-bytes切分，切分点向后对齐到换行，每块单独内存映射；.gz文件不能切分，整个文件流式解压。
+ * 各块在ForkJoinPool上用{@link NginxDownloadLogParser}并行解析，结果按batch-size分批放入有界队列，
+ * 由回填线程单独用多行INSERT写入（SQLite只有一个写入者，并行写入只会互相等待）。
+ *
+ * 回填的记录不经过写入队列，也不计入进行中下载数；小时聚合由定时聚合按ID顺序补上。
+ *
+ * 开启日志跟踪时，跟踪中的文件（当前日志和轮转后尚未读完的文件）不回填，由日志跟踪导入。
+ * 每个文件的所有块写入后按内容指纹（解压后开头64KB的SHA-256）记录到sync_checkpoints，
+ * 再次回填时跳过，轮转改名或压缩后的同一文件也不会重复导入。
+ * 开启日志跟踪之后轮转出的文件已由日志跟踪导入，不应再回填
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class NginxLogBackfill {
+
+    private static final int GZIP_BUFFER_BYTES = 256 * 1024;
+    private static final long PROGRESS_LOG_INTERVAL_MS = 5000;
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+    static final String CHECKPOINT_PREFIX = "nginx-log-backfill:";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrencyLimiter sqliteLimiter;
+    private final RoutePerformanceWindow routePerformanceWindow;
+    private final SyncCheckpointRepository syncCheckpointRepository;
+
+    private volatile Thread worker;
+    private volatile boolean stopping;
+    private volatile Progress progress;
+
+    // 只允许回填该目录下的文件
+    @Value("${app.statistics.backfill.directory:/var/log/nginx}")
+    private String directory;
+
+    @Value("${app.statistics.backfill.parallelism:0}")
+    private int parallelism;
+
+    @Value("${app.statistics.backfill.chunk-bytes:33554432}")
+    private long chunkBytes;
+
+    @Value("${app.statistics.backfill.batch-size:5000}")
+    private int batchSize;
+
+    // 单行最大字节数，.gz文件逐行读取时使用
+    @Value("${app.statistics.backfill.max-line-bytes:65536}")
+    private int maxLineBytes;
+
+    @Value("${app.statistics.tailer.enabled:false}")
+    private boolean tailerEnabled;
+
+    @Value("${app.statistics.tailer.path:/var/log/nginx/download_stats.log}")
+    private String tailerPath;
+
+    /**
+     * 在后台开始回填目录中文件名匹配pattern的日志，已有回填在进行时抛出IllegalStateException。
+     * 日志跟踪中的文件和已经回填过的文件被跳过，全部跳过时不启动回填，直接返回结果
+     *
+     * @param pattern glob格式的文件名，如 download_stats.log.*
+     */
+    public synchronized Map<String, Object> start(String pattern) throws IOException {
+        if (worker != null && worker.isAlive()) {
+            throw new IllegalStateException("已有回填任务在进行");
+        }
+        List<Path> matched = resolve(pattern);
+        if (matched.isEmpty()) {
+            throw new IllegalArgumentException("目录" + directory + "中没有匹配" + pattern + "的文件");
+        }
+        Progress started = new Progress();
+        Set<String> tailed = tailedFileKeys();
+        Path live = tailerEnabled ? Path.of(tailerPath).toAbsolutePath().normalize() : null;
+        for (Path file : matched) {
+            String name = file.getFileName().toString();
+            if (tailerEnabled && (file.equals(live) || tailed.contains(NginxLogTailer.fileKeyOf(file)))) {
+                started.tailed.add(name);
+                continue;
+            }
+            LogFile identity = identify(file);
+            boolean duplicate = started.files.values().stream()
+                    .anyMatch(other -> other.fingerprint().equals(identity.fingerprint()));
+            if (duplicate || syncCheckpointRepository.existsById(identity.checkpointName())) {
+                started.alreadyImported.add(name);
+                continue;
+            }
+            started.files.put(file, identity);
+        }
+        progress = started;
+        if (started.files.isEmpty()) {
+            started.finishedAt = System.currentTimeMillis();
+            log.info("没有需要回填的nginx日志: {}", started.toMap());
+            return started.toMap();
+        }
+        stopping = false;
+        Thread thread = new Thread(() -> run(started), "nginx-log-backfill");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+        return started.toMap();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        Thread thread = worker;
+        if (thread != null) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Progress current = progress;
+        return current != null ? current.toMap() : Map.of("running", false);
+    }
+
+    private List<Path> resolve(String pattern) throws IOException {
+        Path root = Path.of(directory).toAbsolutePath().normalize();
+        if (pattern == null || pattern.isBlank() || pattern.contains("/") || pattern.contains("\\")) {
+            throw new IllegalArgumentException("文件名模式不能为空，也不能包含路径");
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, pattern)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * 日志跟踪正在读取的文件：当前日志，以及断点所在的文件（轮转后日志跟踪会先读完上一个文件）
+     */
+    private Set<String> tailedFileKeys() throws IOException {
+        Set<String> keys = new HashSet<>();
+        if (!tailerEnabled) {
+            return keys;
+        }
+        Path live = Path.of(tailerPath);
+        if (Files.exists(live)) {
+            keys.add(NginxLogTailer.fileKeyOf(live));
+        }
+        syncCheckpointRepository.findById(NginxLogTailer.CHECKPOINT_NAME).ifPresent(checkpoint -> {
+            int separator = checkpoint.getPosition().lastIndexOf('@');
+            if (separator > 0) {
+                keys.add(checkpoint.getPosition().substring(0, separator));
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * 文件标识：内容指纹用于判断是否已回填，文件名、fileKey、大小和修改时间只记录在断点中备查
+     */
+    private static LogFile identify(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+        InputStream raw = Files.newInputStream(file);
+        try (InputStream input = file.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(raw) : raw) {
+            byte[] head = input.readNBytes(FINGERPRINT_BYTES);
+            digest.update(head);
+        }
+        return new LogFile(HexFormat.of().formatHex(digest.digest()), file.getFileName().toString(),
+                NginxLogTailer.fileKeyOf(file), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * 文件的所有块都已写入，记录为已回填
+     */
+    private void markImported(Progress job, Path file) throws Exception {
+        LogFile identity = job.files.get(file);
+        sqliteLimiter.run(() -> syncCheckpointRepository.save(
+                new SyncCheckpoint(identity.checkpointName(), identity.position(), null)));
+        job.filesImported.incrementAndGet();
+    }
+
+    private void run(Progress job) {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(threads * 2);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Unit> units = split(List.copyOf(job.files.keySet()), job);
+            for (Unit unit : units) {
+                job.pendingUnits.computeIfAbsent(unit.file(), file -> new AtomicInteger()).incrementAndGet();
+            }
+            job.units.set(units.size());
+            log.info("开始回填nginx日志: 文件={}, 分块={}, 并行度={}, 字节数={}",
+                    job.files.size(), units.size(), threads, job.totalBytes.get());
+            ForkJoinTask<Void> parsing = pool.submit(new ParseTask(units, 0, units.size(), batches, job));
+            long lastLogAt = System.currentTimeMillis();
+            while (true) {
+                Batch batch = batches.poll(200, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    if (!batch.rows().isEmpty()) {
+                        insert(batch.rows());
+                        job.inserted.addAndGet(batch.rows().size());
+                    }
+                    if (batch.last() && job.pendingUnits.get(batch.file()).decrementAndGet() == 0) {
+                        markImported(job, batch.file());
+                    }
+                } else if (parsing.isDone() && batches.isEmpty()) {
+                    break;
+                }
+                if (System.currentTimeMillis() - lastLogAt >= PROGRESS_LOG_INTERVAL_MS) {
+                    lastLogAt = System.currentTimeMillis();
+                    log.info("nginx日志回填进度: {}", job.toMap());
+                }
+            }
+            parsing.join();
+            log.info("nginx日志回填完成: {}", job.toMap());
+        } catch (Exception e) {
+            job.error = e.getMessage();
+            stopping = true;
+            log.error("nginx日志回填失败，已写入{}条", job.inserted.get(), e);
+        } finally {
+            pool.shutdownNow();
+            job.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 把未压缩文件切成约chunk-bytes的块，块边界对齐到下一个换行之后；.gz文件和空文件整体作为一块
+     */
+    List<Unit> split(List<Path> files, Progress job) throws IOException {
+        List<Unit> units = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        // 每块单独映射，块大小不能超过MappedByteBuffer的int上限
+        long targetBytes = Math.max(1, Math.min(chunkBytes, Integer.MAX_VALUE / 2));
+        for (Path file : files) {
+            long size = Files.size(file);
+            job.totalBytes.addAndGet(size);
+            if (file.getFileName().toString().endsWith(".gz")) {
+                units.add(new Unit(file, 0, size, true));
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long start = 0;
+                do {
+                    long end = start + targetBytes >= size ? size : nextLineStart(channel, start + targetBytes, size, probe);
+                    units.add(new Unit(file, start, end, false));
+                    start = end;
+                } while (start < size);
+            }
+        }
+        return units;
+    }
+
+    /**
+     * 从position-1开始找换行，返回换行之后的位置
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+        long offset = position - 1;
+        while (offset < size) {
+            probe.clear();
+            int read = channel.read(probe, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    /**
+     * 按块范围二分，叶子任务解析一个块
+     */
+    private final class ParseTask extends RecursiveAction {
+
+        private final List<Unit> units;
+        private final int from;
+        private final int to;
+        private final BlockingQueue<Batch> batches;
+        private final Progress job;
+
+        ParseTask(List<Unit> units, int from, int to, BlockingQueue<Batch> batches, Progress job) {
+            this.units = units;
+            this.from = from;
+            this.to = to;
+            this.batches = batches;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            if (to <= from) {
+                return;
+            }
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(units, from, middle, batches, job), new ParseTask(units, middle, to, batches, job));
+                return;
+            }
+            Unit unit = units.get(from);
+            try {
+                ChunkParser parser = new ChunkParser(unit.file(), batches, job);
+                if (unit.gzip()) {
+                    parser.parseGzip(unit.file());
+                } else {
+                    parser.parseMapped(unit);
+                }
+                parser.flush(true);
+                job.unitsDone.incrementAndGet();
+            } catch (IOException e) {
+                throw new IllegalStateException("读取" + unit.file() + "失败: " + e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("回填已中断", e);
+            }
+        }
+    }
+
+    /**
+     * 单个块的解析，只在一个线程内使用
+     */
+    private final class ChunkParser {
+
+        private final NginxDownloadLogParser parser = new NginxDownloadLogParser();
+        private final Path file;
+        private final BlockingQueue<Batch> batches;
+        private final Progress job;
+        private List<DownloadStatistics> batch;
+        private long lines;
+        private long skipped;
+        private long parseErrors;
+
+        ChunkParser(Path file, BlockingQueue<Batch> batches, Progress job) {
+            this.file = file;
+            this.batches = batches;
+            this.job = job;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        void parseMapped(Unit unit) throws IOException, InterruptedException {
+            try (FileChannel channel = FileChannel.open(unit.file(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, unit.start(), unit.end() - unit.start());
+                int end = mapped.limit();
+                int lineStart = 0;
+                for (int i = 0; i < end; i++) {
+                    if (mapped.get(i) == '\n') {
+                        line(mapped, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart < end) {
+                    line(mapped, lineStart, end);
+                }
+            }
+            job.processedBytes.addAndGet(unit.end() - unit.start());
+        }
+
+        void parseGzip(Path file) throws IOException, InterruptedException {
+            ByteBuffer buffer = ByteBuffer.allocate(maxLineBytes);
+            byte[] chunk = new byte[GZIP_BUFFER_BYTES];
+            boolean discarding = false;
+            try (InputStream input = new GZIPInputStream(Files.newInputStream(file), GZIP_BUFFER_BYTES)) {
+                int read;
+                while ((read = input.read(chunk)) > 0) {
+                    for (int i = 0; i < read; i++) {
+                        byte b = chunk[i];
+                        if (b == '\n') {
+                            if (!discarding) {
+                                line(buffer, 0, buffer.position());
+                            }
+                            discarding = false;
+                            buffer.clear();
+                        } else if (!buffer.hasRemaining()) {
+                            // 超长行丢弃到下一个换行
+                            if (!discarding) {
+                                parseErrors++;
+                                discarding = true;
+                            }
+                        } else {
+                            buffer.put(b);
+                        }
+                    }
+                }
+                if (buffer.position() > 0 && !discarding) {
+                    line(buffer, 0, buffer.position());
+                }
+            }
+            job.processedBytes.addAndGet(Files.size(file));
+        }
+
+        private void line(ByteBuffer buffer, int start, int end) throws InterruptedException {
+            if (end <= start) {
+                return;
+            }
+            lines++;
+            DownloadStatistics statistics;
+            try {
+                statistics = parser.parse(buffer, start, end);
+            } catch (IllegalArgumentException e) {
+                parseErrors++;
+                return;
+            }
+            if (statistics == null) {
+                skipped++;
+                return;
+            }
+            statistics.calculateBandwidth();
+            batch.add(statistics);
+            if (batch.size() >= batchSize) {
+                flush(false);
+            }
+        }
+
+        /**
+         * @param last 块已解析完，即使没有记录也要通知回填线程，用于判断文件是否全部写入
+         */
+        void flush(boolean last) throws InterruptedException {
+            job.lines.addAndGet(lines);
+            job.skipped.addAndGet(skipped);
+            job.parseErrors.addAndGet(parseErrors);
+            lines = 0;
+            skipped = 0;
+            parseErrors = 0;
+            if (batch.isEmpty() && !last) {
+                return;
+            }
+            // 队列满时等待回填线程写入；回填线程出错或停机时放弃
+            while (!batches.offer(new Batch(file, batch, last), 200, TimeUnit.MILLISECONDS)) {
+                if (stopping) {
+                    throw new IllegalStateException("回填已停止");
+                }
+            }
+            job.records.addAndGet(batch.size());
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /**
+     * 在一个事务中用多行INSERT写入，各行ID从生成键读取，并计入内存性能窗口（超过24小时的记录窗口会忽略）
+     */
+    void insert(List<DownloadStatistics> batch) throws Exception {
+        sqliteLimiter.run(() -> transactionTemplate.executeWithoutResult(
+                status -> StatisticsIngestPipeline.insertRows(jdbcTemplate, batch)));
+        for (DownloadStatistics row : batch) {
+            routePerformanceWindow.record(row.getId(), row.getRouteId(), row.getCreatedAt(),
+                    row.getBandwidth(), row.getResponseTime(), row.getSuccess());
+        }
+    }
+
+    record Unit(Path file, long start, long end, boolean gzip) {
+    }
+
+    /**
+     * 一个块解析出的一批记录，last表示该块的最后一批
+     */
+    record Batch(Path file, List<DownloadStatistics> rows, boolean last) {
+    }
+
+    /**
+     * 回填文件的标识，断点名为内容指纹，断点位置记录文件名、fileKey、大小和修改时间
+     */
+    record LogFile(String fingerprint, String name, String fileKey, long size, long modifiedAt) {
+
+        String checkpointName() {
+            return CHECKPOINT_PREFIX + fingerprint;
+        }
+
+        String position() {
+            return name + "|" + fileKey + "|" + size + "|" + modifiedAt;
+        }
+    }
+
+    /**
+     * 一次回填的进度，各计数由解析线程和回填线程并发更新
+     */
+    static final class Progress {
+
+        private final Map<Path, LogFile> files = new LinkedHashMap<>();
+        private final List<String> tailed = new ArrayList<>();
+        private final List<String> alreadyImported = new ArrayList<>();
+        private final Map<Path, AtomicInteger> pendingUnits = new ConcurrentHashMap<>();
+        private final AtomicLong filesImported = new AtomicLong();
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong units = new AtomicLong();
+        private final AtomicLong unitsDone = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private final AtomicLong processedBytes = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong parseErrors = new AtomicLong();
+        private final AtomicLong inserted = new AtomicLong();
+        private volatile long finishedAt;
+        private volatile String error;
+
+        Map<String, Object> toMap() {
+            long elapsedMs = Math.max(1, (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt);
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("running", finishedAt == 0);
+            map.put("files", files.values().stream().map(LogFile::name).toList());
+            map.put("filesImported", filesImported.get());
+            map.put("alreadyImported", alreadyImported);
+            map.put("tailed", tailed);
+            map.put("units", units.get());
+            map.put("unitsDone", unitsDone.get());
+            map.put("totalBytes", totalBytes.get());
+            map.put("processedBytes", processedBytes.get());
+            map.put("lines", lines.get());
+            map.put("records", records.get());
+            map.put("skipped", skipped.get());
+            map.put("parseErrors", parseErrors.get());
+            map.put("inserted", inserted.get());
+            map.put("elapsedMs", elapsedMs);
+            map.put("linesPerSecond", lines.get() * 1000 / elapsedMs);
+            map.put("insertedPerSecond", inserted.get() * 1000 / elapsedMs);
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * nginx下载日志跟踪，取代定时运行的scripts/parse_nginx_logs.py
+ * 单个线程用FileChannel按位置读取download_stats日志，逐行解析后直接提交到下载统计写入队列，
+ * 没有新数据时每poll-interval-ms检查一次，新写入的日志在一秒内计入线路性能窗口。
+ *
+ * 轮转：文件标识（inode）变化时先把旧文件读到末尾再切换到新文件，文件变短（copytruncate）时从头读取。
+ * 断点：读取位置和文件标识保存在sync_checkpoints中，只推进到写入队列已经处理完的行，
+ * 崩溃后重复读取的行不超过未写入的部分；停机时的轮转由断点中的文件标识在path.1中找回
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class NginxLogTailer {
+
+    static final String CHECKPOINT_NAME = "nginx-log-tailer";
+    // 轮转待确认的断点上限，超过时合并最新的两个
+    private static final int MAX_PENDING_CHECKPOINTS = 1024;
+    // 单次连续读取的上限，读完后检查一次断点和轮转
+    private static final long MAX_BYTES_PER_POLL = 8L * 1024 * 1024;
+
+    private final DownloadStatisticsService downloadStatisticsService;
+    private final StatisticsIngestPipeline statisticsIngestPipeline;
+    private final SyncCheckpointRepository syncCheckpointRepository;
+    private final ConcurrencyLimiter sqliteLimiter;
+
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong truncations = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    // 以下状态只由跟踪线程访问
+    private final NginxDownloadLogParser parser = new NginxDownloadLogParser();
+    private final Deque<PendingCheckpoint> pending = new ArrayDeque<>();
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private boolean discarding;
+    private boolean resumed;
+    private PendingCheckpoint durable;
+    private long lastCheckpointAt;
+
+    // 以下状态供指标接口读取
+    private volatile String fileKey;
+    private volatile long position;
+    private volatile String savedCheckpoint;
+    private volatile Thread tailer;
+    private volatile boolean stopping;
+
+    @Value("${app.statistics.tailer.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.statistics.tailer.path:/var/log/nginx/download_stats.log}")
+    private String path;
+
+    @Value("${app.statistics.tailer.poll-interval-ms:200}")
+    private long pollIntervalMs;
+
+    @Value("${app.statistics.tailer.checkpoint-interval-ms:1000}")
+    private long checkpointIntervalMs;
+
+    @Value("${app.statistics.tailer.read-buffer-bytes:65536}")
+    private int readBufferBytes;
+
+    // 没有断点时从文件末尾开始，历史日志用回填导入
+    @Value("${app.statistics.tailer.start-from-end:true}")
+    private boolean startFromEnd;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        buffer = ByteBuffer.allocate(readBufferBytes);
+        Thread thread = new Thread(this::run, "nginx-log-tailer");
+        thread.setDaemon(true);
+        tailer = thread;
+        thread.start();
+        log.info("nginx下载日志跟踪已启动: {}", path);
+    }
+
+    /**
+     * 停止读取，等待已提交的记录写入后保存最终断点
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        Thread thread = tailer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join(TimeUnit.SECONDS.toMillis(15));
+        }
+    }
+
+    private void run() {
+        while (!stopping) {
+            boolean progressed = false;
+            try {
+                progressed = poll();
+                commitCheckpoint(false);
+            } catch (Exception e) {
+                log.warn("跟踪nginx日志失败，稍后重新打开: {}", e.getMessage());
+                closeChannel();
+                resumed = false;
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(pollIntervalMs * 10));
+            }
+            if (!progressed && !stopping) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(pollIntervalMs));
+            }
+        }
+        // 等写入队列处理完已提交的记录，避免重启后重复读取
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!pending.isEmpty() && pending.peekLast().ticket() > statisticsIngestPipeline.processedCount()
+                && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        try {
+            commitCheckpoint(true);
+        } catch (Exception e) {
+            log.warn("保存nginx日志跟踪断点失败: {}", e.getMessage());
+        }
+        closeChannel();
+    }
+
+    /**
+     * 按断点打开日志文件：文件标识一致时从断点继续；停机期间发生轮转时先读完path.1中的剩余部分。
+     * 读取出错后重新打开时使用内存中的位置，不回退到数据库中的断点
+     */
+    private void resume() throws IOException {
+        Path live = Path.of(path);
+        String key;
+        long offset;
+        if (fileKey != null) {
+            key = fileKey;
+            offset = position - buffer.position();
+        } else {
+            SyncCheckpoint checkpoint = syncCheckpointRepository.findById(CHECKPOINT_NAME).orElse(null);
+            if (checkpoint == null) {
+                if (Files.exists(live)) {
+                    open(live, startFromEnd ? Files.size(live) : 0);
+                }
+                return;
+            }
+            savedCheckpoint = checkpoint.getPosition();
+            int separator = checkpoint.getPosition().lastIndexOf('@');
+            key = checkpoint.getPosition().substring(0, separator);
+            offset = Long.parseLong(checkpoint.getPosition().substring(separator + 1));
+        }
+        Path rotated = Path.of(path + ".1");
+        if (Files.exists(live) && key.equals(fileKeyOf(live))) {
+            open(live, offset);
+        } else if (Files.exists(rotated) && key.equals(fileKeyOf(rotated))) {
+            log.info("nginx日志已轮转，先读取{}的剩余部分", rotated);
+            open(rotated, offset);
+        } else if (Files.exists(live)) {
+            log.warn("断点对应的nginx日志文件已不存在，从{}开头读取", live);
+            open(live, 0);
+        }
+    }
+
+    /**
+     * 读取新写入的行；没有新数据时检查截断和轮转。首次调用时按断点打开文件，失败时下一轮重试
+     *
+     * @return 是否有进展，有进展时不等待直接进行下一轮
+     */
+    boolean poll() throws IOException {
+        Path live = Path.of(path);
+        if (!resumed) {
+            resume();
+            resumed = true;
+            return channel != null;
+        }
+        if (channel == null) {
+            if (!Files.exists(live)) {
+                return false;
+            }
+            open(live, 0);
+            return true;
+        }
+        if (readAvailable() > 0) {
+            return true;
+        }
+        if (channel.size() < position) {
+            truncations.incrementAndGet();
+            log.info("nginx日志被截断，从头读取: {}", path);
+            open(live, 0);
+            return true;
+        }
+        if (Files.exists(live) && !fileKeyOf(live).equals(fileKey)) {
+            // 旧文件已经读到末尾，未以换行结束的残行丢弃
+            rotations.incrementAndGet();
+            log.info("nginx日志已轮转，切换到新文件: {}", path);
+            open(live, 0);
+            return true;
+        }
+        return false;
+    }
+
+    private void open(Path file, long offset) throws IOException {
+        closeChannel();
+        String key = fileKeyOf(file);
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.READ);
+        long size = opened.size();
+        if (offset > size) {
+            truncations.incrementAndGet();
+            log.info("nginx日志比断点位置短，从头读取: {}", file);
+            offset = 0;
+        }
+        channel = opened;
+        fileKey = key;
+        position = offset;
+        buffer.clear();
+        discarding = false;
+        addPending(offset);
+    }
+
+    /**
+     * 从当前位置读到文件末尾，逐行提交，残行留在缓冲区中等下次读取
+     */
+    private long readAvailable() throws IOException {
+        long total = 0;
+        while (total < MAX_BYTES_PER_POLL && !stopping) {
+            if (!buffer.hasRemaining()) {
+                // 单行超过缓冲区，丢弃到下一个换行
+                parseErrors.incrementAndGet();
+                discarding = true;
+                buffer.clear();
+            }
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+            total += read;
+            processLines();
+        }
+        if (total > 0) {
+            bytesRead.addAndGet(total);
+            addPending(position - buffer.position());
+        }
+        return total;
+    }
+
+    private void processLines() {
+        int end = buffer.position();
+        int lineStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (discarding) {
+                discarding = false;
+            } else if (i > lineStart) {
+                handleLine(lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        buffer.flip();
+        buffer.position(lineStart);
+        buffer.compact();
+    }
+
+    private void handleLine(int start, int end) {
+        lines.incrementAndGet();
+        DownloadStatistics statistics;
+        try {
+            statistics = parser.parse(buffer, start, end);
+        } catch (IllegalArgumentException e) {
+            parseErrors.incrementAndGet();
+            log.debug("无法解析nginx日志行: {}", e.getMessage());
+            return;
+        }
+        if (statistics == null) {
+            skipped.incrementAndGet();
+        } else if (downloadStatisticsService.recordDownloadStatistics(statistics, true)) {
+            records.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 记录一个候选断点：写入队列处理到当前序号后，offset之前的行都已入库
+     */
+    private void addPending(long offset) {
+        PendingCheckpoint checkpoint = new PendingCheckpoint(statisticsIngestPipeline.enqueuedCount(), fileKey, offset);
+        if (pending.size() >= MAX_PENDING_CHECKPOINTS) {
+            pending.pollLast();
+        }
+        pending.addLast(checkpoint);
+    }
+
+    /**
+     * 把已经写入完成的最新候选断点保存到数据库，未到保存间隔时只在内存中推进
+     */
+    void commitCheckpoint(boolean force) throws Exception {
+        long processed = statisticsIngestPipeline.processedCount();
+        while (!pending.isEmpty() && pending.peekFirst().ticket() <= processed) {
+            durable = pending.pollFirst();
+        }
+        long now = System.currentTimeMillis();
+        if (durable == null || (!force && now - lastCheckpointAt < checkpointIntervalMs)) {
+            return;
+        }
+        String value = durable.fileKey() + "@" + durable.offset();
+        if (!value.equals(savedCheckpoint)) {
+            sqliteLimiter.run(() -> syncCheckpointRepository.save(new SyncCheckpoint(CHECKPOINT_NAME, value, null)));
+            savedCheckpoint = value;
+        }
+        lastCheckpointAt = now;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("关闭nginx日志文件失败: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * 文件标识：支持时为文件系统的fileKey（Linux上包含inode），否则使用创建时间
+     */
+    static String fileKeyOf(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return key != null ? key.toString() : "ctime=" + attributes.creationTime().toMillis();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("path", path);
+        stats.put("fileKey", fileKey);
+        stats.put("position", position);
+        long size = -1;
+        try {
+            size = Files.size(Path.of(path));
+        } catch (IOException ignored) {
+            // 文件不存在时不报告积压
+        }
+        stats.put("lagBytes", size >= 0 && fileKey != null ? Math.max(0, size - position) : null);
+        stats.put("checkpoint", savedCheckpoint);
+        stats.put("bytesRead", bytesRead.get());
+        stats.put("lines", lines.get());
+        stats.put("records", records.get());
+        stats.put("skipped", skipped.get());
+        stats.put("parseErrors", parseErrors.get());
+        stats.put("dropped", dropped.get());
+        stats.put("rotations", rotations.get());
+        stats.put("truncations", truncations.get());
+        return stats;
+    }
+
+    private record PendingCheckpoint(long ticket, String fileKey, long offset) {
+    }
+}
@@ -0,0 +1,434 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 接收nginx通过syslog发送的download_stats访问日志（access_log syslog:server=...），
+ * 取代每次下载结束都新建HTTP连接的Lua回调和定时解析日志的脚本。
+ *
+ * 接收线程把报文读入预先分配的直接内存缓冲区（无锁池），通过无锁队列交给解析线程；
+ * 解析线程去掉syslog头（RFC 3164或RFC 5424）后用{@link NginxDownloadLogParser}解析，提交到下载统计写入队列，
+ * 再把缓冲区放回池中。池中没有空闲缓冲区说明解析跟不上，报文直接丢弃并计数，不阻塞接收线程。
+ * nginx只支持UDP；TCP用于经rsyslog等转发的场景，支持换行分隔和octet-counting两种分帧（RFC 6587）
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class NginxSyslogReceiver {
+
+    private final DownloadStatisticsService downloadStatisticsService;
+
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> readyBuffers = new ConcurrentLinkedQueue<>();
+    private final Set<SocketChannel> tcpConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger tcpConnectionIds = new AtomicInteger();
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile DatagramChannel udpChannel;
+    private volatile ServerSocketChannel tcpChannel;
+    private volatile Thread parserThread;
+    private volatile boolean stopping;
+
+    @Value("${app.statistics.syslog.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.statistics.syslog.bind-address:127.0.0.1}")
+    private String bindAddress;
+
+    @Value("${app.statistics.syslog.udp-port:5140}")
+    private int udpPort;
+
+    @Value("${app.statistics.syslog.tcp-enabled:false}")
+    private boolean tcpEnabled;
+
+    @Value("${app.statistics.syslog.tcp-port:5140}")
+    private int tcpPort;
+
+    @Value("${app.statistics.syslog.max-tcp-connections:16}")
+    private int maxTcpConnections;
+
+    // 缓冲池大小，即接收后等待解析的报文上限
+    @Value("${app.statistics.syslog.buffer-pool-size:256}")
+    private int bufferPoolSize;
+
+    // 单条报文的最大字节数，超过的UDP报文被截断，按超长丢弃
+    @Value("${app.statistics.syslog.max-message-bytes:8192}")
+    private int maxMessageBytes;
+
+    @Value("${app.statistics.syslog.receive-buffer-bytes:4194304}")
+    private int receiveBufferBytes;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < bufferPoolSize; i++) {
+            freeBuffers.offer(ByteBuffer.allocateDirect(maxMessageBytes));
+        }
+        parserThread = startThread(this::runParser, "nginx-syslog-parser");
+
+        DatagramChannel udp = DatagramChannel.open();
+        udp.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+        udp.bind(new InetSocketAddress(bindAddress, udpPort));
+        udpChannel = udp;
+        startThread(this::runUdp, "nginx-syslog-udp");
+        log.info("nginx syslog接收已启动: udp={}", udp.getLocalAddress());
+
+        if (tcpEnabled) {
+            ServerSocketChannel tcp = ServerSocketChannel.open();
+            tcp.bind(new InetSocketAddress(bindAddress, tcpPort));
+            tcpChannel = tcp;
+            startThread(this::runTcpAcceptor, "nginx-syslog-tcp");
+            log.info("nginx syslog接收已启动: tcp={}", tcp.getLocalAddress());
+        }
+    }
+
+    /**
+     * 关闭监听，解析线程处理完已接收的报文后退出
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        closeQuietly(udpChannel);
+        closeQuietly(tcpChannel);
+        tcpConnections.forEach(NginxSyslogReceiver::closeQuietly);
+        Thread thread = parserThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private static Thread startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void runUdp() {
+        // 池中没有空闲缓冲区时用来把报文从内核缓冲区读走
+        ByteBuffer discard = ByteBuffer.allocateDirect(maxMessageBytes);
+        while (!stopping) {
+            ByteBuffer buffer = freeBuffers.poll();
+            try {
+                if (buffer == null) {
+                    discard.clear();
+                    udpChannel.receive(discard);
+                    packets.incrementAndGet();
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                buffer.clear();
+                udpChannel.receive(buffer);
+                packets.incrementAndGet();
+                bytesReceived.addAndGet(buffer.position());
+                if (!buffer.hasRemaining()) {
+                    oversized.incrementAndGet();
+                    freeBuffers.offer(buffer);
+                    continue;
+                }
+                buffer.flip();
+                handOff(buffer);
+            } catch (ClosedChannelException e) {
+                if (buffer != null) {
+                    freeBuffers.offer(buffer);
+                }
+                break;
+            } catch (IOException e) {
+                if (buffer != null) {
+                    freeBuffers.offer(buffer);
+                }
+                log.warn("接收syslog报文失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void runTcpAcceptor() {
+        while (!stopping) {
+            try {
+                SocketChannel connection = tcpChannel.accept();
+                if (tcpConnections.size() >= maxTcpConnections) {
+                    log.warn("syslog TCP连接数已达上限{}，拒绝{}", maxTcpConnections, connection.getRemoteAddress());
+                    closeQuietly(connection);
+                    continue;
+                }
+                tcpConnections.add(connection);
+                startThread(() -> runTcpConnection(connection), "nginx-syslog-tcp-" + tcpConnectionIds.incrementAndGet());
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.warn("接受syslog TCP连接失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void runTcpConnection(SocketChannel connection) {
+        ByteBuffer stream = ByteBuffer.allocateDirect(maxMessageBytes * 2);
+        try {
+            while (!stopping && connection.read(stream) >= 0) {
+                if (extractFrames(stream) == 0 && !stream.hasRemaining()) {
+                    // 缓冲区满仍没有完整的帧，超长帧无法分帧，断开连接
+                    oversized.incrementAndGet();
+                    log.warn("syslog TCP帧超过{}字节，断开连接", maxMessageBytes);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!stopping) {
+                log.debug("syslog TCP连接中断: {}", e.getMessage());
+            }
+        } finally {
+            tcpConnections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * 从写模式的stream中取出完整的帧交给解析线程，剩余部分移到缓冲区开头
+     *
+     * @return 取出的帧数
+     */
+    int extractFrames(ByteBuffer stream) {
+        int end = stream.position();
+        int start = 0;
+        int frames = 0;
+        while (start < end) {
+            int frameStart;
+            int frameEnd;
+            byte first = stream.get(start);
+            if (first >= '1' && first <= '9') {
+                // octet-counting: "长度 报文"
+                int space = start;
+                long length = 0;
+                while (space < end && stream.get(space) >= '0' && stream.get(space) <= '9' && length <= maxMessageBytes) {
+                    length = length * 10 + (stream.get(space) - '0');
+                    space++;
+                }
+                if (space >= end) {
+                    break;
+                }
+                if (stream.get(space) != ' ' || length > maxMessageBytes) {
+                    // 不是合法的长度前缀，丢弃到下一个换行
+                    int newline = indexOf(stream, (byte) '\n', start, end);
+                    if (newline < 0) {
+                        break;
+                    }
+                    parseErrors.incrementAndGet();
+                    start = newline + 1;
+                    continue;
+                }
+                frameStart = space + 1;
+                frameEnd = frameStart + (int) length;
+                if (frameEnd > end) {
+                    break;
+                }
+                start = frameEnd;
+            } else {
+                int newline = indexOf(stream, (byte) '\n', start, end);
+                if (newline < 0) {
+                    break;
+                }
+                frameStart = start;
+                frameEnd = newline;
+                start = newline + 1;
+            }
+            frames++;
+            if (frameEnd > frameStart) {
+                copyAndHandOff(stream, frameStart, frameEnd);
+            }
+        }
+        stream.flip();
+        stream.position(start);
+        stream.compact();
+        return frames;
+    }
+
+    private void copyAndHandOff(ByteBuffer stream, int start, int end) {
+        packets.incrementAndGet();
+        bytesReceived.addAndGet(end - start);
+        if (end - start > maxMessageBytes) {
+            oversized.incrementAndGet();
+            return;
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffer.put(0, stream, start, end - start);
+        buffer.limit(end - start);
+        handOff(buffer);
+    }
+
+    private void handOff(ByteBuffer buffer) {
+        readyBuffers.offer(buffer);
+        LockSupport.unpark(parserThread);
+    }
+
+    private void runParser() {
+        NginxDownloadLogParser parser = new NginxDownloadLogParser();
+        while (!stopping || !readyBuffers.isEmpty()) {
+            ByteBuffer buffer = readyBuffers.poll();
+            if (buffer == null) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            try {
+                handleMessage(parser, buffer, 0, buffer.limit());
+            } finally {
+                freeBuffers.offer(buffer);
+            }
+        }
+    }
+
+    void handleMessage(NginxDownloadLogParser parser, ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == '\n' || buffer.get(end - 1) == '\r' || buffer.get(end - 1) == 0)) {
+            end--;
+        }
+        DownloadStatistics statistics;
+        try {
+            statistics = parser.parse(buffer, messageStart(buffer, start, end), end);
+        } catch (IllegalArgumentException e) {
+            parseErrors.incrementAndGet();
+            log.debug("无法解析syslog报文: {}", e.getMessage());
+            return;
+        }
+        if (statistics == null) {
+            skipped.incrementAndGet();
+        } else if (downloadStatisticsService.recordDownloadStatistics(statistics, false)) {
+            records.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * 跳过syslog头，返回日志正文的起始位置。没有"&lt;PRI&gt;"时整条报文都是正文
+     * RFC 3164: &lt;PRI&gt;Mmm dd hh:mm:ss HOSTNAME TAG: MSG
+     * RFC 5424: &lt;PRI&gt;1 TIMESTAMP HOSTNAME APP-NAME PROCID MSGID STRUCTURED-DATA MSG
+     */
+    static int messageStart(ByteBuffer buffer, int start, int end) {
+        if (start >= end || buffer.get(start) != '<') {
+            return start;
+        }
+        int i = indexOf(buffer, (byte) '>', start, Math.min(end, start + 6));
+        if (i < 0) {
+            throw new IllegalArgumentException("syslog优先级格式错误");
+        }
+        i++;
+        if (i < end && buffer.get(i) >= '1' && buffer.get(i) <= '9') {
+            // RFC 5424：版本号之后跳过5个字段
+            for (int field = 0; field < 6; field++) {
+                i = indexOf(buffer, (byte) ' ', i, end);
+                if (i < 0) {
+                    throw new IllegalArgumentException("syslog头不完整");
+                }
+                i++;
+            }
+            if (i < end && buffer.get(i) == '[') {
+                i = indexOf(buffer, (byte) ']', i, end);
+                while (i >= 0 && i + 1 < end && buffer.get(i + 1) != ' ') {
+                    i = indexOf(buffer, (byte) ']', i + 1, end);
+                }
+                if (i < 0) {
+                    throw new IllegalArgumentException("syslog结构化数据不完整");
+                }
+                i++;
+            } else {
+                i++;
+            }
+            return Math.min(i + 1, end);
+        }
+        // RFC 3164：时间戳之后找标签结尾的": "
+        for (int k = i + 15; k + 1 < end; k++) {
+            if (buffer.get(k) == ':' && buffer.get(k + 1) == ' ') {
+                return k + 2;
+            }
+        }
+        throw new IllegalArgumentException("syslog标签不完整");
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte target, int from, int end) {
+        for (int k = from; k < end; k++) {
+            if (buffer.get(k) == target) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 关闭时的异常不影响停机
+            }
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("udp", localAddress(udpChannel));
+        stats.put("tcp", localAddress(tcpChannel));
+        stats.put("tcpConnections", tcpConnections.size());
+        stats.put("packets", packets.get());
+        stats.put("bytes", bytesReceived.get());
+        stats.put("dropped", dropped.get());
+        stats.put("oversized", oversized.get());
+        stats.put("parseErrors", parseErrors.get());
+        stats.put("skipped", skipped.get());
+        stats.put("records", records.get());
+        stats.put("rejected", rejected.get());
+        stats.put("freeBuffers", freeBuffers.size());
+        stats.put("pendingBuffers", readyBuffers.size());
+        return stats;
+    }
+
+    private static String localAddress(NetworkChannel channel) {
+        try {
+            return channel != null && channel.isOpen() ? String.valueOf(channel.getLocalAddress()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
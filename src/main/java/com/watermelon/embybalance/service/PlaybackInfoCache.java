@@ -0,0 +1,149 @@
+package com.watermelon.embybalance.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PlaybackInfo上游响应短时缓存
+ * 缓存的是改写前的Emby响应，命中后仍逐次重新选择线路，不影响负载均衡。
+ * 键由itemId、查询参数、鉴权相关请求头和请求体（DeviceProfile）的摘要组成
+ *
+ * 绕过规则：
+ * 1. 未启用缓存
+ * 2. 直播流请求（查询参数或请求体顶层带LiveStreamId或AutoOpenLiveStream=true）
+ * 3. 客户端请求头Cache-Control为no-cache或no-store
+ * 非2xx或空响应不写入缓存。
+ * 另保留一份存活更久的过期副本，仅在Emby上游熔断时使用
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PlaybackInfoCache {
+
+    private static final String[] KEY_HEADERS = {"x-emby-token", "x-emby-authorization", "authorization", "x-emby-device-id"};
+
+    private final Cache<String, UpstreamResponse> playbackInfoResponseCache;
+    private final Cache<String, UpstreamResponse> stalePlaybackInfoResponseCache;
+
+    @Value("${app.emby.playback-cache.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 计算缓存键，命中绕过规则时返回null
+     */
+    public String keyFor(String itemId, Map<String, String> queryParams, Map<String, String> headers,
+                         PlaybackInfoRequestBody body) {
+        if (!enabled || isBypassed(queryParams, headers) || isLiveStream(body)) {
+            return null;
+        }
+
+        MessageDigest digest = sha256();
+        // 查询参数排序后参与摘要，避免顺序不同导致缓存不命中
+        new TreeMap<>(queryParams).forEach((key, value) -> update(digest, key, value));
+        for (String header : KEY_HEADERS) {
+            headers.forEach((key, value) -> {
+                if (key.equalsIgnoreCase(header)) {
+                    update(digest, header, value);
+                }
+            });
+        }
+        if (!body.isEmpty()) {
+            digest.update(body.getBytes());
+        }
+        return itemId + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    public UpstreamResponse get(String key) {
+        return playbackInfoResponseCache.getIfPresent(key);
+    }
+
+    /**
+     * 写入缓存，仅缓存成功且非空的响应
+     */
+    public void put(String key, UpstreamResponse response) {
+        if (response.isSuccessful() && response.getBody().length > 0) {
+            playbackInfoResponseCache.put(key, response);
+            stalePlaybackInfoResponseCache.put(key, response);
+        }
+    }
+
+    /**
+     * 获取可能已过期的响应，熔断时兜底使用
+     */
+    public UpstreamResponse getStale(String key) {
+        UpstreamResponse response = playbackInfoResponseCache.getIfPresent(key);
+        return response != null ? response : stalePlaybackInfoResponseCache.getIfPresent(key);
+    }
+
+    public void invalidateAll() {
+        playbackInfoResponseCache.invalidateAll();
+        stalePlaybackInfoResponseCache.invalidateAll();
+    }
+
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = playbackInfoResponseCache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", playbackInfoResponseCache.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("staleSize", stalePlaybackInfoResponseCache.estimatedSize());
+        return result;
+    }
+
+    private static boolean isBypassed(Map<String, String> queryParams, Map<String, String> headers) {
+        for (Map.Entry<String, String> entry : queryParams.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase("LiveStreamId")
+                    || (entry.getKey().equalsIgnoreCase("AutoOpenLiveStream") && "true".equalsIgnoreCase(entry.getValue()))) {
+                return true;
+            }
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase("cache-control") && entry.getValue() != null) {
+                String value = entry.getValue().toLowerCase();
+                if (value.contains("no-cache") || value.contains("no-store")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 请求体中的直播流标记，只有前面的规则未命中时才会解析请求体
+     */
+    private static boolean isLiveStream(PlaybackInfoRequestBody body) {
+        return body.field("LiveStreamId") != null || "true".equalsIgnoreCase(body.field("AutoOpenLiveStream"));
+    }
+
+    private static void update(MessageDigest digest, String key, String value) {
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '=');
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) '&');
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 客户端PlaybackInfo请求体
+ * 原样保存客户端发送的字节并直接转发给Emby，不做解析和重新序列化。
+ * 只有规则需要读取某个字段时才解析，且只扫描顶层标量字段，DeviceProfile等嵌套对象直接跳过
+ */
+@Slf4j
+public final class PlaybackInfoRequestBody {
+
+    public static final PlaybackInfoRequestBody EMPTY = new PlaybackInfoRequestBody(new byte[0]);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final byte[] bytes;
+    private Map<String, String> topLevelFields;
+
+    private PlaybackInfoRequestBody(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static PlaybackInfoRequestBody of(byte[] bytes) {
+        return bytes == null || bytes.length == 0 ? EMPTY : new PlaybackInfoRequestBody(bytes);
+    }
+
+    /**
+     * 读取请求体，已知Content-Length时按长度一次分配
+     */
+    public static PlaybackInfoRequestBody read(HttpServletRequest request) throws IOException {
+        long contentLength = request.getContentLengthLong();
+        if (contentLength == 0) {
+            return EMPTY;
+        }
+        try (InputStream in = request.getInputStream()) {
+            byte[] bytes = contentLength > 0 && contentLength <= Integer.MAX_VALUE
+                    ? in.readNBytes((int) contentLength)
+                    : in.readAllBytes();
+            return of(bytes);
+        }
+    }
+
+    /**
+     * 原始字节，为空时返回null
+     */
+    public byte[] getBytes() {
+        return bytes.length == 0 ? null : bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public boolean isEmpty() {
+        return bytes.length == 0;
+    }
+
+    /**
+     * 读取顶层标量字段（忽略大小写），不存在或请求体不是JSON对象时返回null
+     * 首次调用时解析，之后复用结果；请求体仅在单个请求内使用，不考虑并发
+     */
+    public String field(String name) {
+        if (topLevelFields == null) {
+            topLevelFields = scanTopLevelFields();
+        }
+        return topLevelFields.get(name);
+    }
+
+    private Map<String, String> scanTopLevelFields() {
+        Map<String, String> fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (bytes.length == 0) {
+            return fields;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(bytes)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return fields;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (value.isStructStart()) {
+                    parser.skipChildren();
+                } else if (value != JsonToken.VALUE_NULL) {
+                    fields.put(fieldName, parser.getText());
+                }
+            }
+        } catch (IOException e) {
+            log.debug("请求体不是有效的JSON，忽略字段读取: {}", e.getMessage());
+        }
+        return fields;
+    }
+}
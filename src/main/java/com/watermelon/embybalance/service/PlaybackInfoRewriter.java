@@ -0,0 +1,362 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.UnaryOperator;
+
+/**
+ * PlaybackInfo响应的流式改写器
+ * 基于Jackson流式API逐个token地从上游输入流复制到输出流，
+ * 只在MediaSources[*]中改写Path、Protocol、IsRemote、SupportsDirectPlay和SupportsTranscoding，
+ * 不构建中间的JsonNode树或字符串；同时提供基于非阻塞解析器的响应式版本。
+ * 改写过程中可顺带收集每个MediaSource的Id、原始Path、Size和Bitrate
+ */
+@Component
+@RequiredArgsConstructor
+public class PlaybackInfoRewriter {
+
+    private static final MediaSourceListener NO_LISTENER = (mediaSourceId, path, size, bitrate) -> {
+    };
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * 改写过程中每读完一个MediaSource回调一次，字段缺失时为null
+     */
+    @FunctionalInterface
+    public interface MediaSourceListener {
+        void onMediaSource(String mediaSourceId, String path, Long size, Long bitrate);
+    }
+
+    /**
+     * 将输入流中的PlaybackInfo响应改写后写入输出流
+     * 输出流不会被关闭，由调用方负责
+     *
+     * @param pathMapper 原始Path到新Path的映射，返回null时保持原始Path
+     */
+    public void rewrite(InputStream in, OutputStream out, UnaryOperator<String> pathMapper) throws IOException {
+        rewrite(in, out, pathMapper, NO_LISTENER);
+    }
+
+    /**
+     * 同上，并在每个MediaSource结束时通知listener
+     */
+    public void rewrite(InputStream in, OutputStream out, UnaryOperator<String> pathMapper,
+                        MediaSourceListener listener) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(in);
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            RewriteState state = new RewriteState(pathMapper, listener);
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                state.handle(token, parser, generator);
+            }
+        }
+    }
+
+    /**
+     * 非阻塞地改写上游响应体数据块流
+     * 每个输入块喂给Jackson非阻塞解析器后立即输出已改写的部分，输入块在处理后释放
+     *
+     * @param pathMapper 原始Path到新Path的映射，返回null时保持原始Path
+     */
+    public Flux<DataBuffer> rewrite(Flux<DataBuffer> body, DataBufferFactory bufferFactory, UnaryOperator<String> pathMapper) {
+        return rewrite(body, bufferFactory, pathMapper, NO_LISTENER);
+    }
+
+    /**
+     * 同上，并在每个MediaSource结束时通知listener
+     */
+    public Flux<DataBuffer> rewrite(Flux<DataBuffer> body, DataBufferFactory bufferFactory, UnaryOperator<String> pathMapper,
+                                    MediaSourceListener listener) {
+        return Flux.defer(() -> {
+            NonBlockingRewrite rewrite;
+            try {
+                rewrite = new NonBlockingRewrite(pathMapper, listener);
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            return body.<DataBuffer>handle((buffer, sink) -> {
+                        try {
+                            DataBuffer output = rewrite.feed(buffer, bufferFactory);
+                            if (output != null) {
+                                sink.next(output);
+                            }
+                        } catch (IOException e) {
+                            sink.error(e);
+                        } finally {
+                            DataBufferUtils.release(buffer);
+                        }
+                    })
+                    .concatWith(Mono.fromCallable(() -> rewrite.finish(bufferFactory)))
+                    .doFinally(signal -> rewrite.close());
+        });
+    }
+
+    /**
+     * 一次非阻塞改写过程，持有解析器、生成器和输出缓冲
+     */
+    private final class NonBlockingRewrite {
+
+        private final JsonParser parser;
+        private final ByteBufferFeeder feeder;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(8192);
+        private final JsonGenerator generator;
+        private final RewriteState state;
+
+        NonBlockingRewrite(UnaryOperator<String> pathMapper, MediaSourceListener listener) throws IOException {
+            this.parser = objectMapper.getFactory().createNonBlockingByteBufferParser();
+            this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+            this.generator = objectMapper.getFactory().createGenerator(output);
+            this.state = new RewriteState(pathMapper, listener);
+        }
+
+        DataBuffer feed(DataBuffer buffer, DataBufferFactory bufferFactory) throws IOException {
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    feeder.feedInput(iterator.next());
+                    drain();
+                }
+            }
+            return takeOutput(bufferFactory);
+        }
+
+        DataBuffer finish(DataBufferFactory bufferFactory) throws IOException {
+            feeder.endOfInput();
+            drain();
+            generator.close();
+            return takeOutput(bufferFactory);
+        }
+
+        void close() {
+            try {
+                parser.close();
+                generator.close();
+            } catch (IOException ignored) {
+                // 输出缓冲在内存中，关闭失败不影响结果
+            }
+        }
+
+        private void drain() throws IOException {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                state.handle(token, parser, generator);
+            }
+        }
+
+        private DataBuffer takeOutput(DataBufferFactory bufferFactory) throws IOException {
+            generator.flush();
+            if (output.size() == 0) {
+                return null;
+            }
+            DataBuffer buffer = bufferFactory.wrap(output.toByteArray());
+            output.reset();
+            return buffer;
+        }
+    }
+
+    /**
+     * 改写状态机，按token推进，不依赖递归
+     */
+    static final class RewriteState {
+
+        private static final String MEDIA_SOURCES = "MediaSources";
+        private static final String PATH = "Path";
+
+        private static final int PROTOCOL = 1;
+        private static final int IS_REMOTE = 1 << 1;
+        private static final int SUPPORTS_DIRECT_PLAY = 1 << 2;
+        private static final int SUPPORTS_TRANSCODING = 1 << 3;
+        private static final int ALL_FORCED = PROTOCOL | IS_REMOTE | SUPPORTS_DIRECT_PLAY | SUPPORTS_TRANSCODING;
+
+        private final UnaryOperator<String> pathMapper;
+        private final MediaSourceListener listener;
+
+        private int depth;
+        private boolean mediaSourcesPending;
+        private int mediaSourcesDepth = -1;
+        private boolean inMediaSource;
+        private int forcedWritten;
+        private String pendingField;
+        private int skipDepth;
+
+        // 当前MediaSource中收集的字段
+        private String capturingField;
+        private String sourceId;
+        private String sourcePath;
+        private Long sourceSize;
+        private Long sourceBitrate;
+
+        RewriteState(UnaryOperator<String> pathMapper, MediaSourceListener listener) {
+            this.pathMapper = pathMapper;
+            this.listener = listener;
+        }
+
+        void handle(JsonToken token, JsonParser parser, JsonGenerator generator) throws IOException {
+            // 跳过被替换字段的原始结构化值
+            if (skipDepth > 0) {
+                if (token.isStructStart()) {
+                    skipDepth++;
+                } else if (token.isStructEnd()) {
+                    skipDepth--;
+                }
+                return;
+            }
+
+            if (pendingField != null) {
+                String field = pendingField;
+                pendingField = null;
+                writeOverride(field, token, parser, generator);
+                if (token.isStructStart()) {
+                    skipDepth = 1;
+                }
+                return;
+            }
+
+            switch (token) {
+                case START_OBJECT, START_ARRAY -> {
+                    generator.copyCurrentEvent(parser);
+                    depth++;
+                    if (token == JsonToken.START_ARRAY && mediaSourcesPending) {
+                        mediaSourcesDepth = depth;
+                    } else if (token == JsonToken.START_OBJECT && mediaSourcesDepth > 0 && depth == mediaSourcesDepth + 1) {
+                        inMediaSource = true;
+                        forcedWritten = 0;
+                        sourceId = null;
+                        sourcePath = null;
+                        sourceSize = null;
+                        sourceBitrate = null;
+                    }
+                    mediaSourcesPending = false;
+                    capturingField = null;
+                }
+                case END_OBJECT, END_ARRAY -> {
+                    if (token == JsonToken.END_OBJECT && inMediaSource && depth == mediaSourcesDepth + 1) {
+                        writeMissingForcedFields(generator);
+                        inMediaSource = false;
+                        listener.onMediaSource(sourceId, sourcePath, sourceSize, sourceBitrate);
+                    } else if (token == JsonToken.END_ARRAY && depth == mediaSourcesDepth) {
+                        mediaSourcesDepth = -1;
+                    }
+                    generator.copyCurrentEvent(parser);
+                    depth--;
+                }
+                case FIELD_NAME -> {
+                    String name = parser.currentName();
+                    mediaSourcesPending = depth == 1 && MEDIA_SOURCES.equals(name);
+                    if (inMediaSource && depth == mediaSourcesDepth + 1 && isOverridden(name)) {
+                        forcedWritten |= forcedBit(name);
+                        generator.writeFieldName(name);
+                        pendingField = name;
+                    } else {
+                        capturingField = inMediaSource && depth == mediaSourcesDepth + 1 && isCaptured(name) ? name : null;
+                        generator.copyCurrentEvent(parser);
+                    }
+                }
+                default -> {
+                    mediaSourcesPending = false;
+                    if (capturingField != null) {
+                        capture(capturingField, token, parser);
+                        capturingField = null;
+                    }
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        }
+
+        private static boolean isCaptured(String name) {
+            return "Id".equals(name) || "Size".equals(name) || "Bitrate".equals(name);
+        }
+
+        private void capture(String field, JsonToken token, JsonParser parser) throws IOException {
+            if ("Id".equals(field)) {
+                sourceId = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+            } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                if ("Size".equals(field)) {
+                    sourceSize = parser.getLongValue();
+                } else {
+                    sourceBitrate = parser.getLongValue();
+                }
+            }
+        }
+
+        private boolean isOverridden(String name) {
+            return PATH.equals(name) || forcedBit(name) != 0;
+        }
+
+        private void writeOverride(String field, JsonToken token, JsonParser parser, JsonGenerator generator) throws IOException {
+            if (!PATH.equals(field)) {
+                writeForcedValue(forcedBit(field), generator);
+                return;
+            }
+
+            if (token == JsonToken.VALUE_STRING) {
+                String originalPath = parser.getText();
+                sourcePath = originalPath;
+                String modifiedPath = pathMapper.apply(originalPath);
+                generator.writeString(modifiedPath != null ? modifiedPath : originalPath);
+            } else if (token.isScalarValue()) {
+                generator.copyCurrentEvent(parser);
+            } else {
+                generator.writeNull();
+            }
+        }
+
+        private void writeMissingForcedFields(JsonGenerator generator) throws IOException {
+            int missing = ALL_FORCED & ~forcedWritten;
+            for (int bit = PROTOCOL; bit <= SUPPORTS_TRANSCODING; bit <<= 1) {
+                if ((missing & bit) != 0) {
+                    generator.writeFieldName(forcedName(bit));
+                    writeForcedValue(bit, generator);
+                }
+            }
+        }
+
+        /**
+         * 协议改为Http，IsRemote、SupportsDirectPlay改为true，SupportsTranscoding改为false
+         */
+        private static void writeForcedValue(int bit, JsonGenerator generator) throws IOException {
+            switch (bit) {
+                case PROTOCOL -> generator.writeString("Http");
+                case IS_REMOTE, SUPPORTS_DIRECT_PLAY -> generator.writeBoolean(true);
+                case SUPPORTS_TRANSCODING -> generator.writeBoolean(false);
+                default -> throw new IllegalArgumentException("未知的改写字段: " + bit);
+            }
+        }
+
+        private static int forcedBit(String name) {
+            return switch (name) {
+                case "Protocol" -> PROTOCOL;
+                case "IsRemote" -> IS_REMOTE;
+                case "SupportsDirectPlay" -> SUPPORTS_DIRECT_PLAY;
+                case "SupportsTranscoding" -> SUPPORTS_TRANSCODING;
+                default -> 0;
+            };
+        }
+
+        private static String forcedName(int bit) {
+            return switch (bit) {
+                case PROTOCOL -> "Protocol";
+                case IS_REMOTE -> "IsRemote";
+                case SUPPORTS_DIRECT_PLAY -> "SupportsDirectPlay";
+                case SUPPORTS_TRANSCODING -> "SupportsTranscoding";
+                default -> throw new IllegalArgumentException("未知的改写字段: " + bit);
+            };
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.watermelon.embybalance.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 响应式PlaybackInfo处理
+ * 通过WebClient转发请求，请求体原样透传，响应体经非阻塞改写后分块写回客户端，全程不占用阻塞线程
+ */
+@Service
+@ConditionalOnProperty(name = "app.emby.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class ReactiveEmbyProxyService {
+
+    private final WebClient embyWebClient;
+    private final PlaybackInfoRewriter playbackInfoRewriter;
+    private final EmbyProxyService embyProxyService;
+    private final MediaPathIndex mediaPathIndex;
+    private final EmbyBackendPool embyBackendPool;
+
+    @Value("${emby.api.key}")
+    private String embyApiKey;
+
+    public Mono<ServerResponse> handlePlaybackInfo(ServerRequest request) {
+        String itemId = request.pathVariable("itemId");
+        log.debug("收到响应式PlaybackInfo请求,itemId={}", itemId);
+
+        // 选择Emby实例，响应头到达或出错时归还
+        EmbyBackend backend = embyBackendPool.acquire();
+        long startedAt = System.nanoTime();
+        AtomicBoolean released = new AtomicBoolean();
+
+        // 构建请求URL，确保API密钥被添加
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(backend.getUrl() + "/emby/Items/" + itemId + "/PlaybackInfo")
+                .queryParams(request.queryParams());
+        if (!request.queryParams().containsKey("api_key")) {
+            builder.queryParam("api_key", embyApiKey);
+        }
+        URI uri = builder.encode().build().toUri();
+
+        return embyWebClient.post()
+                .uri(uri)
+                .headers(headers -> request.headers().asHttpHeaders().forEach((key, values) -> {
+                    if (EmbyProxyService.isForwardableRequestHeader(key)) {
+                        headers.addAll(key, values);
+                    }
+                }))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromDataBuffers(request.bodyToFlux(DataBuffer.class)))
+                .retrieve()
+                // 不把4xx/5xx转换为异常，状态码和响应体原样转发给客户端
+                .onStatus(status -> true, response -> Mono.empty())
+                .toEntityFlux(DataBuffer.class)
+                .doOnNext(response -> release(backend, startedAt, response.getStatusCode().value() < 500, released))
+                .doFinally(signal -> release(backend, startedAt, false, released))
+                .flatMap(response -> {
+                    log.debug("Emby服务器响应状态码: {}", response.getStatusCode());
+                    Flux<DataBuffer> body = response.getBody() != null ? response.getBody() : Flux.empty();
+                    if (!response.getStatusCode().is2xxSuccessful()) {
+                        // 错误响应不是PlaybackInfo，不改写，保留上游的Content-Type
+                        return ServerResponse.status(response.getStatusCode())
+                                .headers(headers -> {
+                                    copyResponseHeaders(response.getHeaders(), headers);
+                                    headers.setContentType(response.getHeaders().getContentType());
+                                })
+                                .body(BodyInserters.fromDataBuffers(body));
+                    }
+                    Flux<DataBuffer> rewritten = playbackInfoRewriter.rewrite(
+                            body, DefaultDataBufferFactory.sharedInstance,
+                            embyProxyService.pathMapperFor(request.headers().asHttpHeaders().toSingleValueMap()),
+                            mediaPathIndex.listenerFor(itemId));
+                    return ServerResponse.status(response.getStatusCode())
+                            .headers(headers -> copyResponseHeaders(response.getHeaders(), headers))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .body(BodyInserters.fromDataBuffers(rewritten));
+                })
+                .onErrorResume(e -> {
+                    log.error("处理响应式PlaybackInfo请求时出错: itemId={}", itemId, e);
+                    // 异常信息可能包含带api_key的上游地址，不返回给客户端
+                    return ServerResponse.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(Map.of("error", "请求Emby服务器失败"));
+                });
+    }
+
+    private static void copyResponseHeaders(HttpHeaders upstream, HttpHeaders headers) {
+        upstream.forEach((key, values) -> {
+            if (EmbyProxyService.isForwardableResponseHeader(key)) {
+                headers.addAll(key, values);
+            }
+        });
+    }
+
+    private void release(EmbyBackend backend, long startedAt, boolean succeeded, AtomicBoolean released) {
+        if (released.compareAndSet(false, true)) {
+            embyBackendPool.release(backend, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), succeeded);
+        }
+    }
+}
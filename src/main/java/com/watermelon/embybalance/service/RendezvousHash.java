@@ -0,0 +1,51 @@
+package com.watermelon.embybalance.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 加权最高随机权重（HRW / Rendezvous）哈希
+ * 每个节点对key计算得分 weight / -ln(u)，u为(节点, key)哈希映射到(0,1)的均匀数，取得分最高的节点。
+ * 同一key总落在同一节点；增删节点时只有落在该节点上的key需要迁移，且各节点分到的key比例与权重成正比
+ */
+public final class RendezvousHash {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RendezvousHash() {
+    }
+
+    /**
+     * key的64位哈希，同一key在各节点间只需计算一次
+     */
+    public static long keyHash(String key) {
+        long hash = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * 节点对key的得分，权重不大于0的节点返回负无穷，永远不会被选中
+     */
+    public static double score(long keyHash, long nodeId, double weight) {
+        if (weight <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        long hash = mix(keyHash ^ mix(nodeId));
+        // 取高53位映射到(0,1)开区间
+        double unit = ((hash >>> 11) + 0.5) * 0x1.0p-53;
+        return weight / -Math.log(unit);
+    }
+
+    /**
+     * SplitMix64的混合函数，把相近的输入打散到整个64位空间
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
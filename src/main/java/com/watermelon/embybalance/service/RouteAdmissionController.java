@@ -0,0 +1,183 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载线路准入控制
+ * 按线路的最大并发下载数和最大总带宽准入新的下载：每条线路有独立的计数（按线路分段，互不竞争），
+ * 通过CAS先检查后占用，不加锁。准入后持有一个租约，租约ID随下载地址下发（lease_id参数），
+ * 下载统计记录回传该ID时只释放这一个租约，不带租约ID的记录（PlaybackInfo改写的地址）不影响其他下载的租约；
+ * 地址下发后未被下载时没有统计记录，租约超过lease-ttl-ms后由定时任务回收。
+ * 只有实际下发下载地址（302跳转）时占用租约；PlaybackInfo改写时客户端不一定播放，只检查容量不占用
+ */
+@Component
+@Slf4j
+public class RouteAdmissionController {
+
+    /**
+     * 没有配置容量的线路准入时不占用租约
+     */
+    public static final long NO_LEASE = 0;
+
+    private final Map<Long, RouteCapacity> capacities = new ConcurrentHashMap<>();
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    // 以启动时间为起点，重启前下发的地址回传的旧ID不会命中新的租约
+    private final AtomicLong nextLeaseId = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    // 媒体源没有码率信息时按该值预留带宽
+    @Value("${app.route.admission.default-stream-mbps:20}")
+    private int defaultStreamMbps;
+
+    @Value("${app.route.admission.lease-ttl-ms:10800000}")
+    private long leaseTtlMs;
+
+    /**
+     * 尝试在线路上准入一个下载，返回租约ID；没有配置容量的线路总是准入，返回NO_LEASE；已满载时返回empty
+     *
+     * @param bitrate 媒体源码率（bit/s），未知时为null
+     */
+    public OptionalLong tryAdmit(DownloadRoute route, Long bitrate) {
+        Integer maxStreams = route.getMaxConcurrentStreams();
+        Integer maxMbps = route.getMaxBandwidthMbps();
+        if (maxStreams == null && maxMbps == null) {
+            return OptionalLong.of(NO_LEASE);
+        }
+        long kbps = bitrate != null && bitrate > 0 ? bitrate / 1000 : defaultStreamMbps * 1000L;
+        RouteCapacity capacity = capacity(route.getId());
+        if (!capacity.tryAcquire(maxStreams, maxMbps != null ? maxMbps * 1000L : Long.MAX_VALUE, kbps)) {
+            rejected.incrementAndGet();
+            return OptionalLong.empty();
+        }
+        long leaseId = nextLeaseId.incrementAndGet();
+        leases.put(leaseId, new Lease(route.getId(), System.currentTimeMillis(), kbps));
+        return OptionalLong.of(leaseId);
+    }
+
+    /**
+     * 线路当前是否还能准入一个下载，只检查不占用，没有配置容量的线路总是可以
+     *
+     * @param bitrate 媒体源码率（bit/s），未知时为null
+     */
+    public boolean hasCapacity(DownloadRoute route, Long bitrate) {
+        Integer maxStreams = route.getMaxConcurrentStreams();
+        Integer maxMbps = route.getMaxBandwidthMbps();
+        if (maxStreams == null && maxMbps == null) {
+            return true;
+        }
+        RouteCapacity capacity = capacities.get(route.getId());
+        if (capacity == null) {
+            return true;
+        }
+        long kbps = bitrate != null && bitrate > 0 ? bitrate / 1000 : defaultStreamMbps * 1000L;
+        // 只检查不计入拒绝数，拒绝数只统计实际下发地址时的准入失败
+        return capacity.hasCapacity(maxStreams, maxMbps != null ? maxMbps * 1000L : Long.MAX_VALUE, kbps);
+    }
+
+    /**
+     * 下载统计记录回传租约ID时释放该租约，没有租约ID或租约已释放、已过期时忽略。
+     * 同一地址的多个请求（如拖动进度后的Range请求）回传同一ID，只有第一条记录释放
+     */
+    public void release(Long routeId, Long leaseId) {
+        if (routeId == null || leaseId == null) {
+            return;
+        }
+        Lease lease = leases.get(leaseId);
+        if (lease != null && lease.routeId().equals(routeId) && leases.remove(leaseId, lease)) {
+            capacity(routeId).release(lease.kbps());
+        }
+    }
+
+    /**
+     * 回收超时未结束的租约
+     */
+    @Scheduled(fixedDelayString = "${app.route.admission.sweep-interval-ms:60000}")
+    public void expireLeases() {
+        long expireBefore = System.currentTimeMillis() - leaseTtlMs;
+        leases.forEach((leaseId, lease) -> {
+            if (lease.issuedAt() < expireBefore && leases.remove(leaseId, lease)) {
+                capacity(lease.routeId()).release(lease.kbps());
+                expired.incrementAndGet();
+            }
+        });
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<Long, Map<String, Object>> routes = new LinkedHashMap<>();
+        capacities.forEach((routeId, capacity) -> {
+            Map<String, Object> route = new LinkedHashMap<>();
+            route.put("streams", capacity.streams.get());
+            route.put("reservedMbps", capacity.reservedKbps.get() / 1000.0);
+            routes.put(routeId, route);
+        });
+        stats.put("routes", routes);
+        stats.put("leases", leases.size());
+        stats.put("rejected", rejected.get());
+        stats.put("expiredLeases", expired.get());
+        return stats;
+    }
+
+    private RouteCapacity capacity(Long routeId) {
+        RouteCapacity capacity = capacities.get(routeId);
+        return capacity != null ? capacity : capacities.computeIfAbsent(routeId, id -> new RouteCapacity());
+    }
+
+    private record Lease(Long routeId, long issuedAt, long kbps) {
+    }
+
+    /**
+     * 一条线路的已占用并发数和预留带宽
+     */
+    private static final class RouteCapacity {
+
+        private final AtomicInteger streams = new AtomicInteger();
+        private final AtomicLong reservedKbps = new AtomicLong();
+
+        boolean tryAcquire(Integer maxStreams, long maxKbps, long kbps) {
+            int current;
+            do {
+                current = streams.get();
+                if (maxStreams != null && current >= maxStreams) {
+                    return false;
+                }
+            } while (!streams.compareAndSet(current, current + 1));
+
+            long reserved;
+            do {
+                reserved = reservedKbps.get();
+                // 空闲线路总是准入一个下载，避免码率高于线路上限的媒体永远无法下载
+                if (reserved > 0 && reserved + kbps > maxKbps) {
+                    streams.decrementAndGet();
+                    return false;
+                }
+            } while (!reservedKbps.compareAndSet(reserved, reserved + kbps));
+            return true;
+        }
+
+        boolean hasCapacity(Integer maxStreams, long maxKbps, long kbps) {
+            if (maxStreams != null && streams.get() >= maxStreams) {
+                return false;
+            }
+            long reserved = reservedKbps.get();
+            return reserved == 0 || reserved + kbps <= maxKbps;
+        }
+
+        void release(long kbps) {
+            streams.updateAndGet(value -> Math.max(0, value - 1));
+            reservedKbps.updateAndGet(value -> Math.max(0, value - kbps));
+        }
+    }
+}
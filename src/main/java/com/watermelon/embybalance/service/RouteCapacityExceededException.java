@@ -0,0 +1,11 @@
+package com.watermelon.embybalance.service;
+
+/**
+ * 所有可用下载线路都已达到并发或带宽上限
+ */
+public class RouteCapacityExceededException extends IllegalStateException {
+
+    public RouteCapacityExceededException(String message) {
+        super(message);
+    }
+}
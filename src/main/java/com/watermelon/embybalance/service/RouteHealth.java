@@ -0,0 +1,96 @@
+package com.watermelon.embybalance.service;
+
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 一条下载线路的主动探测健康状态
+ * HEALTHY：探测成功且首字节时间、吞吐达标；DEGRADED：探测成功但变慢，或偶发失败；
+ * DOWN：连续失败达到阈值。DOWN和DEGRADED的线路连续若干次探测达标后恢复为HEALTHY。
+ * 同一线路的探测串行执行，状态只由探测线程修改，读取方通过volatile字段看到最新值
+ */
+public class RouteHealth {
+
+    public enum State { HEALTHY, DEGRADED, DOWN }
+
+    /**
+     * 一次探测的结果
+     */
+    public enum Outcome { GOOD, SLOW, FAILED }
+
+    @Getter
+    private final Long routeId;
+
+    @Getter
+    private volatile State state = State.HEALTHY;
+
+    private int consecutiveFailures;
+    private int consecutiveGood;
+    private int consecutiveSucceeded;
+
+    private volatile long lastProbedAt;
+    private volatile long lastTtfbMs = -1;
+    private volatile double lastThroughputMbps = -1;
+    private volatile String lastError;
+    private volatile long stateChangedAt = System.currentTimeMillis();
+
+    public RouteHealth(Long routeId) {
+        this.routeId = routeId;
+    }
+
+    /**
+     * 记录一次探测结果并推进状态机
+     *
+     * @return 状态是否发生变化
+     */
+    boolean record(Outcome outcome, long ttfbMs, double throughputMbps, String error,
+                   int downAfterFailures, int recoverAfterSuccesses) {
+        lastProbedAt = System.currentTimeMillis();
+        lastTtfbMs = ttfbMs;
+        lastThroughputMbps = throughputMbps;
+        lastError = error;
+
+        State next = state;
+        if (outcome == Outcome.FAILED) {
+            consecutiveGood = 0;
+            consecutiveSucceeded = 0;
+            if (++consecutiveFailures >= downAfterFailures) {
+                next = State.DOWN;
+            } else if (state == State.HEALTHY) {
+                next = State.DEGRADED;
+            }
+        } else {
+            consecutiveFailures = 0;
+            consecutiveSucceeded++;
+            consecutiveGood = outcome == Outcome.GOOD ? consecutiveGood + 1 : 0;
+            if (consecutiveGood >= recoverAfterSuccesses) {
+                next = State.HEALTHY;
+            } else if (state == State.HEALTHY && outcome == Outcome.SLOW) {
+                next = State.DEGRADED;
+            } else if (state == State.DOWN && consecutiveSucceeded >= recoverAfterSuccesses) {
+                // 能连通但仍然偏慢，先恢复为降级
+                next = State.DEGRADED;
+            }
+        }
+
+        if (next == state) {
+            return false;
+        }
+        state = next;
+        stateChangedAt = lastProbedAt;
+        return true;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state.name());
+        stats.put("stateChangedAt", stateChangedAt);
+        stats.put("lastProbedAt", lastProbedAt);
+        stats.put("lastTtfbMs", lastTtfbMs);
+        stats.put("lastThroughputMbps", lastThroughputMbps);
+        stats.put("lastError", lastError);
+        return stats;
+    }
+}
@@ -0,0 +1,226 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 下载线路主动健康探测
+ * 定时向每条线路的探测对象发送小范围的Range GET（或HEAD），测量首字节时间和吞吐，
+ * 推进每条线路的健康状态机，状态变化时把健康系数发布到{@link RouteRegistry}，选择线路时无需查询数据库。
+ *
+ * 探测任务提交到Spring的applicationTaskExecutor，开启spring.threads.virtual.enabled时运行在虚拟线程上
+ */
+@Component
+@Slf4j
+public class RouteHealthProber {
+
+    private final RouteRegistry routeRegistry;
+    private final AsyncTaskExecutor probeExecutor;
+    private final HttpClient httpClient;
+
+    private final Map<Long, RouteHealth> healthByRoute = new ConcurrentHashMap<>();
+    private final ReentrantLock probeLock = new ReentrantLock();
+
+    // 默认关闭：线路上没有探测对象时每次探测都是404，所有线路都会被判为不可用
+    @Value("${app.route.health.enabled:false}")
+    private boolean enabled;
+
+    // 探测对象路径，各线路上需放置同一个固定大小的文件
+    @Value("${app.route.health.probe-path:/health/probe.bin}")
+    private String probePath;
+
+    // GET：Range读取probe-bytes字节，测量首字节时间和吞吐；HEAD：只测量首字节时间
+    @Value("${app.route.health.method:GET}")
+    private String method;
+
+    @Value("${app.route.health.probe-bytes:262144}")
+    private int probeBytes;
+
+    @Value("${app.route.health.timeout-ms:5000}")
+    private long timeoutMs;
+
+    @Value("${app.route.health.degraded-ttfb-ms:1000}")
+    private long degradedTtfbMs;
+
+    @Value("${app.route.health.degraded-throughput-mbps:1.0}")
+    private double degradedThroughputMbps;
+
+    @Value("${app.route.health.down-after-failures:3}")
+    private int downAfterFailures;
+
+    @Value("${app.route.health.recover-after-successes:2}")
+    private int recoverAfterSuccesses;
+
+    @Value("${app.route.health.degraded-factor:0.3}")
+    private double degradedFactor;
+
+    public RouteHealthProber(RouteRegistry routeRegistry,
+                             @Qualifier("applicationTaskExecutor") AsyncTaskExecutor probeExecutor,
+                             @Value("${app.route.health.connect-timeout-ms:3000}") long connectTimeoutMs) {
+        this.routeRegistry = routeRegistry;
+        this.probeExecutor = probeExecutor;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 并发探测注册表中的全部线路，等待本轮全部完成后发布健康系数
+     */
+    public void probeAll() {
+        if (!probeLock.tryLock()) {
+            log.debug("上一轮线路探测仍在进行，跳过本轮");
+            return;
+        }
+        try {
+            RouteRegistry.Snapshot snapshot = routeRegistry.snapshot();
+            Map<Long, DownloadRoute> routes = new LinkedHashMap<>();
+            for (int i = 0; i < snapshot.size(); i++) {
+                routes.put(snapshot.route(i).getId(), snapshot.route(i));
+            }
+            healthByRoute.keySet().retainAll(routes.keySet());
+
+            List<Future<Boolean>> probes = new ArrayList<>(routes.size());
+            for (DownloadRoute route : routes.values()) {
+                RouteHealth health = healthByRoute.computeIfAbsent(route.getId(), RouteHealth::new);
+                probes.add(probeExecutor.submit(() -> probe(route, health)));
+            }
+            boolean changed = false;
+            for (Future<Boolean> probe : probes) {
+                try {
+                    // 单次探测自身有超时，这里多留一些余量
+                    changed |= probe.get(timeoutMs * 2, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    probe.cancel(true);
+                    log.warn("线路探测任务未完成: {}", e.toString());
+                }
+            }
+            if (changed) {
+                routeRegistry.updateHealth(healthFactors());
+            }
+        } finally {
+            probeLock.unlock();
+        }
+    }
+
+    /**
+     * 当前状态对应的选择系数：正常1，降级degraded-factor，不可用0；未探测过的线路视为正常
+     */
+    public Map<Long, Double> healthFactors() {
+        Map<Long, Double> factors = new HashMap<>();
+        healthByRoute.forEach((routeId, health) -> factors.put(routeId, switch (health.getState()) {
+            case HEALTHY -> 1.0;
+            case DEGRADED -> degradedFactor;
+            case DOWN -> 0.0;
+        }));
+        return factors;
+    }
+
+    public RouteHealth.State getState(Long routeId) {
+        RouteHealth health = healthByRoute.get(routeId);
+        return health != null ? health.getState() : RouteHealth.State.HEALTHY;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        Map<Long, Map<String, Object>> routes = new LinkedHashMap<>();
+        healthByRoute.forEach((routeId, health) -> routes.put(routeId, health.getStatistics()));
+        stats.put("routes", routes);
+        return stats;
+    }
+
+    private boolean probe(DownloadRoute route, RouteHealth health) {
+        RouteHealth.State before = health.getState();
+        boolean changed;
+        try {
+            changed = probeOnce(route, health);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            changed = health.record(RouteHealth.Outcome.FAILED, -1, -1, e.toString(),
+                    downAfterFailures, recoverAfterSuccesses);
+        }
+        if (changed) {
+            log.warn("下载线路健康状态变化: {} {} -> {}", route.getFullUrl(), before, health.getState());
+        }
+        return changed;
+    }
+
+    private boolean probeOnce(DownloadRoute route, RouteHealth health) throws Exception {
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(route.getFullUrl() + probePath))
+                .timeout(Duration.ofMillis(timeoutMs))
+                .method(head ? "HEAD" : "GET", HttpRequest.BodyPublishers.noBody())
+                .header("Range", "bytes=0-" + (probeBytes - 1))
+                .header("Cache-Control", "no-cache")
+                .build();
+
+        long startedAt = System.nanoTime();
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        long bytes = 0;
+        long ttfbNanos;
+        try (InputStream body = response.body()) {
+            if (response.statusCode() >= 300) {
+                return health.record(RouteHealth.Outcome.FAILED, -1, -1, "HTTP " + response.statusCode(),
+                        downAfterFailures, recoverAfterSuccesses);
+            }
+            if (head) {
+                ttfbNanos = System.nanoTime() - startedAt;
+            } else {
+                // 首字节时间以读到响应体第一个字节为准；服务端忽略Range时最多读取probe-bytes
+                int first = body.read();
+                ttfbNanos = System.nanoTime() - startedAt;
+                if (first >= 0) {
+                    bytes = 1;
+                    byte[] buffer = new byte[16384];
+                    int read;
+                    while (bytes < probeBytes && (read = body.read(buffer, 0,
+                            (int) Math.min(buffer.length, probeBytes - bytes))) > 0) {
+                        bytes += read;
+                    }
+                }
+            }
+        }
+        long ttfbMs = TimeUnit.NANOSECONDS.toMillis(ttfbNanos);
+        double throughputMbps = -1;
+        long transferNanos = System.nanoTime() - startedAt - ttfbNanos;
+        if (bytes > 1 && transferNanos > 0) {
+            throughputMbps = (bytes / 1024.0 / 1024.0) / (transferNanos / 1_000_000_000.0);
+        }
+
+        boolean slow = ttfbMs > degradedTtfbMs
+                || (throughputMbps >= 0 && bytes >= probeBytes && throughputMbps < degradedThroughputMbps);
+        return health.record(slow ? RouteHealth.Outcome.SLOW : RouteHealth.Outcome.GOOD, ttfbMs, throughputMbps,
+                null, downAfterFailures, recoverAfterSuccesses);
+    }
+}
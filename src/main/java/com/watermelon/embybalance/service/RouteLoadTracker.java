@@ -0,0 +1,66 @@
+package com.watermelon.embybalance.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 各下载线路的进行中下载数
+ * 下发下载地址时加一，收到该线路的下载统计记录时减一，计数无锁（CAS）。
+ * 下发的地址不一定会被下载（例如PlaybackInfo中未播放的媒体源），不会有统计记录抵消，
+ * 因此计数按半衰期定时衰减；计数以千分之一为单位保存，衰减后的小数部分不会被截断
+ */
+@Component
+public class RouteLoadTracker {
+
+    private static final long UNIT = 1000;
+
+    private final Map<Long, AtomicLong> inFlight = new ConcurrentHashMap<>();
+
+    @Value("${app.route.load.half-life-ms:300000}")
+    private long halfLifeMs;
+
+    @Value("${app.route.load.decay-interval-ms:30000}")
+    private long decayIntervalMs;
+
+    public void onIssued(Long routeId) {
+        counter(routeId).addAndGet(UNIT);
+    }
+
+    public void onCompleted(Long routeId) {
+        counter(routeId).updateAndGet(value -> Math.max(0, value - UNIT));
+    }
+
+    /**
+     * 线路当前的进行中下载数（衰减后可能为小数）
+     */
+    public double inFlight(Long routeId) {
+        AtomicLong counter = inFlight.get(routeId);
+        return counter != null ? (double) counter.get() / UNIT : 0;
+    }
+
+    /**
+     * 按半衰期衰减所有计数，清理长期未下载的地址留下的计数
+     */
+    @Scheduled(fixedDelayString = "${app.route.load.decay-interval-ms:30000}")
+    public void decay() {
+        double retain = Math.pow(0.5, (double) decayIntervalMs / halfLifeMs);
+        inFlight.values().forEach(counter -> counter.updateAndGet(value -> (long) (value * retain)));
+    }
+
+    public Map<Long, Double> getStatistics() {
+        Map<Long, Double> stats = new LinkedHashMap<>();
+        inFlight.forEach((routeId, counter) -> stats.put(routeId, (double) counter.get() / UNIT));
+        return stats;
+    }
+
+    private AtomicLong counter(Long routeId) {
+        AtomicLong counter = inFlight.get(routeId);
+        return counter != null ? counter : inFlight.computeIfAbsent(routeId, id -> new AtomicLong());
+    }
+}
@@ -0,0 +1,273 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.repository.DownloadStatisticsRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 各下载线路最近24小时性能的内存滑动窗口
+ * 每条线路按1分钟分桶，桶保存在原始类型的环形数组中；记录下载统计时累加到当前分钟的桶，
+ * 桶所属分钟过期后被复用时清零。窗口内的总数、均值和成功率只需遍历桶（O(桶数)），不查询数据库。
+ * 启动时从最近24小时的分钟聚合重建，聚合断点之后尚未聚合的统计再按ID分页从原始表补齐；
+ * 加载期间到达的记录等待加载结束，ID不大于已加载最大ID的记录已包含在加载结果中，跳过以免重复计数
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RoutePerformanceWindow {
+
+    static final long BUCKET_MS = 60_000;
+    static final int BUCKETS = 24 * 60;
+
+    private static final int LOAD_PAGE_SIZE = 5000;
+
+    private final DownloadStatisticsRepository statisticsRepository;
+    private final RouteStatisticsRollupService routeStatisticsRollupService;
+
+    private final Map<Long, RouteBuckets> routes = new ConcurrentHashMap<>();
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    private volatile boolean loaded;
+    // 加载开始前到达的记录稍后会从数据库加载，全部跳过
+    private volatile long loadedMaxId = Long.MAX_VALUE;
+
+    /**
+     * 启动时从数据库重建窗口，先于线路注册表的首次构建执行
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onApplicationReady() {
+        load();
+    }
+
+    void load() {
+        loadLock.lock();
+        try {
+            Long maxId = statisticsRepository.findMaxId();
+            LocalDateTime startTime = LocalDateTime.now().minusHours(24);
+            long[] rollups = new long[1];
+            long afterId = routeStatisticsRollupService.readMinuteRollups(startTime.truncatedTo(ChronoUnit.MINUTES), rollup -> {
+                add(rollup.getRouteId(), toEpochMillis(rollup.getBucketStart()), rollup.getRequestCount(),
+                        rollup.getSuccessCount(), rollup.getBandwidthSum(), rollup.getResponseTimeSum(),
+                        rollup.getSuccessBandwidthSum(), rollup.getSuccessResponseTimeSum());
+                rollups[0]++;
+            });
+            // 读取最大ID之后聚合可能已推进，断点之前的统计都已包含在聚合中
+            long lastId = Math.max(afterId, maxId != null ? maxId : 0);
+            long count = 0;
+            while (true) {
+                List<Object[]> rows = statisticsRepository.findWindowRows(
+                        afterId, lastId, startTime, PageRequest.of(0, LOAD_PAGE_SIZE));
+                for (Object[] row : rows) {
+                    addOne((Long) row[1], toEpochMillis((LocalDateTime) row[2]),
+                            row[3] != null ? (Double) row[3] : 0.0, row[4] != null ? (Long) row[4] : 0L,
+                            Boolean.TRUE.equals(row[5]));
+                    afterId = (Long) row[0];
+                }
+                count += rows.size();
+                if (rows.size() < LOAD_PAGE_SIZE) {
+                    break;
+                }
+            }
+            loadedMaxId = lastId;
+            log.info("线路性能窗口已重建: {}个分钟聚合, {}条未聚合统计, {}条线路", rollups[0], count, routes.size());
+        } catch (Exception e) {
+            // 加载失败时从空窗口开始，之后的记录照常累加
+            routes.clear();
+            loadedMaxId = 0;
+            log.error("重建线路性能窗口失败", e);
+        } finally {
+            loaded = true;
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * 累加一条已保存的下载统计
+     *
+     * @param id 统计记录ID，用于和启动加载去重
+     */
+    public void record(Long id, Long routeId, LocalDateTime createdAt, double bandwidth, long responseTime, boolean success) {
+        if (routeId == null) {
+            return;
+        }
+        if (!loaded) {
+            // 启动加载进行中时等待其结束
+            loadLock.lock();
+            loadLock.unlock();
+        }
+        if (id != null && id <= loadedMaxId) {
+            return;
+        }
+        addOne(routeId, createdAt != null ? toEpochMillis(createdAt) : System.currentTimeMillis(),
+                bandwidth, responseTime, success);
+    }
+
+    private void addOne(Long routeId, long timestamp, double bandwidth, long responseTime, boolean success) {
+        add(routeId, timestamp, 1, success ? 1 : 0, bandwidth, responseTime,
+                success ? bandwidth : 0, success ? responseTime : 0);
+    }
+
+    /**
+     * 累加一个时间点的汇总（单条统计或一个分钟聚合）
+     */
+    void add(Long routeId, long timestamp, long requests, long successes, double bandwidthSum, long responseTimeSum,
+             double successBandwidthSum, long successResponseTimeSum) {
+        RouteBuckets buckets = routes.get(routeId);
+        if (buckets == null) {
+            buckets = routes.computeIfAbsent(routeId, id -> new RouteBuckets());
+        }
+        buckets.add(timestamp / BUCKET_MS, requests, successes, bandwidthSum, responseTimeSum,
+                successBandwidthSum, successResponseTimeSum);
+    }
+
+    /**
+     * 指定线路最近minutes分钟（最多24小时）的汇总
+     */
+    public Window window(Long routeId, int minutes) {
+        RouteBuckets buckets = routes.get(routeId);
+        return buckets != null ? buckets.sum(System.currentTimeMillis() / BUCKET_MS, minutes) : Window.EMPTY;
+    }
+
+    /**
+     * 所有在窗口内有记录的线路的汇总
+     */
+    public Map<Long, Window> windows(int minutes) {
+        long currentMinute = System.currentTimeMillis() / BUCKET_MS;
+        Map<Long, Window> result = new LinkedHashMap<>();
+        routes.forEach((routeId, buckets) -> {
+            Window window = buckets.sum(currentMinute, minutes);
+            if (window.requests() > 0) {
+                result.put(routeId, window);
+            }
+        });
+        return result;
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 窗口汇总：带宽和响应时间分别累计全部记录和成功记录
+     */
+    public record Window(long requests, long successes, double bandwidthSum, long responseTimeSum,
+                         double successBandwidthSum, long successResponseTimeSum) {
+
+        public static final Window EMPTY = new Window(0, 0, 0, 0, 0, 0);
+
+        public double avgBandwidth() {
+            return requests > 0 ? bandwidthSum / requests : 0.0;
+        }
+
+        public double avgResponseTime() {
+            return requests > 0 ? (double) responseTimeSum / requests : 0.0;
+        }
+
+        public double avgSuccessBandwidth() {
+            return successes > 0 ? successBandwidthSum / successes : 0.0;
+        }
+
+        public double avgSuccessResponseTime() {
+            return successes > 0 ? (double) successResponseTimeSum / successes : 0.0;
+        }
+
+        /**
+         * 成功率（百分比）
+         */
+        public double successRate() {
+            return requests > 0 ? successes * 100.0 / requests : 0.0;
+        }
+    }
+
+    /**
+     * 一条线路的分钟桶，下标为分钟数对桶数取模，minute[i]记录该桶当前所属的分钟
+     */
+    private static final class RouteBuckets {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] minute = new long[BUCKETS];
+        private final long[] requests = new long[BUCKETS];
+        private final long[] successes = new long[BUCKETS];
+        private final double[] bandwidthSum = new double[BUCKETS];
+        private final long[] responseTimeSum = new long[BUCKETS];
+        private final double[] successBandwidthSum = new double[BUCKETS];
+        private final long[] successResponseTimeSum = new long[BUCKETS];
+
+        RouteBuckets() {
+            Arrays.fill(minute, -1);
+        }
+
+        void add(long eventMinute, long addRequests, long addSuccesses, double addBandwidth, long addResponseTime,
+                 double addSuccessBandwidth, long addSuccessResponseTime) {
+            int i = (int) Math.floorMod(eventMinute, (long) BUCKETS);
+            lock.lock();
+            try {
+                if (minute[i] != eventMinute) {
+                    if (minute[i] > eventMinute) {
+                        // 比桶中数据还早24小时以上，已在窗口之外
+                        return;
+                    }
+                    minute[i] = eventMinute;
+                    requests[i] = 0;
+                    successes[i] = 0;
+                    bandwidthSum[i] = 0;
+                    responseTimeSum[i] = 0;
+                    successBandwidthSum[i] = 0;
+                    successResponseTimeSum[i] = 0;
+                }
+                requests[i] += addRequests;
+                successes[i] += addSuccesses;
+                bandwidthSum[i] += addBandwidth;
+                responseTimeSum[i] += addResponseTime;
+                successBandwidthSum[i] += addSuccessBandwidth;
+                successResponseTimeSum[i] += addSuccessResponseTime;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Window sum(long currentMinute, int minutes) {
+            long oldest = currentMinute - Math.min(minutes, BUCKETS) + 1;
+            long totalRequests = 0;
+            long totalSuccesses = 0;
+            double totalBandwidth = 0;
+            long totalResponseTime = 0;
+            double totalSuccessBandwidth = 0;
+            long totalSuccessResponseTime = 0;
+            lock.lock();
+            try {
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (minute[i] >= oldest && minute[i] <= currentMinute) {
+                        totalRequests += requests[i];
+                        totalSuccesses += successes[i];
+                        totalBandwidth += bandwidthSum[i];
+                        totalResponseTime += responseTimeSum[i];
+                        totalSuccessBandwidth += successBandwidthSum[i];
+                        totalSuccessResponseTime += successResponseTimeSum[i];
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new Window(totalRequests, totalSuccesses, totalBandwidth, totalResponseTime,
+                    totalSuccessBandwidth, totalSuccessResponseTime);
+        }
+    }
+}
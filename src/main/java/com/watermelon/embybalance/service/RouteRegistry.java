@@ -0,0 +1,357 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import com.watermelon.embybalance.repository.DownloadRouteRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * 下载线路内存注册表
+ * 持有线路列表及预先计算好的评分快照，读取时无锁、无数据库访问；
+ * 仅在线路增删改或定时评分任务触发时整体重建（写时复制）。
+ * 主动探测得到的健康系数乘到评分和权重上，不可用的线路不会被选中；健康变化时只替换快照，不访问数据库
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RouteRegistry {
+
+    private final DownloadRouteRepository downloadRouteRepository;
+    private final DownloadStatisticsService downloadStatisticsService;
+
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile Map<Long, Double> healthFactors = Map.of();
+
+    /**
+     * 获取当前快照
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 应用启动完成后加载线路
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        rebuild();
+    }
+
+    /**
+     * 线路变更后刷新注册表
+     * 处于事务中时推迟到提交之后，避免回滚的数据进入快照
+     */
+    public void refresh() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    rebuild();
+                }
+            });
+        } else {
+            rebuild();
+        }
+    }
+
+    /**
+     * 从数据库重新加载线路和性能统计，计算评分并发布新快照
+     */
+    public void rebuild() {
+        rebuildLock.lock();
+        try {
+            List<DownloadRoute> routes = downloadRouteRepository.findAllOrderByCreatedAtDesc();
+
+            Map<Long, Map<String, Object>> statsMap = new HashMap<>();
+            for (Map<String, Object> stats : downloadStatisticsService.getAllRoutePerformanceStatistics()) {
+                statsMap.put((Long) stats.get("routeId"), stats);
+            }
+
+            double[] scores = new double[routes.size()];
+            for (int i = 0; i < routes.size(); i++) {
+                DownloadRoute route = routes.get(i);
+                scores[i] = calculateScore(route, statsMap.get(route.getId()));
+            }
+
+            snapshot = new Snapshot(routes.toArray(new DownloadRoute[0]), scores, healthFactors);
+            log.debug("线路注册表已重建: 线路数={}", routes.size());
+        } catch (Exception e) {
+            log.error("重建线路注册表失败，继续使用旧快照", e);
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * 发布新的健康系数（routeId -> 0~1），沿用当前快照的线路和评分
+     */
+    public void updateHealth(Map<Long, Double> factors) {
+        rebuildLock.lock();
+        try {
+            healthFactors = Map.copyOf(factors);
+            Snapshot current = snapshot;
+            snapshot = new Snapshot(current.routes, current.baseScores, healthFactors);
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * 计算线路的综合评分
+     * 统计样本不足时使用基础权重，否则：带宽40% + 响应时间30% + 成功率30%，再结合原始权重
+     */
+    static double calculateScore(DownloadRoute route, Map<String, Object> stats) {
+        if (stats == null || (Long) stats.get("totalRequests") < 5) {
+            return route.getWeight().doubleValue();
+        }
+
+        double avgBandwidth = ((Number) stats.get("avgBandwidth")).doubleValue();
+        double avgResponseTime = ((Number) stats.get("avgResponseTime")).doubleValue();
+        double successRate = ((Number) stats.get("successRate")).doubleValue();
+
+        double bandwidthScore = Math.min(avgBandwidth / 10.0, 1.0) * 100;
+        double responseTimeScore = Math.max(0, 100 - (avgResponseTime / 100.0));
+
+        double performanceScore = (bandwidthScore * 0.4) + (responseTimeScore * 0.3) + (successRate * 0.3);
+        return performanceScore * (route.getWeight() / 100.0);
+    }
+
+    /**
+     * 不可变的线路快照，包含按顺序排列的线路、评分和累计数组
+     * 评分和权重已乘以健康系数；全部线路都不可用时多半是探测方自身网络异常，忽略健康系数
+     */
+    public static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new DownloadRoute[0], new double[0], Map.of());
+
+        // 按线路组划分的子快照，只包含组内至少有一条可用线路的组
+        private final Map<String, Snapshot> groups;
+
+        private final DownloadRoute[] routes;
+        private final double[] baseScores;
+        private final double[] health;
+        private final double[] scores;
+        private final double[] cumulativeScores;
+        private final int[] cumulativeWeights;
+        private final int[] available;
+
+        Snapshot(DownloadRoute[] routes, double[] baseScores, Map<Long, Double> healthFactors) {
+            this(routes, baseScores, healthFactors, true);
+        }
+
+        private Snapshot(DownloadRoute[] routes, double[] baseScores, Map<Long, Double> healthFactors, boolean withGroups) {
+            this.routes = routes;
+            this.baseScores = baseScores;
+            this.health = new double[routes.length];
+            this.scores = new double[routes.length];
+            this.cumulativeScores = new double[routes.length];
+            this.cumulativeWeights = new int[routes.length];
+
+            boolean anyAvailable = false;
+            for (int i = 0; i < routes.length; i++) {
+                health[i] = healthFactors.getOrDefault(routes[i].getId(), 1.0);
+                anyAvailable |= health[i] > 0;
+            }
+            if (!anyAvailable) {
+                Arrays.fill(health, 1.0);
+            }
+
+            double scoreSum = 0;
+            int weightSum = 0;
+            for (int i = 0; i < routes.length; i++) {
+                scores[i] = baseScores[i] * health[i];
+                scoreSum += scores[i];
+                // 降级线路的权重按系数缩小但至少为1，不可用线路为0
+                weightSum += health[i] > 0 ? Math.max(1, (int) Math.round(routes[i].getWeight() * health[i])) : 0;
+                cumulativeScores[i] = scoreSum;
+                cumulativeWeights[i] = weightSum;
+            }
+            this.available = IntStream.range(0, routes.length).filter(i -> health[i] > 0).toArray();
+            this.groups = withGroups ? buildGroups() : Map.of();
+        }
+
+        private Map<String, Snapshot> buildGroups() {
+            Map<String, List<Integer>> members = new HashMap<>();
+            for (int i = 0; i < routes.length; i++) {
+                String group = routes[i].getRouteGroup();
+                if (group != null && !group.isEmpty()) {
+                    members.computeIfAbsent(group, key -> new ArrayList<>()).add(i);
+                }
+            }
+            Map<String, Snapshot> result = new HashMap<>();
+            members.forEach((group, indexes) -> {
+                if (indexes.stream().noneMatch(i -> health[i] > 0)) {
+                    return;
+                }
+                DownloadRoute[] groupRoutes = new DownloadRoute[indexes.size()];
+                double[] groupScores = new double[indexes.size()];
+                Map<Long, Double> groupHealth = new HashMap<>();
+                for (int k = 0; k < indexes.size(); k++) {
+                    int i = indexes.get(k);
+                    groupRoutes[k] = routes[i];
+                    groupScores[k] = baseScores[i];
+                    groupHealth.put(routes[i].getId(), health[i]);
+                }
+                result.put(group, new Snapshot(groupRoutes, groupScores, groupHealth, false));
+            });
+            return Map.copyOf(result);
+        }
+
+        /**
+         * 线路组的子快照；组为空、不存在或组内线路都不可用时返回整个快照
+         */
+        public Snapshot forGroup(String group) {
+            if (group == null) {
+                return this;
+            }
+            return groups.getOrDefault(group, this);
+        }
+
+        public int size() {
+            return routes.length;
+        }
+
+        public boolean isEmpty() {
+            return routes.length == 0;
+        }
+
+        public DownloadRoute route(int index) {
+            return routes[index];
+        }
+
+        public double score(int index) {
+            return scores[index];
+        }
+
+        /**
+         * 线路的健康系数，1正常，0不可用
+         */
+        public double health(int index) {
+            return health[index];
+        }
+
+        public double totalScore() {
+            return routes.length == 0 ? 0 : cumulativeScores[routes.length - 1];
+        }
+
+        public int totalWeight() {
+            return routes.length == 0 ? 0 : cumulativeWeights[routes.length - 1];
+        }
+
+        /**
+         * 按评分加权随机选择线路下标，r为[0, totalScore)内的随机数
+         */
+        public int indexByScore(double r) {
+            for (int i = 0; i < cumulativeScores.length; i++) {
+                if (r < cumulativeScores[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 按权重随机选择线路下标，r为[0, totalWeight)内的随机数
+         */
+        public int indexByWeight(int r) {
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (r < cumulativeWeights[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 按key做加权Rendezvous哈希选择线路下标，权重为线路权重乘以健康系数
+         * 同一key稳定落在同一线路上，没有可选线路时返回-1
+         */
+        public int indexByRendezvous(String key) {
+            long keyHash = RendezvousHash.keyHash(key);
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < routes.length; i++) {
+                double score = RendezvousHash.score(keyHash, routes[i].getId(), routes[i].getWeight() * health[i]);
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * 两次随机选择（power of two choices）：从可用线路中随机取两条，选负载较低的一条
+         * 负载为(进行中下载数 + 1) / 容量，容量取评分（已含权重和健康系数），评分为0时取权重乘以健康系数。
+         * 只比较两条线路，不会所有请求都涌向评分最高的线路；没有可选线路时返回-1
+         *
+         * @param inFlight 线路当前的进行中下载数
+         */
+        public int indexByTwoChoices(ToDoubleFunction<DownloadRoute> inFlight) {
+            if (available.length == 0) {
+                return -1;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int firstPosition = random.nextInt(available.length);
+            int first = available[firstPosition];
+            if (available.length == 1) {
+                return first;
+            }
+            int secondPosition = random.nextInt(available.length - 1);
+            int second = available[secondPosition >= firstPosition ? secondPosition + 1 : secondPosition];
+            return load(second, inFlight) < load(first, inFlight) ? second : first;
+        }
+
+        /**
+         * 选中的线路满载时依次尝试的其他可用线路下标
+         * 给出key时按Rendezvous得分从高到低（同一文件的分流目标也稳定），否则按评分从高到低
+         */
+        public int[] spilloverOrder(Long excludedRouteId, String rendezvousKey) {
+            long keyHash = rendezvousKey != null ? RendezvousHash.keyHash(rendezvousKey) : 0;
+            return IntStream.of(available)
+                    .filter(i -> !routes[i].getId().equals(excludedRouteId))
+                    .boxed()
+                    .sorted(Comparator.comparingDouble((Integer i) -> rendezvousKey != null
+                            ? RendezvousHash.score(keyHash, routes[i].getId(), routes[i].getWeight() * health[i])
+                            : scores[i]).reversed())
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        private double load(int index, ToDoubleFunction<DownloadRoute> inFlight) {
+            double capacity = scores[index] > 0 ? scores[index] : routes[index].getWeight() * health[index];
+            return (inFlight.applyAsDouble(routes[index]) + 1) / capacity;
+        }
+
+        /**
+         * 评分最高的线路下标
+         */
+        public int bestIndex() {
+            int best = -1;
+            for (int i = 0; i < scores.length; i++) {
+                if (health[i] > 0 && (best < 0 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+    }
+}
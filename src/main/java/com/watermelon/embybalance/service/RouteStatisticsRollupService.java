@@ -0,0 +1,230 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.RouteStatisticsHour;
+import com.watermelon.embybalance.entity.RouteStatisticsMinute;
+import com.watermelon.embybalance.entity.RouteStatisticsRollup;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.DownloadStatisticsRepository;
+import com.watermelon.embybalance.repository.RouteStatisticsHourRepository;
+import com.watermelon.embybalance.repository.RouteStatisticsMinuteRepository;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 下载统计的分钟/小时预聚合
+ * 定时按ID顺序读取上次聚合之后的原始统计，按（线路, 分钟）和（线路, 小时）累加后合并到聚合表，
+ * 聚合结果和断点（已聚合的最大统计ID）在同一个事务中提交，失败时从原断点重新聚合，不会重复计数。
+ * 性能排名、概览和线路报告只读聚合表和内存窗口，原始统计只用于按客户端查询明细
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RouteStatisticsRollupService {
+
+    static final String CHECKPOINT_NAME = "statistics-rollup";
+
+    private final DownloadStatisticsRepository statisticsRepository;
+    private final RouteStatisticsMinuteRepository minuteRepository;
+    private final RouteStatisticsHourRepository hourRepository;
+    private final SyncCheckpointRepository syncCheckpointRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrencyLimiter sqliteLimiter;
+
+    private final ReentrantLock compactLock = new ReentrantLock();
+    private volatile Map<String, Object> lastRun = Map.of();
+
+    @Value("${app.statistics.rollup.batch-size:5000}")
+    private int batchSize;
+
+    // 分钟聚合只用于重建最近24小时的内存窗口
+    @Value("${app.statistics.rollup.minute-retention-hours:48}")
+    private int minuteRetentionHours;
+
+    /**
+     * 聚合上次断点之后的原始统计，已有聚合在进行时直接返回
+     */
+    public void compact() throws Exception {
+        if (!compactLock.tryLock()) {
+            return;
+        }
+        try {
+            long startedAt = System.currentTimeMillis();
+            long afterId = checkpoint();
+            long rows = 0;
+            while (true) {
+                List<Object[]> batch = statisticsRepository.findRowsAfterId(afterId, PageRequest.of(0, batchSize));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                long lastId = (Long) batch.get(batch.size() - 1)[0];
+                Map<BucketKey, RouteStatisticsMinute> minutes = new HashMap<>();
+                Map<BucketKey, RouteStatisticsHour> hours = new HashMap<>();
+                for (Object[] row : batch) {
+                    Long routeId = (Long) row[1];
+                    LocalDateTime createdAt = (LocalDateTime) row[2];
+                    if (routeId == null || createdAt == null) {
+                        continue;
+                    }
+                    long bytes = row[3] != null ? (Long) row[3] : 0L;
+                    long duration = row[4] != null ? (Long) row[4] : 0L;
+                    double bandwidth = row[5] != null ? (Double) row[5] : 0.0;
+                    long responseTime = row[6] != null ? (Long) row[6] : 0L;
+                    boolean success = Boolean.TRUE.equals(row[7]);
+                    bucket(minutes, routeId, createdAt.truncatedTo(ChronoUnit.MINUTES), RouteStatisticsMinute::new)
+                            .add(bytes, duration, bandwidth, responseTime, success);
+                    bucket(hours, routeId, createdAt.truncatedTo(ChronoUnit.HOURS), RouteStatisticsHour::new)
+                            .add(bytes, duration, bandwidth, responseTime, success);
+                }
+                sqliteLimiter.run(() -> transactionTemplate.executeWithoutResult(status -> {
+                    minuteRepository.saveAll(mergeExisting(minutes.values(), minuteRepository::findByRouteIdAndBucketStart));
+                    hourRepository.saveAll(mergeExisting(hours.values(), hourRepository::findByRouteIdAndBucketStart));
+                    syncCheckpointRepository.save(new SyncCheckpoint(CHECKPOINT_NAME, Long.toString(lastId), null));
+                }));
+                afterId = lastId;
+                rows += batch.size();
+                if (batch.size() < batchSize) {
+                    break;
+                }
+            }
+
+            LocalDateTime minuteCutoff = LocalDateTime.now().minusHours(minuteRetentionHours);
+            int expiredMinutes = sqliteLimiter.call(() -> transactionTemplate.execute(
+                    status -> minuteRepository.deleteByBucketStartBefore(minuteCutoff)));
+
+            Map<String, Object> run = new LinkedHashMap<>();
+            run.put("rows", rows);
+            run.put("checkpoint", afterId);
+            run.put("expiredMinuteRollups", expiredMinutes);
+            run.put("durationMs", System.currentTimeMillis() - startedAt);
+            lastRun = run;
+            if (rows > 0) {
+                log.debug("下载统计聚合完成: 统计={}, 断点={}", rows, afterId);
+            }
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * 读取指定时间之后的分钟聚合，返回这些聚合覆盖到的最大统计ID
+     * 读取期间暂停聚合，保证返回的断点和聚合内容一致
+     */
+    public long readMinuteRollups(LocalDateTime startTime, Consumer<RouteStatisticsMinute> consumer) {
+        compactLock.lock();
+        try {
+            long checkpoint = checkpoint();
+            minuteRepository.findByBucketStartGreaterThanEqual(startTime).forEach(consumer);
+            return checkpoint;
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * 按线路汇总指定时间之后的小时聚合
+     */
+    public Map<Long, RoutePerformanceWindow.Window> hourWindows(LocalDateTime startTime) {
+        Map<Long, RoutePerformanceWindow.Window> result = new LinkedHashMap<>();
+        for (Object[] row : hourRepository.summarizeByRoute(startTime.truncatedTo(ChronoUnit.HOURS))) {
+            long requests = row[1] != null ? ((Number) row[1]).longValue() : 0;
+            if (requests > 0) {
+                result.put((Long) row[0], new RoutePerformanceWindow.Window(
+                        requests,
+                        row[2] != null ? ((Number) row[2]).longValue() : 0,
+                        row[3] != null ? ((Number) row[3]).doubleValue() : 0.0,
+                        row[4] != null ? ((Number) row[4]).longValue() : 0,
+                        row[5] != null ? ((Number) row[5]).doubleValue() : 0.0,
+                        row[6] != null ? ((Number) row[6]).longValue() : 0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定线路从指定时间开始的逐小时统计
+     */
+    public List<Map<String, Object>> hourlyTrend(Long routeId, LocalDateTime startTime) {
+        List<Map<String, Object>> trend = new ArrayList<>();
+        for (RouteStatisticsHour hour : hourRepository.findByRouteIdAndBucketStartGreaterThanEqualOrderByBucketStartAsc(
+                routeId, startTime.truncatedTo(ChronoUnit.HOURS))) {
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("hour", hour.getBucketStart());
+            point.put("requests", hour.getRequestCount());
+            point.put("successes", hour.getSuccessCount());
+            point.put("bytes", hour.getBytesSum());
+            // 按总字节数和总耗时计算的吞吐（MB/s）
+            point.put("throughput", hour.getDurationSum() > 0
+                    ? hour.getBytesSum() / (1024.0 * 1024.0) / (hour.getDurationSum() / 1000.0) : 0.0);
+            point.put("avgResponseTime", (double) hour.getResponseTimeSum() / hour.getRequestCount());
+            point.put("minResponseTime", hour.getMinResponseTime());
+            point.put("maxResponseTime", hour.getMaxResponseTime());
+            point.put("maxBandwidth", hour.getMaxBandwidth());
+            trend.add(point);
+        }
+        return trend;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", compactLock.isLocked());
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+
+    /**
+     * 已合并到聚合表的最大统计ID
+     */
+    long checkpoint() {
+        return syncCheckpointRepository.findById(CHECKPOINT_NAME)
+                .map(checkpoint -> Long.parseLong(checkpoint.getPosition()))
+                .orElse(0L);
+    }
+
+    private static <T extends RouteStatisticsRollup> T bucket(Map<BucketKey, T> buckets, Long routeId,
+                                                              LocalDateTime bucketStart, Supplier<T> factory) {
+        return buckets.computeIfAbsent(new BucketKey(routeId, bucketStart), key -> {
+            T rollup = factory.get();
+            rollup.setRouteId(routeId);
+            rollup.setBucketStart(bucketStart);
+            return rollup;
+        });
+    }
+
+    /**
+     * 把本批聚合合并到表中已有的同一时间桶
+     */
+    private static <T extends RouteStatisticsRollup> List<T> mergeExisting(
+            Iterable<T> deltas, BiFunction<Long, LocalDateTime, Optional<T>> finder) {
+        List<T> merged = new ArrayList<>();
+        for (T delta : deltas) {
+            merged.add(finder.apply(delta.getRouteId(), delta.getBucketStart())
+                    .map(existing -> {
+                        existing.merge(delta);
+                        return existing;
+                    })
+                    .orElse(delta));
+        }
+        return merged;
+    }
+
+    private record BucketKey(Long routeId, LocalDateTime bucketStart) {
+    }
+}
@@ -0,0 +1,321 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * NDJSON格式下载统计的流式批量导入
+ * 请求体可以是gzip压缩或未压缩的NDJSON（按gzip魔数判断），每行一个JSON对象。
+ * 逐行读入可复用的字节缓冲区，用Jackson流式解析器直接解析为原始类型字段，不构建中间Map；
+ * 解析出的记录逐条提交到写入队列，队列满时等待写线程，因此内存占用与上传大小无关。
+ * 每行独立解析，格式错误或缺少必填字段的行记录行号和原因后跳过，不影响其他行
+ */
+@Service
+@Slf4j
+public class StatisticsBulkIngestor {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final DownloadStatisticsService downloadStatisticsService;
+    private final JsonFactory jsonFactory;
+
+    // 单行最大字节数，超过时整行拒绝
+    @Value("${app.statistics.ingest.max-line-bytes:65536}")
+    private int maxLineBytes;
+
+    // 响应中最多列出的拒绝行数，超过时只计数
+    @Value("${app.statistics.ingest.max-reported-rejects:100}")
+    private int maxReportedRejects;
+
+    public StatisticsBulkIngestor(DownloadStatisticsService downloadStatisticsService, ObjectMapper objectMapper) {
+        this.downloadStatisticsService = downloadStatisticsService;
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * 导入请求体中的全部记录
+     *
+     * @param defaultClientIp 记录中没有clientIp时使用的地址
+     * @return 行数、接收数、拒绝数和被拒绝的行；读取或解压请求体失败时带error，出错前的行保持已提交
+     */
+    public Result ingest(InputStream body, String defaultClientIp) {
+        Result result = new Result(maxReportedRejects);
+        try {
+            readLines(body, defaultClientIp, result);
+        } catch (IOException e) {
+            result.error = "读取请求体失败: " + e.getMessage();
+            log.warn("批量导入下载统计时读取请求体失败，已处理{}行: {}", result.lines, e.getMessage());
+        }
+        log.info("批量导入下载统计完成: 行数={}, 接收={}, 拒绝={}", result.lines, result.accepted, result.rejected);
+        return result;
+    }
+
+    private void readLines(InputStream body, String defaultClientIp, Result result) throws IOException {
+        InputStream input = decompressIfGzip(body);
+        byte[] readBuffer = new byte[READ_BUFFER_BYTES];
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        boolean overlong = false;
+        int read;
+        while ((read = input.read(readBuffer)) > 0) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (readBuffer[i] != '\n') {
+                    continue;
+                }
+                int chunk = i - start;
+                if (!overlong && lineLength + chunk <= maxLineBytes) {
+                    line = append(line, lineLength, readBuffer, start, chunk);
+                    lineLength += chunk;
+                } else {
+                    overlong = true;
+                }
+                processLine(line, lineLength, overlong, defaultClientIp, result);
+                lineLength = 0;
+                overlong = false;
+                start = i + 1;
+            }
+            int rest = read - start;
+            if (!overlong && lineLength + rest <= maxLineBytes) {
+                line = append(line, lineLength, readBuffer, start, rest);
+                lineLength += rest;
+            } else {
+                overlong = true;
+            }
+        }
+        if (lineLength > 0 || overlong) {
+            processLine(line, lineLength, overlong, defaultClientIp, result);
+        }
+    }
+
+    private void processLine(byte[] line, int length, boolean overlong, String defaultClientIp, Result result) {
+        result.lines++;
+        if (overlong) {
+            result.reject("行长度超过" + maxLineBytes + "字节");
+            return;
+        }
+        // 空行和只有空白（含\r）的行跳过，不计入拒绝
+        int end = length;
+        while (end > 0 && (line[end - 1] == '\r' || line[end - 1] == ' ' || line[end - 1] == '\t')) {
+            end--;
+        }
+        if (end == 0) {
+            result.lines--;
+            result.blankLines++;
+            return;
+        }
+        try {
+            DownloadStatistics statistics = parseLine(line, end, defaultClientIp);
+            if (downloadStatisticsService.importDownloadStatistics(statistics)) {
+                result.accepted++;
+            } else {
+                result.reject("写入队列已满");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            result.reject(e.getMessage());
+        }
+    }
+
+    /**
+     * 解析一行JSON对象，未知字段跳过
+     */
+    DownloadStatistics parseLine(byte[] line, int length, String defaultClientIp) throws IOException {
+        long routeId = -1;
+        String clientIp = null;
+        String filePath = null;
+        long downloadSize = 0;
+        long downloadDuration = 0;
+        long responseTime = 0;
+        boolean success = false;
+        String userAgent = null;
+        LocalDateTime createdAt = null;
+
+        try (JsonParser parser = jsonFactory.createParser(line, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("不是JSON对象");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "routeId" -> routeId = longValue(parser, value, field);
+                    case "clientIp" -> clientIp = parser.getValueAsString();
+                    case "filePath" -> filePath = parser.getValueAsString();
+                    case "downloadSize" -> downloadSize = longValue(parser, value, field);
+                    case "downloadDuration" -> downloadDuration = longValue(parser, value, field);
+                    case "responseTime" -> responseTime = longValue(parser, value, field);
+                    case "success" -> success = value == JsonToken.VALUE_TRUE
+                            || (value == JsonToken.VALUE_STRING && Boolean.parseBoolean(parser.getText()))
+                            || (value == JsonToken.VALUE_NUMBER_INT && parser.getLongValue() != 0);
+                    case "userAgent" -> userAgent = parser.getValueAsString();
+                    case "timestamp", "createdAt" -> createdAt = timeValue(parser, value, field);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                throw new IllegalArgumentException("JSON对象不完整");
+            }
+            if (parser.nextToken() != null) {
+                throw new IllegalArgumentException("一行只能包含一个JSON对象");
+            }
+        }
+
+        if (routeId <= 0) {
+            throw new IllegalArgumentException("缺少routeId");
+        }
+        if (downloadSize < 0 || downloadDuration < 0 || responseTime < 0) {
+            throw new IllegalArgumentException("数值字段不能为负数");
+        }
+        if (clientIp == null || clientIp.isEmpty()) {
+            clientIp = defaultClientIp;
+        }
+        DownloadStatistics statistics = new DownloadStatistics();
+        statistics.setRouteId(routeId);
+        statistics.setClientIp(clientIp);
+        statistics.setFilePath(filePath);
+        statistics.setDownloadSize(downloadSize);
+        statistics.setDownloadDuration(downloadDuration);
+        statistics.setResponseTime(responseTime);
+        statistics.setSuccess(success);
+        statistics.setUserAgent(userAgent);
+        statistics.setCreatedAt(createdAt);
+        return statistics;
+    }
+
+    private static long longValue(JsonParser parser, JsonToken value, String field) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        if (value == JsonToken.VALUE_NUMBER_FLOAT) {
+            return (long) parser.getDoubleValue();
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            try {
+                return Long.parseLong(parser.getText().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("字段" + field + "不是整数");
+            }
+        }
+        throw new IllegalArgumentException("字段" + field + "不是整数");
+    }
+
+    /**
+     * 时间字段：毫秒时间戳、带时区的ISO-8601时间或本地时间
+     */
+    private static LocalDateTime timeValue(JsonParser parser, JsonToken value, String field) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(parser.getLongValue()), ZoneId.systemDefault());
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            String text = parser.getText().trim();
+            try {
+                return OffsetDateTime.parse(text).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+            } catch (DateTimeParseException e) {
+                try {
+                    return LocalDateTime.parse(text);
+                } catch (DateTimeParseException ignored) {
+                    throw new IllegalArgumentException("字段" + field + "不是有效的时间");
+                }
+            }
+        }
+        throw new IllegalArgumentException("字段" + field + "不是有效的时间");
+    }
+
+    private static byte[] append(byte[] line, int length, byte[] source, int offset, int count) {
+        if (length + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        }
+        System.arraycopy(source, offset, line, length, count);
+        return line;
+    }
+
+    private static InputStream decompressIfGzip(InputStream body) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(body, READ_BUFFER_BYTES);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(buffered, READ_BUFFER_BYTES);
+        }
+        return buffered;
+    }
+
+    /**
+     * 导入结果，被拒绝的行最多保留maxReported条
+     */
+    public static final class Result {
+
+        private final int maxReported;
+        private final List<Map<String, Object>> rejects = new ArrayList<>();
+        private long lines;
+        private long blankLines;
+        private long accepted;
+        private long rejected;
+        private String error;
+
+        Result(int maxReported) {
+            this.maxReported = maxReported;
+        }
+
+        private void reject(String reason) {
+            rejected++;
+            if (rejects.size() < maxReported) {
+                Map<String, Object> reject = new LinkedHashMap<>();
+                reject.put("line", lines + blankLines);
+                reject.put("error", reason);
+                rejects.add(reject);
+            }
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("lines", lines);
+            map.put("accepted", accepted);
+            map.put("rejected", rejected);
+            map.put("rejects", rejects);
+            map.put("rejectsTruncated", rejected > rejects.size());
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
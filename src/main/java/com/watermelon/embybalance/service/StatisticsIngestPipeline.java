@@ -0,0 +1,362 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 下载统计的写后批量入库
+ * 记录先进入有界无锁队列（ConcurrentLinkedQueue + CAS计数限制容量），由单个写线程在攒够batch-size条
+ * 或等待超过flush-interval-ms时取出一批，在一个事务中用多行INSERT写入数据库（SQLite或MySQL）。
+ * IDENTITY主键使Hibernate无法批量插入，因此直接用JDBC写入；各行ID从INSERT的生成键读取后再计入内存性能窗口。
+ * 队列满时按overflow-policy处理：block等待空位（最多block-timeout-ms），drop直接丢弃，
+ * sample在队列深度超过sample-threshold后只按sample-rate抽样接收，队列满时丢弃
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StatisticsIngestPipeline {
+
+    static final String INSERT_PREFIX = "INSERT INTO download_statistics (route_id, client_ip, file_path, "
+            + "download_size, download_duration, bandwidth, response_time, success, user_agent, created_at) VALUES ";
+    static final String ROW_PLACEHOLDERS = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final int COLUMNS = 10;
+    // 每条INSERT的行数，使绑定参数数量远低于SQLite的上限
+    private static final int ROWS_PER_STATEMENT = 500;
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SAMPLE
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrencyLimiter sqliteLimiter;
+    private final RoutePerformanceWindow routePerformanceWindow;
+
+    private final Queue<DownloadStatistics> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private volatile Thread writer;
+    private volatile boolean stopping;
+
+    @Value("${app.statistics.ingest.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${app.statistics.ingest.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.statistics.ingest.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+
+    @Value("${app.statistics.ingest.overflow-policy:block}")
+    private String overflowPolicy;
+
+    @Value("${app.statistics.ingest.block-timeout-ms:1000}")
+    private long blockTimeoutMs;
+
+    @Value("${app.statistics.ingest.bulk-block-timeout-ms:30000}")
+    private long bulkBlockTimeoutMs;
+
+    @Value("${app.statistics.ingest.sample-threshold:0.8}")
+    private double sampleThreshold;
+
+    @Value("${app.statistics.ingest.sample-rate:0.1}")
+    private double sampleRate;
+
+    private OverflowPolicy policy = OverflowPolicy.BLOCK;
+
+    @PostConstruct
+    public void start() {
+        policy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase(Locale.ROOT));
+        Thread thread = new Thread(this::runWriter, "statistics-writer");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+        log.info("下载统计写入队列已启动: 容量={}, 批量={}, 刷新间隔={}ms, 溢出策略={}",
+                queueCapacity, batchSize, flushIntervalMs, policy);
+    }
+
+    /**
+     * 停止接收新记录，写线程写完队列中剩余的记录后退出
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (depth.get() > 0) {
+            log.warn("关闭时仍有{}条下载统计未写入", depth.get());
+        }
+    }
+
+    /**
+     * 提交一条下载统计，按溢出策略未被接收时返回false
+     */
+    public boolean submit(DownloadStatistics statistics) {
+        if (stopping) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (policy == OverflowPolicy.SAMPLE && depth.get() >= queueCapacity * sampleThreshold
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.incrementAndGet();
+            return false;
+        }
+        if (!tryReserve()) {
+            if (policy != OverflowPolicy.BLOCK || !awaitReserve(blockTimeoutMs)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        enqueue(statistics);
+        return true;
+    }
+
+    /**
+     * 批量导入时提交一条下载统计：不按溢出策略丢弃或抽样，队列满时等待写线程腾出空位（最多bulk-block-timeout-ms），
+     * 使导入速度跟随写入速度，内存占用不随导入量增长
+     */
+    public boolean submitAndWait(DownloadStatistics statistics) {
+        if (stopping || (!tryReserve() && !awaitReserve(bulkBlockTimeoutMs))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        enqueue(statistics);
+        return true;
+    }
+
+    private void enqueue(DownloadStatistics statistics) {
+        // 先计数再入队，保证enqueuedCount()不小于已入队的记录数
+        accepted.incrementAndGet();
+        queue.offer(statistics);
+        if (depth.get() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public int depth() {
+        return depth.get();
+    }
+
+    /**
+     * 已接收的记录数。在submit返回后读取，得到的值作为写入进度的序号：
+     * 队列按先进先出写入，processedCount()达到该值时，这条记录及之前入队的记录都已处理完
+     */
+    public long enqueuedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * 写线程已处理（写入成功或重试后放弃）的记录数
+     */
+    public long processedCount() {
+        return processed.get();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("overflowPolicy", policy.name().toLowerCase(Locale.ROOT));
+        stats.put("queueDepth", depth.get());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("accepted", accepted.get());
+        stats.put("dropped", dropped.get());
+        stats.put("sampledOut", sampledOut.get());
+        stats.put("blocked", blocked.get());
+        stats.put("written", written.get());
+        stats.put("failed", failed.get());
+        stats.put("batches", batches.get());
+        stats.put("flushLatency", flushLatency.getStatistics());
+        return stats;
+    }
+
+    private boolean tryReserve() {
+        int current;
+        do {
+            current = depth.get();
+            if (current >= queueCapacity) {
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * 队列满时等待写线程腾出空位
+     */
+    private boolean awaitReserve(long timeoutMs) {
+        blocked.incrementAndGet();
+        LockSupport.unpark(writer);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (System.nanoTime() < deadline && !stopping) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            if (tryReserve()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runWriter() {
+        long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        while (!stopping || depth.get() > 0) {
+            if (depth.get() < batchSize && !stopping) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+            try {
+                flush();
+            } catch (Throwable e) {
+                log.error("下载统计写线程异常", e);
+            }
+        }
+    }
+
+    /**
+     * 取出一批记录写入数据库
+     */
+    void flush() {
+        List<DownloadStatistics> batch = new ArrayList<>(Math.min(batchSize, Math.max(depth.get(), 1)));
+        DownloadStatistics statistics;
+        while (batch.size() < batchSize && (statistics = queue.poll()) != null) {
+            batch.add(statistics);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        depth.addAndGet(-batch.size());
+
+        long startedAt = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                insertBatch(batch);
+                break;
+            } catch (Exception e) {
+                if (attempt >= MAX_FLUSH_ATTEMPTS) {
+                    failed.addAndGet(batch.size());
+                    processed.addAndGet(batch.size());
+                    log.error("写入{}条下载统计失败，已丢弃", batch.size(), e);
+                    return;
+                }
+                log.warn("写入下载统计失败，第{}次重试: {}", attempt, e.getMessage());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200L * attempt));
+            }
+        }
+        flushLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        written.addAndGet(batch.size());
+        batches.incrementAndGet();
+
+        for (DownloadStatistics saved : batch) {
+            routePerformanceWindow.record(saved.getId(), saved.getRouteId(), saved.getCreatedAt(),
+                    saved.getBandwidth(), saved.getResponseTime(), Boolean.TRUE.equals(saved.getSuccess()));
+        }
+        processed.addAndGet(batch.size());
+    }
+
+    /**
+     * 在一个事务中用多行INSERT写入一批记录，并回填各行ID
+     */
+    void insertBatch(List<DownloadStatistics> batch) throws Exception {
+        sqliteLimiter.run(() -> transactionTemplate.executeWithoutResult(status -> insertRows(jdbcTemplate, batch)));
+    }
+
+    /**
+     * 用多行INSERT写入记录并从生成键回填各行ID，需在事务中调用
+     */
+    static void insertRows(JdbcTemplate jdbcTemplate, List<DownloadStatistics> batch) {
+        for (int from = 0; from < batch.size(); from += ROWS_PER_STATEMENT) {
+            List<DownloadStatistics> rows = batch.subList(from, Math.min(from + ROWS_PER_STATEMENT, batch.size()));
+            String sql = INSERT_PREFIX + String.join(", ", Collections.nCopies(rows.size(), ROW_PLACEHOLDERS));
+            KeyHolder keys = new GeneratedKeyHolder();
+            jdbcTemplate.update(connection -> {
+                PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                int index = 1;
+                for (DownloadStatistics row : rows) {
+                    bindRow(statement, index, row);
+                    index += COLUMNS;
+                }
+                return statement;
+            }, keys);
+            assignIds(rows, keys.getKeyList());
+        }
+    }
+
+    /**
+     * MySQL驱动为多行INSERT的每一行返回生成键；SQLite驱动只返回语句最后一行的rowid，
+     * 一条语句在写事务内插入的行ID连续，由最后一行推出其余各行
+     */
+    static void assignIds(List<DownloadStatistics> rows, List<Map<String, Object>> keys) {
+        if (keys.size() == rows.size()) {
+            for (int i = 0; i < rows.size(); i++) {
+                rows.get(i).setId(generatedId(keys.get(i)));
+            }
+        } else if (keys.size() == 1) {
+            long id = generatedId(keys.get(0)) - rows.size() + 1;
+            for (DownloadStatistics row : rows) {
+                row.setId(id++);
+            }
+        } else {
+            throw new IllegalStateException("插入" + rows.size() + "行，数据库返回了" + keys.size() + "个生成键");
+        }
+    }
+
+    private static long generatedId(Map<String, Object> key) {
+        if (key.size() != 1 || !(key.values().iterator().next() instanceof Number id)) {
+            throw new IllegalStateException("无法识别的生成键: " + key);
+        }
+        return id.longValue();
+    }
+
+    /**
+     * 从index开始绑定一行的COLUMNS个参数，列顺序与INSERT_PREFIX一致
+     */
+    static void bindRow(PreparedStatement statement, int index, DownloadStatistics row) throws SQLException {
+        statement.setLong(index, row.getRouteId());
+        statement.setString(index + 1, row.getClientIp());
+        statement.setString(index + 2, row.getFilePath());
+        statement.setLong(index + 3, row.getDownloadSize());
+        statement.setLong(index + 4, row.getDownloadDuration());
+        statement.setDouble(index + 5, row.getBandwidth());
+        statement.setLong(index + 6, row.getResponseTime());
+        statement.setBoolean(index + 7, row.getSuccess());
+        statement.setString(index + 8, row.getUserAgent());
+        statement.setTimestamp(index + 9, Timestamp.valueOf(row.getCreatedAt()));
+    }
+}
@@ -0,0 +1,274 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 下载统计的过期清理
+ * 按主键顺序分块删除超过保留天数的原始统计：每块先在写事务外按ID读出一块过期记录，再用一个短事务按ID范围删除，
+ * 块之间暂停，使写入队列和聚合任务可以在块之间拿到SQLite写锁。
+ * 只删除已经合并到聚合表的记录（ID不超过聚合断点），小时聚合不受影响，性能排名和趋势仍可覆盖被清理的时间段。
+ * 开启归档时，每块记录先以gzip NDJSON追加到归档文件并落盘后再删除，格式与 POST /api/statistics/ingest 相同，可直接重新导入
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StatisticsRetentionService {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final DateTimeFormatter ARCHIVE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String SELECT_COLUMNS = "id, route_id, client_ip, file_path, download_size, download_duration, "
+            + "response_time, success, user_agent, created_at";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrencyLimiter sqliteLimiter;
+    private final RouteStatisticsRollupService routeStatisticsRollupService;
+
+    private final ReentrantLock runLock = new ReentrantLock();
+    private volatile Map<String, Object> lastRun = Map.of();
+    private volatile boolean stopping;
+
+    // 0表示不清理
+    @Value("${app.statistics.retention-days:30}")
+    private int retentionDays;
+
+    @Value("${app.statistics.retention.chunk-size:5000}")
+    private int chunkSize;
+
+    @Value("${app.statistics.retention.chunk-pause-ms:200}")
+    private long chunkPauseMs;
+
+    @Value("${app.statistics.retention.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${app.statistics.retention.archive.directory:./data/archive}")
+    private String archiveDirectory;
+
+    /**
+     * 清理过期统计，返回本次清理的结果
+     *
+     * @throws IllegalStateException 已有清理在进行
+     */
+    public Map<String, Object> cleanup() throws Exception {
+        if (!runLock.tryLock()) {
+            throw new IllegalStateException("统计数据清理正在进行");
+        }
+        try {
+            long startedAt = System.currentTimeMillis();
+            Map<String, Object> run = new LinkedHashMap<>();
+            if (retentionDays <= 0) {
+                run.put("skipped", "未配置保留天数");
+                lastRun = run;
+                return run;
+            }
+            LocalDateTime cutoff = LocalDateTime.now().minusDays(retentionDays);
+            long compactedThrough = routeStatisticsRollupService.checkpoint();
+            run.put("cutoff", cutoff.toString());
+            run.put("compactedThrough", compactedThrough);
+
+            long afterId = 0;
+            long deleted = 0;
+            long chunks = 0;
+            Archive archive = null;
+            try {
+                while (!stopping) {
+                    Chunk chunk = new Chunk();
+                    if (archiveEnabled) {
+                        if (archive == null) {
+                            archive = openArchive(run);
+                        }
+                        Archive target = archive;
+                        jdbcTemplate.query("SELECT " + SELECT_COLUMNS + " FROM download_statistics "
+                                        + "WHERE id > ? AND id <= ? AND created_at < ? ORDER BY id LIMIT ?",
+                                rs -> {
+                                    chunk.add(rs.getLong(1));
+                                    target.write(rs);
+                                },
+                                afterId, compactedThrough, Timestamp.valueOf(cutoff), chunkSize);
+                        // 归档内容落盘后再删除，删除前崩溃时下次清理会重复归档这一块，不会丢失记录
+                        archive.sync();
+                    } else {
+                        jdbcTemplate.query("SELECT id FROM download_statistics "
+                                        + "WHERE id > ? AND id <= ? AND created_at < ? ORDER BY id LIMIT ?",
+                                rs -> {
+                                    chunk.add(rs.getLong(1));
+                                },
+                                afterId, compactedThrough, Timestamp.valueOf(cutoff), chunkSize);
+                    }
+                    if (chunk.rows == 0) {
+                        break;
+                    }
+                    long from = afterId;
+                    deleted += sqliteLimiter.call(() -> transactionTemplate.execute(status -> jdbcTemplate.update(
+                            "DELETE FROM download_statistics WHERE id > ? AND id <= ? AND created_at < ?",
+                            from, chunk.lastId, Timestamp.valueOf(cutoff))));
+                    afterId = chunk.lastId;
+                    chunks++;
+                    if (chunk.rows < chunkSize) {
+                        break;
+                    }
+                    pause();
+                }
+            } finally {
+                if (archive != null) {
+                    archive.close();
+                    // 没有过期记录时不保留空的归档文件
+                    if (archive.rows == 0) {
+                        Files.deleteIfExists(archive.file);
+                        run.remove("archive");
+                    }
+                }
+            }
+
+            // 超过保留天数但尚未聚合的记录留到聚合之后再清理
+            Long pending = jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM download_statistics WHERE id > ? AND created_at < ?",
+                    Long.class, compactedThrough, Timestamp.valueOf(cutoff));
+            run.put("deleted", deleted);
+            run.put("chunks", chunks);
+            run.put("pendingCompaction", pending != null ? pending : 0L);
+            run.put("interrupted", stopping);
+            run.put("durationMs", System.currentTimeMillis() - startedAt);
+            lastRun = run;
+            log.info("清理了{}之前的统计数据: 删除={}, 分块={}, 待聚合={}", cutoff, deleted, chunks, run.get("pendingCompaction"));
+            return run;
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopping = true;
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", runLock.isLocked());
+        stats.put("retentionDays", retentionDays);
+        stats.put("chunkSize", chunkSize);
+        stats.put("archiveEnabled", archiveEnabled);
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+
+    private void pause() {
+        if (chunkPauseMs > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(chunkPauseMs));
+        }
+    }
+
+    private Archive openArchive(Map<String, Object> run) throws IOException {
+        Path directory = Paths.get(archiveDirectory);
+        Files.createDirectories(directory);
+        String name = "download_statistics-" + LocalDateTime.now().format(ARCHIVE_NAME_FORMAT);
+        for (int attempt = 0; ; attempt++) {
+            Path file = directory.resolve(attempt == 0 ? name + ".ndjson.gz" : name + "-" + attempt + ".ndjson.gz");
+            try {
+                Archive archive = new Archive(file);
+                run.put("archive", file.toString());
+                return archive;
+            } catch (FileAlreadyExistsException e) {
+                // 同一秒内的多次清理不覆盖已有归档
+            }
+        }
+    }
+
+    /**
+     * 当前块读到的过期记录数和最大ID
+     */
+    private static final class Chunk {
+        private long rows;
+        private long lastId;
+
+        private void add(long id) {
+            rows++;
+            lastId = id;
+        }
+    }
+
+    /**
+     * gzip NDJSON归档文件，每块结束时同步刷新压缩流并落盘，进程中途退出时已落盘的部分仍可解压
+     */
+    private static final class Archive implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final OutputStream gzip;
+        private final JsonGenerator generator;
+        private long rows;
+
+        private Archive(Path file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 65536, true);
+            generator = JSON_FACTORY.createGenerator(gzip);
+            generator.setRootValueSeparator(null);
+        }
+
+        private void write(ResultSet rs) throws SQLException {
+            try {
+                generator.writeStartObject();
+                generator.writeNumberField("id", rs.getLong(1));
+                generator.writeNumberField("routeId", rs.getLong(2));
+                generator.writeStringField("clientIp", rs.getString(3));
+                generator.writeStringField("filePath", rs.getString(4));
+                generator.writeNumberField("downloadSize", rs.getLong(5));
+                generator.writeNumberField("downloadDuration", rs.getLong(6));
+                generator.writeNumberField("responseTime", rs.getLong(7));
+                generator.writeBooleanField("success", rs.getBoolean(8));
+                generator.writeStringField("userAgent", rs.getString(9));
+                Timestamp createdAt = rs.getTimestamp(10);
+                if (createdAt != null) {
+                    generator.writeNumberField("timestamp", createdAt.getTime());
+                }
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                rows++;
+            } catch (IOException e) {
+                throw new IllegalStateException("写入归档文件失败: " + e.getMessage(), e);
+            }
+        }
+
+        private void sync() throws IOException {
+            generator.flush();
+            gzip.flush();
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+            channel.close();
+        }
+    }
+}
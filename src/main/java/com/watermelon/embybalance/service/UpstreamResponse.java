@@ -0,0 +1,22 @@
+package com.watermelon.embybalance.service;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * 完整读取的Emby上游响应（未改写），用于缓存和共享
+ */
+@Getter
+@RequiredArgsConstructor
+public class UpstreamResponse {
+
+    private final int status;
+    private final HttpHeaders headers;
+    private final byte[] body;
+    private final long fetchedAt = System.currentTimeMillis();
+
+    public boolean isSuccessful() {
+        return status >= 200 && status < 300;
+    }
+}
@@ -0,0 +1,81 @@
+package com.watermelon.embybalance.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbyBackendPoolTest {
+
+    private EmbyBackendPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new EmbyBackendPool(List.of("http://127.0.0.1:18096/", "http://127.0.0.1:18097"));
+        ReflectionTestUtils.setField(pool, "ejectionThreshold", 3);
+        ReflectionTestUtils.setField(pool, "baseEjectionMs", 200L);
+        ReflectionTestUtils.setField(pool, "maxEjectionMs", 1000L);
+        ReflectionTestUtils.setField(pool, "slowStartMs", 60000L);
+    }
+
+    @Test
+    void acquire_prefers_least_outstanding_backend() {
+        EmbyBackend first = pool.acquire();
+        EmbyBackend second = pool.acquire();
+        assertNotSame(first, second);
+        assertFalse(first.getUrl().endsWith("/"));
+
+        pool.release(first, 10, true);
+        assertSame(first, pool.acquire());
+    }
+
+    @Test
+    void consecutive_failures_eject_backend_until_expiry() throws Exception {
+        EmbyBackend failing = pool.getBackends().get(0);
+        EmbyBackend healthy = pool.getBackends().get(1);
+        for (int i = 0; i < 3; i++) {
+            failing.onAcquire();
+            pool.release(failing, 10, false);
+        }
+        assertTrue(failing.isEjected(System.currentTimeMillis()));
+
+        // 摘除期间即使另一实例更忙也不选择被摘除的实例
+        healthy.onAcquire();
+        healthy.onAcquire();
+        assertSame(healthy, pool.acquire());
+
+        // 摘除结束后处于慢启动，流量按系数逐步恢复
+        Thread.sleep(250);
+        long now = System.currentTimeMillis();
+        assertFalse(failing.isEjected(now));
+        assertTrue(failing.weightFactor(now, 60000) < 0.2);
+        assertSame(healthy, pool.acquire());
+    }
+
+    @Test
+    void abandoned_requests_do_not_count_as_failures() {
+        EmbyBackend backend = pool.getBackends().get(0);
+        // 本地限流拒绝或被取消的请求只归还进行中计数
+        for (int i = 0; i < 5; i++) {
+            backend.onAcquire();
+            pool.release(backend);
+        }
+        assertEquals(0, backend.outstanding());
+        assertFalse(backend.isEjected(System.currentTimeMillis()));
+        assertEquals(0L, backend.getStatistics(System.currentTimeMillis(), 60000).get("failures"));
+    }
+
+    @Test
+    void all_backends_ejected_falls_back_to_any_backend() {
+        for (EmbyBackend backend : pool.getBackends()) {
+            for (int i = 0; i < 3; i++) {
+                backend.onAcquire();
+                pool.release(backend, 10, false);
+            }
+        }
+        assertNotNull(pool.acquire());
+    }
+}
@@ -0,0 +1,167 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.sun.net.httpserver.HttpServer;
+import com.watermelon.embybalance.entity.MediaItem;
+import com.watermelon.embybalance.repository.MediaItemRepository;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 媒体库爬虫测试，使用本地桩Emby服务器提供分页的Items接口
+ * 数据源指向临时SQLite文件，清表不影响data/emby_balance.db
+ */
+@SpringBootTest(properties = {
+        "spring.profiles.active=test",
+        "app.emby.crawler.page-size=2",
+        "app.emby.crawler.parallelism=2"
+})
+class EmbyLibraryCrawlerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Map<String, ObjectNode> LIBRARY = new ConcurrentHashMap<>();
+    private static final List<Map<String, String>> REQUESTS = new CopyOnWriteArrayList<>();
+    private static HttpServer embyStub;
+
+    @Autowired
+    private EmbyLibraryCrawler embyLibraryCrawler;
+
+    @Autowired
+    private MediaItemRepository mediaItemRepository;
+
+    @Autowired
+    private SyncCheckpointRepository syncCheckpointRepository;
+
+    @Autowired
+    private MediaPathIndex mediaPathIndex;
+
+    @Autowired
+    private Cache<String, MediaSourceInfo> mediaPathIndexCache;
+
+    @DynamicPropertySource
+    static void embyServer(DynamicPropertyRegistry registry) throws IOException {
+        embyStub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        embyStub.createContext("/emby/Items", exchange -> {
+            Map<String, String> query = UriComponentsBuilder.fromUri(exchange.getRequestURI()).build()
+                    .getQueryParams().toSingleValueMap();
+            REQUESTS.add(query);
+            byte[] body = MAPPER.writeValueAsBytes(page(query));
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        embyStub.start();
+        registry.add("emby.server.url", () -> "http://127.0.0.1:" + embyStub.getAddress().getPort());
+
+        Path database = Files.createTempFile("emby-library-crawler", ".db");
+        database.toFile().deleteOnExit();
+        registry.add("spring.datasource.url", () -> "jdbc:sqlite:" + database);
+    }
+
+    @AfterAll
+    static void stopEmbyStub() {
+        embyStub.stop(0);
+    }
+
+    /**
+     * 按StartIndex/Limit分页；带MinDateLastSaved时只返回之后保存过的媒体项
+     */
+    private static ObjectNode page(Map<String, String> query) {
+        String since = query.get("MinDateLastSaved");
+        List<ObjectNode> matched = LIBRARY.values().stream()
+                .filter(item -> since == null || item.path("DateLastSaved").asText().compareTo(since) >= 0)
+                .sorted((a, b) -> a.path("Id").asText().compareTo(b.path("Id").asText()))
+                .toList();
+        int start = Integer.parseInt(query.get("StartIndex"));
+        int limit = Integer.parseInt(query.get("Limit"));
+        ObjectNode page = MAPPER.createObjectNode();
+        ArrayNode items = page.putArray("Items");
+        matched.stream().skip(start).limit(limit).forEach(items::add);
+        page.put("TotalRecordCount", matched.size());
+        return page;
+    }
+
+    private static void putItem(String id, String dateModified, String... paths) {
+        ObjectNode item = MAPPER.createObjectNode();
+        item.put("Id", id);
+        item.put("DateModified", dateModified);
+        item.put("DateLastSaved", dateModified);
+        ArrayNode sources = item.putArray("MediaSources");
+        for (int i = 0; i < paths.length; i++) {
+            sources.addObject()
+                    .put("Id", id + "-" + i)
+                    .put("Path", paths[i])
+                    .put("Size", 1000L * (i + 1))
+                    .put("Bitrate", 4000000);
+        }
+        LIBRARY.put(id, item);
+    }
+
+    @BeforeEach
+    void resetLibrary() {
+        LIBRARY.clear();
+        REQUESTS.clear();
+        mediaItemRepository.deleteAll();
+        syncCheckpointRepository.deleteAll();
+        mediaPathIndexCache.invalidateAll();
+    }
+
+    @Test
+    void crawl_full_then_incremental() throws Exception {
+        putItem("1", "2024-01-01T00:00:00.0000000Z", "/movies/one.mkv");
+        putItem("2", "2024-01-01T00:00:00.0000000Z", "/movies/two.mkv", "/movies/two-4k.mkv");
+        putItem("3", "2024-01-01T00:00:00.0000000Z", "/movies/three.mkv");
+        putItem("4", "2024-01-01T00:00:00.0000000Z", "/movies/four.mkv");
+        putItem("5", "2024-01-01T00:00:00.0000000Z", "/movies/five.mkv");
+
+        embyLibraryCrawler.crawl();
+
+        // 5个媒体项分3页拉取，全量同步不带MinDateLastSaved
+        assertEquals(3, REQUESTS.size());
+        assertTrue(REQUESTS.stream().noneMatch(query -> query.containsKey("MinDateLastSaved")));
+        assertEquals(6, mediaItemRepository.count());
+        MediaItem stored = mediaItemRepository.findFirstByItemIdAndMediaSourceId("2", "2-1").orElseThrow();
+        assertEquals("/movies/two-4k.mkv", stored.getPath());
+        assertEquals(2000L, stored.getSize());
+        assertEquals(4000000L, stored.getBitrate());
+
+        // 内存索引清空后仍能从本地表查到
+        mediaPathIndexCache.invalidateAll();
+        assertEquals("/movies/two.mkv", mediaPathIndex.find("2", null).orElseThrow().getPath());
+
+        // 修改一个媒体项后增量同步
+        REQUESTS.clear();
+        putItem("3", "2999-01-01T00:00:00.0000000Z", "/movies/three-remux.mkv");
+        embyLibraryCrawler.crawl();
+
+        assertFalse(REQUESTS.isEmpty());
+        assertTrue(REQUESTS.stream().allMatch(query -> query.containsKey("MinDateLastSaved")));
+        assertEquals(6, mediaItemRepository.count());
+        assertEquals("/movies/three-remux.mkv", mediaPathIndex.find("3", "3-0").orElseThrow().getPath());
+    }
+}
@@ -6,7 +6,7 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.util.HashMap;
@@ -45,21 +45,18 @@ public class EmbyProxyServiceIntegrationTest {
         String itemId = "311994";
         
         // 准备请求参数
-        Map<String, Object> requestBody = new HashMap<>();
+        PlaybackInfoRequestBody requestBody = PlaybackInfoRequestBody.EMPTY;
         Map<String, String> queryParams = new HashMap<>();
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/json");
         
         // 执行请求
-        ResponseEntity<Object> response = embyProxyService.processPlaybackInfoRequest(
-                itemId, requestBody, queryParams, headers);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers, response);
         
         // 基本验证
-        assertNotNull(response, "响应不应为空");
-        assertNotNull(response.getBody(), "响应体不应为空");
-        
-        // 将响应体转换为JsonNode以便检查
-        String responseJson = objectMapper.writeValueAsString(response.getBody());
+        String responseJson = response.getContentAsString();
+        assertFalse(responseJson.isEmpty(), "响应体不应为空");
         System.out.println(responseJson);
         JsonNode rootNode = objectMapper.readTree(responseJson);
         
@@ -91,16 +88,16 @@ public class EmbyProxyServiceIntegrationTest {
         String invalidItemId = "invalid-id-that-does-not-exist";
         
         // 准备请求参数
-        Map<String, Object> requestBody = new HashMap<>();
+        PlaybackInfoRequestBody requestBody = PlaybackInfoRequestBody.EMPTY;
         Map<String, String> queryParams = new HashMap<>();
         Map<String, String> headers = new HashMap<>();
         
         // 执行请求
-        ResponseEntity<Object> response = embyProxyService.processPlaybackInfoRequest(
-                invalidItemId, requestBody, queryParams, headers);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest(invalidItemId, requestBody, queryParams, headers, response);
         
         // 验证响应
-        assertNotNull(response, "即使是错误情况，响应也不应为空");
+        assertTrue(response.getStatus() > 0, "即使是错误情况，也应返回状态码");
         // 注意：具体的状态码取决于Emby服务器对无效ID的响应方式
         // 可能是404 Not Found或其他错误码
     }
@@ -2,26 +2,36 @@ package com.watermelon.embybalance.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.watermelon.embybalance.entity.DownloadRoute;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
@@ -32,119 +42,246 @@ class EmbyProxyServiceTest {
     private RestTemplate restTemplate;
 
     @MockBean
+    private DownloadRouteService downloadRouteService;
+
+    @Autowired
     private ObjectMapper objectMapper;
 
     @Autowired
     private EmbyProxyService embyProxyService;
-    
-    @Value("${emby.server.url}")
-    private String embyServerUrl;
-    
-    @Value("${emby.api.key}")
-    private String embyApiKey;
-    
-    @Value("${path.modification.prefix}")
-    private String pathModificationPrefix;
+
+    @Autowired
+    private PlaybackInfoCache playbackInfoCache;
+
+    @Autowired
+    private EmbyBackendPool embyBackendPool;
+
+    @BeforeEach
+    void clearCache() {
+        playbackInfoCache.invalidateAll();
+    }
+
+    /**
+     * 模拟Emby服务器返回指定的响应体，并让响应提取器在其上执行
+     */
+    private void mockEmbyResponse(String responseBody) {
+        when(restTemplate.execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class)))
+                .thenAnswer(invocation -> {
+                    ResponseExtractor<?> extractor = invocation.getArgument(3);
+                    return extractor.extractData(new MockClientHttpResponse(
+                            responseBody.getBytes(StandardCharsets.UTF_8), HttpStatus.OK));
+                });
+    }
+
+    private long backendCount(String key) {
+        return embyBackendPool.getStatistics().values().stream()
+                .mapToLong(stats -> ((Number) stats.get(key)).longValue()).sum();
+    }
+
+    private DownloadRoute testRoute() {
+        DownloadRoute route = new DownloadRoute();
+        route.setId(1L);
+        route.setDomain("cdn.example.com");
+        route.setProtocol(DownloadRoute.Protocol.HTTP);
+        route.setPort(8080);
+        route.setWeight(100);
+        return route;
+    }
 
     @Test
     void processPlaybackInfoRequest_success() throws Exception {
         // 准备测试数据
         String itemId = "123456";
-        Map<String, Object> requestBody = new HashMap<>();
+        PlaybackInfoRequestBody requestBody = PlaybackInfoRequestBody.EMPTY;
         Map<String, String> queryParams = new HashMap<>();
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/json");
 
-        // 模拟Emby服务器响应
-        String responseBody = "{\"MediaSources\":[{\"Path\":\"/movies/test.mp4\"}]}";
-        ResponseEntity<String> mockResponse = new ResponseEntity<>(responseBody, HttpStatus.OK);
-
-        // 模拟修改后的响应
-        String modifiedResponseBody = "{\"MediaSources\":[{\"Path\":\"/modified/movies/test.mp4\"}]}";
-        JsonNode mockRootNode = Mockito.mock(JsonNode.class);
-        ArrayNode mockArrayNode = Mockito.mock(ArrayNode.class);
-        ObjectNode mockObjectNode = Mockito.mock(ObjectNode.class);
-        JsonNode mockPathNode = Mockito.mock(JsonNode.class);
-
-        // 配置Mock行为
-        when(restTemplate.exchange(any(), eq(HttpMethod.POST), any(), eq(String.class)))
-                .thenReturn(mockResponse);
-        
-        when(objectMapper.readTree(responseBody)).thenReturn(mockRootNode);
-        when(mockRootNode.has("MediaSources")).thenReturn(true);
-        when(mockRootNode.get("MediaSources")).thenReturn(mockArrayNode);
-        when(mockArrayNode.isArray()).thenReturn(true);
-        when(mockArrayNode.size()).thenReturn(1);
-        when(mockArrayNode.get(0)).thenReturn(mockObjectNode);
-        when(mockObjectNode.has("Path")).thenReturn(true);
-        when(mockObjectNode.get("Path")).thenReturn(mockPathNode);
-        when(mockPathNode.asText()).thenReturn("/movies/test.mp4");
-        when(objectMapper.writeValueAsString(mockRootNode)).thenReturn(modifiedResponseBody);
-        when(objectMapper.readValue(modifiedResponseBody, Object.class)).thenReturn(new HashMap<String, Object>());
+        // 模拟Emby服务器响应和线路选择
+        mockEmbyResponse("{\"MediaSources\":[{\"Protocol\":\"File\",\"Path\":\"/movies/test.mp4\","
+                + "\"MediaStreams\":[{\"Path\":\"/movies/test.srt\"}]}],\"PlaySessionId\":\"abc\"}");
+        DownloadRoute route = testRoute();
+        when(downloadRouteService.selectRoute(any(), any(), any())).thenReturn(Optional.of(route));
 
         // 执行测试
-        ResponseEntity<Object> result = embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers, response);
 
         // 验证结果
-        assertNotNull(result);
-        assertEquals(HttpStatus.OK, result.getStatusCode());
-        
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        JsonNode rootNode = objectMapper.readTree(response.getContentAsByteArray());
+        JsonNode mediaSource = rootNode.get("MediaSources").get(0);
+        assertEquals(route.buildDownloadUrl("/movies/test.mp4"), mediaSource.get("Path").asText());
+        assertEquals("Http", mediaSource.get("Protocol").asText());
+        assertTrue(mediaSource.get("IsRemote").asBoolean());
+        assertTrue(mediaSource.get("SupportsDirectPlay").asBoolean());
+        assertFalse(mediaSource.get("SupportsTranscoding").asBoolean());
+
+        // 嵌套的MediaStreams及其他字段保持不变
+        assertEquals("/movies/test.srt", mediaSource.get("MediaStreams").get(0).get("Path").asText());
+        assertEquals("abc", rootNode.get("PlaySessionId").asText());
+
         // 验证RestTemplate被正确调用
-        Mockito.verify(restTemplate).exchange(any(), eq(HttpMethod.POST), any(), eq(String.class));
-        
-        // 验证Path修改逻辑被调用
-        Mockito.verify(objectMapper).readTree(responseBody);
-        Mockito.verify(mockObjectNode).put(eq("Path"), eq(pathModificationPrefix + "/movies/test.mp4"));
-        Mockito.verify(objectMapper).writeValueAsString(mockRootNode);
+        Mockito.verify(restTemplate).execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class));
     }
 
     @Test
-    void processPlaybackInfoRequest_no_response() throws Exception {
-        // 准备测试数据
-        String itemId = "123456";
-        Map<String, Object> requestBody = new HashMap<>();
-        Map<String, String> queryParams = new HashMap<>();
-        Map<String, String> headers = new HashMap<>();
+    void processPlaybackInfoRequest_no_route() throws Exception {
+        // 没有可用线路时保持原始路径
+        mockEmbyResponse("{\"MediaSources\":[{\"Path\":\"/movies/test.mp4\"}]}");
+        when(downloadRouteService.selectRoute(any(), any(), any())).thenReturn(Optional.empty());
 
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), response);
+
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        JsonNode rootNode = objectMapper.readTree(response.getContentAsByteArray());
+        assertEquals("/movies/test.mp4", rootNode.get("MediaSources").get(0).get("Path").asText());
+    }
+
+    @Test
+    void processPlaybackInfoRequest_no_response() throws Exception {
         // 模拟Emby服务器返回空响应
-        ResponseEntity<String> mockResponse = new ResponseEntity<>("", HttpStatus.OK);
-        when(restTemplate.exchange(any(), eq(HttpMethod.POST), any(), eq(String.class)))
-                .thenReturn(mockResponse);
-        when(objectMapper.readValue("", Object.class)).thenReturn(new HashMap<String, Object>());
+        mockEmbyResponse("");
 
         // 执行测试
-        ResponseEntity<Object> result = embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), response);
 
-        // 验证结果
-        assertNotNull(result);
-        assertEquals(HttpStatus.OK, result.getStatusCode());
-        
-        // 验证没有进行Path修改
-        Mockito.verify(objectMapper, Mockito.never()).readTree(anyString());
+        // 验证结果：状态码透传，且没有进行Path修改
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+        Mockito.verify(downloadRouteService, Mockito.never()).selectRoute(any(), any(), any());
     }
 
     @Test
     void processPlaybackInfoRequest_error() throws Exception {
-        // 准备测试数据
-        String itemId = "123456";
-        Map<String, Object> requestBody = new HashMap<>();
-        Map<String, String> queryParams = new HashMap<>();
-        Map<String, String> headers = new HashMap<>();
-
         // 模拟异常
-        when(restTemplate.exchange(any(), eq(HttpMethod.POST), any(), eq(String.class)))
+        when(restTemplate.execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class)))
                 .thenThrow(new RuntimeException("测试异常"));
 
         // 执行测试
-        ResponseEntity<Object> result = embyProxyService.processPlaybackInfoRequest(itemId, requestBody, queryParams, headers);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), response);
 
         // 验证结果
-        assertNotNull(result);
-        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, result.getStatusCode());
-        
-        @SuppressWarnings("unchecked")
-        Map<String, String> errorBody = (Map<String, String>) result.getBody();
-        assertNotNull(errorBody);
-        assertEquals("测试异常", errorBody.get("error"));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR.value(), response.getStatus());
+        JsonNode errorBody = objectMapper.readTree(response.getContentAsByteArray());
+        assertEquals("测试异常", errorBody.get("error").asText());
+    }
+
+    @Test
+    void processPlaybackInfoRequest_cache_hit_reselects_route() throws Exception {
+        mockEmbyResponse("{\"MediaSources\":[{\"Path\":\"/movies/test.mp4\"}]}");
+        DownloadRoute first = testRoute();
+        DownloadRoute second = testRoute();
+        second.setId(2L);
+        second.setDomain("cdn2.example.com");
+        when(downloadRouteService.selectRoute(any(), any(), any())).thenReturn(Optional.of(first), Optional.of(second));
+
+        MockHttpServletResponse firstResponse = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), firstResponse);
+        MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), secondResponse);
+
+        // 第二次命中缓存，不再请求Emby，但线路重新选择
+        Mockito.verify(restTemplate, Mockito.times(1)).execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class));
+        assertEquals(first.buildDownloadUrl("/movies/test.mp4"),
+                objectMapper.readTree(firstResponse.getContentAsByteArray()).get("MediaSources").get(0).get("Path").asText());
+        assertEquals(second.buildDownloadUrl("/movies/test.mp4"),
+                objectMapper.readTree(secondResponse.getContentAsByteArray()).get("MediaSources").get(0).get("Path").asText());
+    }
+
+    @Test
+    void processPlaybackInfoRequest_live_stream_bypasses_cache() throws Exception {
+        mockEmbyResponse("{\"MediaSources\":[{\"Path\":\"/live/channel\"}]}");
+        when(downloadRouteService.selectRoute(any(), any(), any())).thenReturn(Optional.empty());
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("LiveStreamId", "live-1");
+
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, queryParams, new HashMap<>(), new MockHttpServletResponse());
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.EMPTY, queryParams, new HashMap<>(), new MockHttpServletResponse());
+
+        Mockito.verify(restTemplate, Mockito.times(2)).execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class));
+    }
+
+    @Test
+    void processPlaybackInfoRequest_forwards_body_bytes_unchanged() throws Exception {
+        // 非规范格式的JSON（空白、字段顺序、非ASCII）必须原样转发
+        byte[] body = "{ \"DeviceProfile\" : {\"Name\":\"客户端\"},\n  \"AutoOpenLiveStream\":true }".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> forwardedBodies = new ArrayList<>();
+        when(restTemplate.execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class)))
+                .thenAnswer(invocation -> {
+                    MockClientHttpRequest upstreamRequest = new MockClientHttpRequest();
+                    RequestCallback callback = invocation.getArgument(2);
+                    callback.doWithRequest(upstreamRequest);
+                    forwardedBodies.add(upstreamRequest.getBodyAsBytes());
+                    ResponseExtractor<?> extractor = invocation.getArgument(3);
+                    return extractor.extractData(new MockClientHttpResponse(
+                            "{\"MediaSources\":[]}".getBytes(StandardCharsets.UTF_8), HttpStatus.OK));
+                });
+
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.of(body), new HashMap<>(), new HashMap<>(), new MockHttpServletResponse());
+        embyProxyService.processPlaybackInfoRequest("123456", PlaybackInfoRequestBody.of(body), new HashMap<>(), new HashMap<>(), new MockHttpServletResponse());
+
+        // 请求体中的AutoOpenLiveStream=true同样绕过缓存，两次都请求了上游
+        assertEquals(2, forwardedBodies.size());
+        forwardedBodies.forEach(forwarded -> assertArrayEquals(body, forwarded));
+    }
+
+    @Test
+    void processPlaybackInfoRequest_fills_media_path_index() throws Exception {
+        mockEmbyResponse("{\"MediaSources\":[{\"Id\":\"ms1\",\"Path\":\"/movies/a.mkv\",\"Size\":1024,\"Bitrate\":8000000},"
+                + "{\"Id\":\"ms2\",\"Path\":\"/movies/a-4k.mkv\",\"MediaStreams\":[{\"Path\":\"/movies/a.srt\"}]}]}");
+        when(downloadRouteService.selectRoute(any(), any(), any())).thenReturn(Optional.of(testRoute()));
+        when(downloadRouteService.reserveRoute(any(), any(), any())).thenReturn(Optional.of(new DownloadRouteService.RouteLease(testRoute(), 7)));
+
+        embyProxyService.processPlaybackInfoRequest("654321", PlaybackInfoRequestBody.EMPTY, new HashMap<>(), new HashMap<>(), new MockHttpServletResponse());
+
+        MediaSourceInfo defaultSource = embyProxyService.findMediaSource("654321", null).orElseThrow();
+        assertEquals("ms1", defaultSource.getMediaSourceId());
+        assertEquals("/movies/a.mkv", defaultSource.getPath());
+        assertEquals(1024L, defaultSource.getSize());
+        assertEquals(8000000L, defaultSource.getBitrate());
+        assertEquals("/movies/a-4k.mkv", embyProxyService.findMediaSource("654321", "ms2").orElseThrow().getPath());
+        assertTrue(embyProxyService.findMediaSource("unknown", null).isEmpty());
+
+        String downloadUrl = embyProxyService.selectDownloadUrl(defaultSource.getPath(), defaultSource.getBitrate(), Map.of()).orElseThrow();
+        assertTrue(downloadUrl.startsWith("http://cdn.example.com:8080/emby_download?path="));
+        // 302跳转地址带上准入租约ID，nginx统计回传后释放该租约
+        assertTrue(downloadUrl.endsWith("&route_id=1&lease_id=7"));
+    }
+
+    @Test
+    void processPlaybackInfoRequest_passes_client_errors_through_without_failing_backends() throws Exception {
+        // Emby的RestTemplate不对4xx抛出异常，404由响应提取器处理
+        when(restTemplate.execute(any(URI.class), eq(HttpMethod.POST), any(RequestCallback.class), any(ResponseExtractor.class)))
+                .thenAnswer(invocation -> {
+                    ResponseExtractor<?> extractor = invocation.getArgument(3);
+                    MockClientHttpResponse notFound = new MockClientHttpResponse(
+                            "Item not found".getBytes(StandardCharsets.UTF_8), HttpStatus.NOT_FOUND);
+                    notFound.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+                    return extractor.extractData(notFound);
+                });
+        long failures = backendCount("failures");
+        long ejections = backendCount("ejections");
+        Map<String, String> liveStream = new HashMap<>();
+        liveStream.put("LiveStreamId", "live-1");
+
+        // 缓存路径和流式改写路径各5次
+        for (int i = 0; i < 5; i++) {
+            for (Map<String, String> queryParams : List.of(new HashMap<String, String>(), liveStream)) {
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                embyProxyService.processPlaybackInfoRequest("missing", PlaybackInfoRequestBody.EMPTY, queryParams, new HashMap<>(), response);
+
+                assertEquals(HttpStatus.NOT_FOUND.value(), response.getStatus());
+                assertEquals("Item not found", response.getContentAsString());
+                assertTrue(response.getContentType().startsWith(MediaType.TEXT_PLAIN_VALUE));
+            }
+        }
+
+        assertEquals(failures, backendCount("failures"));
+        assertEquals(ejections, backendCount("ejections"));
+        Mockito.verify(downloadRouteService, Mockito.never()).selectRoute(any(), any(), any());
     }
-}
\ No newline at end of file
+}
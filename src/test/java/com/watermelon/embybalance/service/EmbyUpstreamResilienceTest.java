@@ -0,0 +1,189 @@
+package com.watermelon.embybalance.service;
+
+import com.sun.net.httpserver.HttpServer;
+import com.watermelon.embybalance.config.AppConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RestTemplate;
+import reactor.netty.http.client.HttpClient;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbyUpstreamResilienceTest {
+
+    private CircuitBreaker circuitBreaker;
+    private EmbyUpstreamResilience resilience;
+
+    @BeforeEach
+    void setUp() {
+        circuitBreaker = new CircuitBreaker("test", 10, 4, 0.5, 0.8, 1000, 200, 1);
+        resilience = new EmbyUpstreamResilience(circuitBreaker);
+        ReflectionTestUtils.setField(resilience, "defaultTimeoutMs", 300L);
+        ReflectionTestUtils.setField(resilience, "maxTimeoutMs", 1000L);
+        ReflectionTestUtils.setField(resilience, "deadlineHeader", "X-Request-Timeout-Ms");
+        ReflectionTestUtils.setField(resilience, "hedgeEnabled", true);
+        ReflectionTestUtils.setField(resilience, "hedgeMinDelayMs", 20L);
+        ReflectionTestUtils.setField(resilience, "hedgeMinSamples", 5);
+        ReflectionTestUtils.setField(resilience, "latencyWindowMs", 60000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        resilience.shutdown();
+    }
+
+    private static UpstreamResponse ok() {
+        return new UpstreamResponse(200, new HttpHeaders(), "{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void timeoutFor_uses_client_header_within_limit() {
+        assertEquals(50, resilience.timeoutFor(Map.of("x-request-timeout-ms", "50")));
+        assertEquals(1000, resilience.timeoutFor(Map.of("X-Request-Timeout-Ms", "60000")));
+        assertEquals(300, resilience.timeoutFor(Map.of("X-Request-Timeout-Ms", "abc")));
+    }
+
+    @Test
+    void execute_fails_fast_after_deadline() {
+        long startedAt = System.currentTimeMillis();
+        assertThrows(TimeoutException.class, () -> resilience.execute(() -> {
+            Thread.sleep(2000);
+            return ok();
+        }, () -> null, 100));
+        assertTrue(System.currentTimeMillis() - startedAt < 1000);
+        assertEquals(1L, resilience.getStatistics().get("deadlineExceeded"));
+    }
+
+    @Test
+    void execute_hedges_slow_attempt() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            resilience.execute(EmbyUpstreamResilienceTest::ok, () -> null, 300);
+        }
+
+        // 第一次调用卡住，对冲的第二次调用立即返回
+        AtomicInteger attempts = new AtomicInteger();
+        UpstreamResponse response = resilience.execute(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                Thread.sleep(2000);
+            }
+            return ok();
+        }, () -> null, 1000);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(2, attempts.get());
+        assertEquals(1L, resilience.getStatistics().get("hedgeWins"));
+    }
+
+    @Test
+    void execute_serves_stale_when_circuit_open() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertThrows(IllegalStateException.class, () -> resilience.execute(() -> {
+                throw new IllegalStateException("Emby不可用");
+            }, () -> null, 300));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        UpstreamResponse stale = ok();
+        assertSame(stale, resilience.execute(() -> fail("熔断时不应请求上游"), () -> stale, 300));
+        assertThrows(IllegalStateException.class, () -> resilience.execute(EmbyUpstreamResilienceTest::ok, () -> null, 300));
+
+        // 打开时间过后半开试探成功即关闭
+        Thread.sleep(250);
+        resilience.execute(EmbyUpstreamResilienceTest::ok, () -> null, 300);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void primary_win_while_half_open_closes_circuit() throws Exception {
+        // 半开放行两次试探
+        circuitBreaker = new CircuitBreaker("test", 10, 4, 0.5, 0.8, 1000, 200, 2);
+        ReflectionTestUtils.setField(resilience, "embyCircuitBreaker", circuitBreaker);
+        for (int i = 0; i < 10; i++) {
+            resilience.execute(EmbyUpstreamResilienceTest::ok, () -> null, 300);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertThrows(IllegalStateException.class, () -> resilience.execute(() -> {
+                throw new IllegalStateException("Emby不可用");
+            }, () -> null, 300));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        // 半开试探超过对冲延迟才返回：不对冲，试探许可不被占用，成功后关闭
+        Thread.sleep(250);
+        AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            resilience.execute(() -> {
+                attempts.incrementAndGet();
+                Thread.sleep(60);
+                return ok();
+            }, () -> null, 1000);
+        }
+        assertEquals(2, attempts.get());
+        assertEquals(0L, resilience.getStatistics().get("hedged"));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void half_open_permits_are_returned_and_rearmed() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 2, 0.5, 0.8, 1000, 100, 1);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(120);
+
+        // 放弃的试探归还许可后可以再次试探
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+
+        // 试探一直没有结果，半开超过打开时长后重新放行
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(120);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess(10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void client_errors_from_emby_pass_through_without_opening_circuit() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "Access token is invalid or expired.".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(401, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            RestTemplate restTemplate = new AppConfig().restTemplate(HttpClient.create(), 1000);
+            URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/emby/Items/1/PlaybackInfo");
+            for (int i = 0; i < 10; i++) {
+                // 4xx到达响应提取器，不抛出异常
+                UpstreamResponse response = resilience.execute(() -> restTemplate.execute(uri, HttpMethod.POST, null,
+                        r -> new UpstreamResponse(r.getStatusCode().value(), r.getHeaders(),
+                                StreamUtils.copyToByteArray(r.getBody()))), () -> null, 1000);
+                assertEquals(401, response.getStatus());
+                assertEquals("Access token is invalid or expired.", new String(response.getBody(), StandardCharsets.UTF_8));
+            }
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 客户端网段前缀字典树和按线路组划分的子快照
+ */
+class IpPrefixTrieTest {
+
+    private static DownloadRoute route(long id, String group) {
+        DownloadRoute route = new DownloadRoute();
+        route.setId(id);
+        route.setDomain("node" + id + ".example.com");
+        route.setProtocol(DownloadRoute.Protocol.HTTP);
+        route.setPort(8080);
+        route.setWeight(10);
+        route.setRouteGroup(group);
+        return route;
+    }
+
+    @Test
+    void lookup_returns_longest_matching_prefix() {
+        IpPrefixTrie<String> trie = IpPrefixTrie.<String>builder()
+                .add("10.0.0.0/8", "lan")
+                .add("10.20.0.0/16", "office")
+                .add("10.20.30.40", "host")
+                .add("2001:db8::/32", "v6")
+                .add("2001:db8:abcd::/48", "v6-site")
+                .build();
+
+        assertEquals("lan", trie.lookup("10.1.2.3"));
+        assertEquals("office", trie.lookup("10.20.1.1"));
+        assertEquals("host", trie.lookup("10.20.30.40"));
+        assertNull(trie.lookup("192.168.1.1"));
+        assertEquals("v6", trie.lookup("2001:db8:1::1"));
+        assertEquals("v6-site", trie.lookup("[2001:db8:abcd::5]"));
+        assertNull(trie.lookup("2001:db9::1"));
+        // IPv4映射的IPv6地址按IPv4匹配
+        assertEquals("office", trie.lookup("::ffff:10.20.0.9"));
+    }
+
+    @Test
+    void default_route_and_invalid_input() {
+        IpPrefixTrie<String> trie = IpPrefixTrie.<String>builder().add("0.0.0.0/0", "default").build();
+        assertEquals("default", trie.lookup("8.8.8.8"));
+        assertNull(trie.lookup("2001:db8::1"));
+        assertNull(trie.lookup("example.com"));
+        assertNull(trie.lookup((String) null));
+
+        IpPrefixTrie.Builder<String> builder = IpPrefixTrie.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.add("10.0.0.0/33", "x"));
+        assertThrows(IllegalArgumentException.class, () -> builder.add("10.0.0.0/abc", "x"));
+        assertThrows(IllegalArgumentException.class, () -> builder.add("localhost/8", "x"));
+    }
+
+    @Test
+    void parses_only_ip_literals_without_dns() throws Exception {
+        // 由十六进制字母组成的主机名不能当作地址，也不能触发DNS解析
+        for (String host : new String[]{"cafe", "dead.beef", "face.bad", "abc", "1.2.3", "1.2.3.4.5", "256.1.1.1",
+                "1..2.3", "1.2.3.4:80", "1::2::3", "12345::1", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", ":1::", "1:", "::ffff:1.2.3"}) {
+            assertNull(IpPrefixTrie.parseAddress(host), host);
+        }
+        for (String literal : new String[]{"0.0.0.0", "10.20.30.40", "::", "::1", "1::", "2001:db8::8:800:200c:417a",
+                "2001:0db8:0000:0000:0000:0000:0000:0001", "fe80::1", "::1.2.3.4", "64:ff9b::192.0.2.33"}) {
+            assertArrayEquals(InetAddress.getByName(literal).getAddress(), IpPrefixTrie.parseAddress(literal), literal);
+        }
+        assertArrayEquals(new byte[]{10, 20, 0, 9}, IpPrefixTrie.parseAddress("::ffff:10.20.0.9"));
+        assertArrayEquals(InetAddress.getByName("fe80::1").getAddress(), IpPrefixTrie.parseAddress("[fe80::1%eth0]"));
+    }
+
+    @Test
+    void client_ip_prefers_first_forwarded_address() {
+        assertEquals("1.2.3.4", ClientSubnetRouter.clientIp(Map.of("x-forwarded-for", "1.2.3.4, 10.0.0.1", "X-Real-IP", "10.0.0.1")));
+        assertEquals("10.0.0.1", ClientSubnetRouter.clientIp(Map.of("X-Real-IP", "10.0.0.1")));
+        assertNull(ClientSubnetRouter.clientIp(Map.of()));
+    }
+
+    @Test
+    void group_snapshot_falls_back_when_group_unknown_or_down() {
+        DownloadRoute[] routes = {route(1, "cn"), route(2, "cn"), route(3, "global"), route(4, null)};
+        RouteRegistry.Snapshot snapshot = new RouteRegistry.Snapshot(routes, new double[]{1, 1, 1, 1}, Map.of());
+
+        RouteRegistry.Snapshot cn = snapshot.forGroup("cn");
+        assertEquals(2, cn.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("cn", cn.route(cn.indexByRendezvous("/media/" + i)).getRouteGroup());
+        }
+        assertSame(snapshot, snapshot.forGroup("unknown"));
+
+        RouteRegistry.Snapshot globalDown = new RouteRegistry.Snapshot(routes, new double[]{1, 1, 1, 1}, Map.of(3L, 0.0));
+        assertSame(globalDown, globalDown.forGroup("global"));
+    }
+}
@@ -0,0 +1,242 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 历史日志回填：按换行切块、内存映射和gzip并行解析，批量写入，跳过跟踪中和已回填的文件
+ * 数据库写入和断点替换为内存集合
+ */
+class NginxLogBackfillTest {
+
+    private final Set<String> inserted = ConcurrentHashMap.newKeySet();
+    private final Map<String, SyncCheckpoint> checkpoints = new ConcurrentHashMap<>();
+    private Path directory;
+    private NginxLogBackfill backfill;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("nginx-log-backfill");
+        SyncCheckpointRepository repository = (SyncCheckpointRepository) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{SyncCheckpointRepository.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            return Optional.ofNullable(checkpoints.get((String) args[0]));
+                        case "existsById":
+                            return checkpoints.containsKey((String) args[0]);
+                        case "save":
+                            SyncCheckpoint checkpoint = (SyncCheckpoint) args[0];
+                            checkpoints.put(checkpoint.getName(), checkpoint);
+                            return checkpoint;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        backfill = new NginxLogBackfill(null, null, new ConcurrencyLimiter("sqlite", 1, 1000), null, repository) {
+            @Override
+            void insert(List<DownloadStatistics> batch) {
+                batch.forEach(statistics -> assertTrue(inserted.add(statistics.getFilePath()), "重复记录"));
+            }
+        };
+        ReflectionTestUtils.setField(backfill, "directory", directory.toString());
+        ReflectionTestUtils.setField(backfill, "parallelism", 3);
+        ReflectionTestUtils.setField(backfill, "chunkBytes", 1000L);
+        ReflectionTestUtils.setField(backfill, "batchSize", 7);
+        ReflectionTestUtils.setField(backfill, "maxLineBytes", 4096);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static String lines(String prefix, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("10.0.0.").append(i % 250).append(" - - [17/Oct/2026:10:00:00 +0800] \"GET /emby_download?route_id=1&path=")
+                    .append(prefix).append(i).append(" HTTP/1.1\" 200 2048 \"-\" \"VLC/3.0\" 1.000 0.020 512 1748\n");
+            if (i % 10 == 0) {
+                text.append("10.0.0.1 - - [17/Oct/2026:10:00:00 +0800] \"GET /emby/Items HTTP/1.1\" 200 10 \"-\" \"-\" 0.001 - 100 10\n");
+            }
+        }
+        text.append("truncated line without newline");
+        return text.toString();
+    }
+
+    private Map<String, Object> runToEnd(String pattern) throws Exception {
+        backfill.start(pattern);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Boolean.TRUE.equals(backfill.getStatistics().get("running")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Map<String, Object> stats = backfill.getStatistics();
+        assertNull(stats.get("error"));
+        assertEquals(false, stats.get("running"));
+        return stats;
+    }
+
+    private void gzip(Path file, String text) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void splits_at_line_boundaries_and_loads_plain_and_gzip_logs() throws Exception {
+        Files.writeString(directory.resolve("download_stats.log.1"), lines("plain-", 200));
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(directory.resolve("download_stats.log.2.gz")))) {
+            out.write(lines("gzip-", 150).getBytes(StandardCharsets.US_ASCII));
+        }
+        Files.writeString(directory.resolve("access.log"), lines("other-", 5));
+
+        backfill.start("download_stats.log.*");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Boolean.TRUE.equals(backfill.getStatistics().get("running")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        Map<String, Object> stats = backfill.getStatistics();
+        assertNull(stats.get("error"));
+        assertEquals(false, stats.get("running"));
+        // 未压缩文件切成多块，每块边界都在换行之后，没有行被拆开或重复
+        assertTrue((Long) stats.get("units") > 2);
+        assertEquals(350, inserted.size());
+        assertEquals(350L, stats.get("inserted"));
+        assertEquals(35L, stats.get("skipped"));
+        // 两个文件末尾没有换行的残行
+        assertEquals(2L, stats.get("parseErrors"));
+        assertEquals(387L, stats.get("lines"));
+        assertTrue(inserted.contains("plain-199"));
+        assertTrue(inserted.contains("gzip-0"));
+        assertFalse(inserted.contains("other-0"));
+        assertEquals(2L, stats.get("filesImported"));
+        assertEquals(2, checkpoints.size());
+    }
+
+    @Test
+    void rerun_skips_already_imported_files_even_after_rotation_compresses_them() throws Exception {
+        String plain = lines("plain-", 200);
+        Files.writeString(directory.resolve("download_stats.log.1"), plain);
+        Map<String, Object> first = runToEnd("download_stats.log.*");
+        assertEquals(200L, first.get("inserted"));
+
+        // 再次回填不写入任何记录（insert中重复记录会失败）
+        Map<String, Object> second = runToEnd("download_stats.log.*");
+        assertEquals(0L, second.get("inserted"));
+        assertEquals(List.of(), second.get("files"));
+        assertEquals(List.of("download_stats.log.1"), second.get("alreadyImported"));
+
+        // logrotate把.1改名压缩为.2.gz后仍识别为同一文件，新轮转出的.1照常回填
+        Files.delete(directory.resolve("download_stats.log.1"));
+        gzip(directory.resolve("download_stats.log.2.gz"), plain);
+        Files.writeString(directory.resolve("download_stats.log.1"), lines("next-", 30));
+        Map<String, Object> third = runToEnd("download_stats.log.*");
+        assertEquals(30L, third.get("inserted"));
+        assertEquals(List.of("download_stats.log.1"), third.get("files"));
+        assertEquals(List.of("download_stats.log.2.gz"), third.get("alreadyImported"));
+        assertEquals(230, inserted.size());
+    }
+
+    @Test
+    void skips_files_followed_by_the_tailer() throws Exception {
+        Path live = directory.resolve("download_stats.log");
+        Files.writeString(live, lines("live-", 20));
+        // 轮转后日志跟踪还在读的上一个文件
+        Path draining = directory.resolve("download_stats.log.1");
+        Files.writeString(draining, lines("draining-", 20));
+        Files.writeString(directory.resolve("download_stats.log.2"), lines("old-", 20));
+        checkpoints.put(NginxLogTailer.CHECKPOINT_NAME, new SyncCheckpoint(NginxLogTailer.CHECKPOINT_NAME,
+                NginxLogTailer.fileKeyOf(draining) + "@100", null));
+        ReflectionTestUtils.setField(backfill, "tailerEnabled", true);
+        ReflectionTestUtils.setField(backfill, "tailerPath", live.toString());
+
+        Map<String, Object> stats = runToEnd("download_stats.log*");
+
+        assertEquals(List.of("download_stats.log.2"), stats.get("files"));
+        assertEquals(List.of("download_stats.log", "download_stats.log.1"), stats.get("tailed"));
+        assertEquals(20, inserted.size());
+        assertTrue(inserted.contains("old-0"));
+        assertFalse(inserted.contains("live-0"));
+        assertFalse(inserted.contains("draining-0"));
+    }
+
+    @Test
+    void insert_reads_row_ids_from_generated_keys() throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource("jdbc:sqlite::memory:", true);
+        try {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            jdbcTemplate.execute("CREATE TABLE download_statistics (id INTEGER PRIMARY KEY AUTOINCREMENT, route_id INTEGER, "
+                    + "client_ip TEXT, file_path TEXT, download_size INTEGER, download_duration INTEGER, bandwidth REAL, "
+                    + "response_time INTEGER, success BOOLEAN, user_agent TEXT, created_at TIMESTAMP)");
+            jdbcTemplate.update("INSERT INTO download_statistics (id, route_id) VALUES (100, 9)");
+            RoutePerformanceWindow window = new RoutePerformanceWindow(null, null);
+            ReflectionTestUtils.setField(window, "loaded", true);
+            ReflectionTestUtils.setField(window, "loadedMaxId", 0L);
+            NginxLogBackfill writer = new NginxLogBackfill(jdbcTemplate,
+                    new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+                    new ConcurrencyLimiter("sqlite", 1, 1000), window, null);
+            List<DownloadStatistics> batch = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                DownloadStatistics row = new DownloadStatistics();
+                row.setRouteId(3L);
+                row.setClientIp("10.0.0.1");
+                row.setFilePath("row-" + i);
+                row.setDownloadSize(2048L);
+                row.setDownloadDuration(1000L);
+                row.setResponseTime(20L);
+                row.setSuccess(true);
+                row.setCreatedAt(LocalDateTime.now());
+                row.calculateBandwidth();
+                batch.add(row);
+            }
+
+            writer.insert(batch);
+
+            for (DownloadStatistics row : batch) {
+                assertEquals(row.getFilePath(), jdbcTemplate.queryForObject(
+                        "SELECT file_path FROM download_statistics WHERE id = ?", String.class, row.getId()));
+            }
+            assertEquals(101L, batch.get(0).getId().longValue());
+            assertEquals(7, window.window(3L, 60).requests());
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    void rejects_patterns_outside_the_directory() {
+        assertThrows(IllegalArgumentException.class, () -> backfill.start("../secret*"));
+        assertThrows(IllegalArgumentException.class, () -> backfill.start("missing*"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import com.watermelon.embybalance.entity.SyncCheckpoint;
+import com.watermelon.embybalance.repository.SyncCheckpointRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * nginx下载日志解析和跟踪：字段解析、追加读取、轮转、截断和断点恢复
+ * 写入队列替换为内存列表，断点保存在内存Map中
+ */
+class NginxLogTailerTest {
+
+    private final List<DownloadStatistics> submitted = new ArrayList<>();
+    private final Map<String, SyncCheckpoint> checkpoints = new HashMap<>();
+    private Path directory;
+    private Path log;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("nginx-log-tailer");
+        log = directory.resolve("download_stats.log");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static String line(long routeId, String path, int status, long bytes) {
+        return "10.0.0.5 - - [17/Oct/2026:10:00:00 +0800] \"GET /emby_download?route_id=" + routeId + "&path=" + path
+                + " HTTP/1.1\" " + status + " " + (bytes + 300) + " \"-\" \"Infuse/7.0\" 2.500 0.012, 0.034 512 " + bytes + "\n";
+    }
+
+    private NginxLogTailer tailer() {
+        DownloadStatisticsService service = new DownloadStatisticsService(null, null, null, null, null, null) {
+            @Override
+            public boolean recordDownloadStatistics(DownloadStatistics statistics, boolean waitForSpace) {
+                submitted.add(statistics);
+                return true;
+            }
+        };
+        SyncCheckpointRepository repository = (SyncCheckpointRepository) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{SyncCheckpointRepository.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            return Optional.ofNullable(checkpoints.get((String) args[0]));
+                        case "save":
+                            SyncCheckpoint checkpoint = (SyncCheckpoint) args[0];
+                            checkpoints.put(checkpoint.getName(), checkpoint);
+                            return checkpoint;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        NginxLogTailer tailer = new NginxLogTailer(service, new StatisticsIngestPipeline(null, null, null, null),
+                repository, new ConcurrencyLimiter("sqlite", 1, 1000));
+        ReflectionTestUtils.setField(tailer, "path", log.toString());
+        ReflectionTestUtils.setField(tailer, "checkpointIntervalMs", 0L);
+        ReflectionTestUtils.setField(tailer, "startFromEnd", false);
+        ReflectionTestUtils.setField(tailer, "buffer", ByteBuffer.allocate(256));
+        return tailer;
+    }
+
+    private static void pollUntilIdle(NginxLogTailer tailer) throws Exception {
+        for (int i = 0; i < 20 && tailer.poll(); i++) {
+            tailer.commitCheckpoint(false);
+        }
+        tailer.commitCheckpoint(true);
+    }
+
+    private void append(Path file, String text) throws IOException {
+        Files.writeString(file, text, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void parses_download_stats_format() {
+        NginxDownloadLogParser parser = new NginxDownloadLogParser(ZoneOffset.UTC);
+        byte[] bytes = line(3, "%2Fmedia%2F%E7%94%B5%E5%BD%B1.mkv", 206, 1048576).getBytes(StandardCharsets.US_ASCII);
+        DownloadStatistics statistics = parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length - 1);
+
+        assertEquals(3L, statistics.getRouteId().longValue());
+        assertEquals("10.0.0.5", statistics.getClientIp());
+        assertEquals("/media/电影.mkv", statistics.getFilePath());
+        assertEquals(1048576L, statistics.getDownloadSize().longValue());
+        assertEquals(2500L, statistics.getDownloadDuration().longValue());
+        // 多个上游时取最后一个
+        assertEquals(34L, statistics.getResponseTime().longValue());
+        assertTrue(statistics.getSuccess());
+        assertEquals("Infuse/7.0", statistics.getUserAgent());
+        assertEquals(LocalDateTime.of(2026, 10, 17, 2, 0, 0), statistics.getCreatedAt());
+        assertNull(statistics.getLeaseId());
+
+        // 302跳转地址带有准入租约ID
+        byte[] leased = line(3, "a.mkv&lease_id=42", 200, 10).getBytes(StandardCharsets.US_ASCII);
+        DownloadStatistics leasedStatistics = parser.parse(ByteBuffer.wrap(leased), 0, leased.length - 1);
+        assertEquals("a.mkv", leasedStatistics.getFilePath());
+        assertEquals(42L, leasedStatistics.getLeaseId().longValue());
+
+        byte[] other = "10.0.0.5 - - [17/Oct/2026:10:00:00 +0800] \"GET /emby/Items HTTP/1.1\" 200 10 \"-\" \"-\" 0.010 - 100 10"
+                .getBytes(StandardCharsets.US_ASCII);
+        assertNull(parser.parse(ByteBuffer.wrap(other), 0, other.length));
+        byte[] broken = "garbage".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(ByteBuffer.wrap(broken), 0, broken.length));
+    }
+
+    @Test
+    void follows_appends_rotation_and_truncation() throws Exception {
+        append(log, line(1, "a.mkv", 200, 100) + line(1, "b.mkv", 200, 200));
+        NginxLogTailer tailer = tailer();
+        pollUntilIdle(tailer);
+        assertEquals(2, submitted.size());
+
+        // 残行等换行写入后再提交
+        String third = line(2, "c.mkv", 500, 0);
+        append(log, third.substring(0, 40));
+        pollUntilIdle(tailer);
+        assertEquals(2, submitted.size());
+        append(log, third.substring(40));
+        pollUntilIdle(tailer);
+        assertEquals(3, submitted.size());
+        assertFalse(submitted.get(2).getSuccess());
+
+        // 轮转：旧文件最后写入的行先读完，再读新文件
+        append(log, line(1, "d.mkv", 200, 100));
+        Files.move(log, directory.resolve("download_stats.log.1"));
+        append(log, line(1, "e.mkv", 200, 100));
+        pollUntilIdle(tailer);
+        assertEquals(List.of("a.mkv", "b.mkv", "c.mkv", "d.mkv", "e.mkv"),
+                submitted.stream().map(DownloadStatistics::getFilePath).toList());
+        assertEquals(1L, tailer.getStatistics().get("rotations"));
+
+        // copytruncate：文件变短后从头读取
+        Files.writeString(log, line(4, "f", 200, 100));
+        pollUntilIdle(tailer);
+        assertEquals("f", submitted.get(submitted.size() - 1).getFilePath());
+        assertEquals(1L, tailer.getStatistics().get("truncations"));
+    }
+
+    @Test
+    void resumes_from_checkpoint_including_rotated_file() throws Exception {
+        append(log, line(1, "a.mkv", 200, 100));
+        pollUntilIdle(tailer());
+        assertEquals(1, submitted.size());
+
+        // 停机期间追加并轮转，重启后先读完path.1再读新文件，已读的行不重复
+        append(log, line(1, "b.mkv", 200, 100));
+        Files.move(log, directory.resolve("download_stats.log.1"));
+        append(log, line(1, "c.mkv", 200, 100));
+        NginxLogTailer restarted = tailer();
+        pollUntilIdle(restarted);
+        assertEquals(List.of("a.mkv", "b.mkv", "c.mkv"),
+                submitted.stream().map(DownloadStatistics::getFilePath).toList());
+    }
+}
@@ -0,0 +1,121 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * nginx syslog接收：RFC 3164/5424头、UDP报文、TCP两种分帧、解析错误和缓冲池耗尽
+ * 写入队列替换为内存列表
+ */
+class NginxSyslogReceiverTest {
+
+    private static final String LINE = "10.0.0.7 - - [17/Oct/2026:10:00:00 +0800] \"GET /emby_download?route_id=%d&path=x.mkv HTTP/1.1\" "
+            + "200 5000 \"-\" \"Kodi/20\" 2.000 0.050 400 4700";
+
+    private final List<DownloadStatistics> submitted = new CopyOnWriteArrayList<>();
+    private NginxSyslogReceiver receiver;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DownloadStatisticsService service = new DownloadStatisticsService(null, null, null, null, null, null) {
+            @Override
+            public boolean recordDownloadStatistics(DownloadStatistics statistics, boolean waitForSpace) {
+                submitted.add(statistics);
+                return true;
+            }
+        };
+        receiver = new NginxSyslogReceiver(service);
+        ReflectionTestUtils.setField(receiver, "enabled", true);
+        ReflectionTestUtils.setField(receiver, "bindAddress", "127.0.0.1");
+        ReflectionTestUtils.setField(receiver, "udpPort", 0);
+        ReflectionTestUtils.setField(receiver, "tcpEnabled", true);
+        ReflectionTestUtils.setField(receiver, "tcpPort", 0);
+        ReflectionTestUtils.setField(receiver, "maxTcpConnections", 2);
+        ReflectionTestUtils.setField(receiver, "bufferPoolSize", 8);
+        ReflectionTestUtils.setField(receiver, "maxMessageBytes", 1024);
+        ReflectionTestUtils.setField(receiver, "receiveBufferBytes", 65536);
+        receiver.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        receiver.shutdown();
+    }
+
+    private int port(String key) {
+        String address = (String) receiver.getStatistics().get(key);
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), "等待超时");
+    }
+
+    @Test
+    void strips_rfc3164_and_rfc5424_headers() {
+        NginxDownloadLogParser parser = new NginxDownloadLogParser();
+        String[] messages = {
+                "<190>Oct 17 10:00:00 edge-1 nginx: " + String.format(LINE, 1),
+                "<190>1 2026-10-17T10:00:00+08:00 edge-1 nginx - - - " + String.format(LINE, 2),
+                "<190>1 2026-10-17T10:00:00+08:00 edge-1 nginx - - [meta x=\"1\"] " + String.format(LINE, 3),
+                String.format(LINE, 4) + "\n"
+        };
+        for (String message : messages) {
+            byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+            receiver.handleMessage(parser, ByteBuffer.wrap(bytes), 0, bytes.length);
+        }
+        assertEquals(List.of(1L, 2L, 3L, 4L), submitted.stream().map(DownloadStatistics::getRouteId).toList());
+        assertEquals(4700L, submitted.get(0).getDownloadSize().longValue());
+
+        byte[] broken = "<190>Oct 17 10:00:00 edge-1 nginx: not a log line".getBytes(StandardCharsets.US_ASCII);
+        receiver.handleMessage(parser, ByteBuffer.wrap(broken), 0, broken.length);
+        assertEquals(1L, receiver.getStatistics().get("parseErrors"));
+    }
+
+    @Test
+    void receives_udp_and_tcp_frames() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] bytes = ("<190>Oct 17 10:00:00 edge-1 nginx: " + String.format(LINE, 5)).getBytes(StandardCharsets.US_ASCII);
+            socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port("udp")));
+        }
+        await(() -> submitted.size() == 1);
+
+        String octetCounted = "<190>1 2026-10-17T10:00:00+08:00 edge-1 nginx - - - " + String.format(LINE, 6);
+        String payload = octetCounted.length() + " " + octetCounted
+                + "<190>Oct 17 10:00:00 edge-1 nginx: " + String.format(LINE, 7) + "\n";
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port("tcp"))) {
+            OutputStream out = socket.getOutputStream();
+            byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+            // 分两次发送，帧跨越读取边界
+            out.write(bytes, 0, 50);
+            out.flush();
+            Thread.sleep(50);
+            out.write(bytes, 50, bytes.length - 50);
+            out.flush();
+            await(() -> submitted.size() == 3);
+        }
+        assertEquals(List.of(5L, 6L, 7L), submitted.stream().map(DownloadStatistics::getRouteId).toList());
+        assertEquals(3L, receiver.getStatistics().get("records"));
+        assertEquals(0L, receiver.getStatistics().get("dropped"));
+    }
+}
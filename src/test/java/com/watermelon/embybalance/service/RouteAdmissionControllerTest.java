@@ -0,0 +1,128 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteAdmissionControllerTest {
+
+    private RouteAdmissionController admissionController;
+    private RouteRegistry routeRegistry;
+    private DownloadRouteService downloadRouteService;
+
+    @BeforeEach
+    void setUp() {
+        admissionController = new RouteAdmissionController();
+        ReflectionTestUtils.setField(admissionController, "defaultStreamMbps", 20);
+        ReflectionTestUtils.setField(admissionController, "leaseTtlMs", 10800000L);
+
+        routeRegistry = new RouteRegistry(null, null);
+        downloadRouteService = new DownloadRouteService(null, null, routeRegistry, new RouteLoadTracker(), admissionController);
+        ReflectionTestUtils.setField(downloadRouteService, "selectionAlgorithm", "rendezvous");
+    }
+
+    private static DownloadRoute route(Long id, Integer maxStreams, Integer maxMbps) {
+        DownloadRoute route = new DownloadRoute();
+        route.setId(id);
+        route.setDomain("node" + id + ".example.com");
+        route.setProtocol(DownloadRoute.Protocol.HTTP);
+        route.setPort(8080);
+        route.setWeight(10);
+        route.setMaxConcurrentStreams(maxStreams);
+        route.setMaxBandwidthMbps(maxMbps);
+        return route;
+    }
+
+    @Test
+    void admits_up_to_stream_and_bandwidth_limits() {
+        DownloadRoute streams = route(1L, 2, null);
+        long leaseId = admissionController.tryAdmit(streams, null).orElseThrow();
+        assertTrue(admissionController.tryAdmit(streams, null).isPresent());
+        assertTrue(admissionController.tryAdmit(streams, null).isEmpty());
+        admissionController.release(1L, leaseId);
+        assertTrue(admissionController.tryAdmit(streams, null).isPresent());
+
+        // 100Mbit/s线路：两个40Mbit/s的下载之后放不下第三个
+        DownloadRoute bandwidth = route(2L, null, 100);
+        assertTrue(admissionController.tryAdmit(bandwidth, 40_000_000L).isPresent());
+        assertTrue(admissionController.tryAdmit(bandwidth, 40_000_000L).isPresent());
+        assertTrue(admissionController.tryAdmit(bandwidth, 40_000_000L).isEmpty());
+        assertEquals(RouteAdmissionController.NO_LEASE,
+                admissionController.tryAdmit(route(3L, null, null), 40_000_000L).orElseThrow());
+        assertEquals(2L, admissionController.getStatistics().get("rejected"));
+    }
+
+    @Test
+    void only_the_record_carrying_the_lease_id_releases_it() {
+        DownloadRoute route = route(1L, 1, null);
+        long leaseId = admissionController.tryAdmit(route, null).orElseThrow();
+
+        // PlaybackInfo改写的地址没有租约ID，其他线路的租约ID也不能释放本线路的租约
+        admissionController.release(1L, null);
+        admissionController.release(2L, leaseId);
+        admissionController.release(1L, leaseId + 1);
+        assertFalse(admissionController.hasCapacity(route, null));
+
+        // 同一地址的后续Range请求回传同一ID，只释放一次
+        admissionController.release(1L, leaseId);
+        admissionController.release(1L, leaseId);
+        assertTrue(admissionController.hasCapacity(route, null));
+        assertTrue(admissionController.tryAdmit(route, null).isPresent());
+        assertTrue(admissionController.tryAdmit(route, null).isEmpty());
+    }
+
+    @Test
+    void expired_leases_release_capacity() {
+        DownloadRoute route = route(1L, 1, null);
+        long leaseId = admissionController.tryAdmit(route, null).orElseThrow();
+        ReflectionTestUtils.setField(admissionController, "leaseTtlMs", -1L);
+        admissionController.expireLeases();
+        assertTrue(admissionController.tryAdmit(route, null).isPresent());
+        // 过期后迟到的统计记录不会重复释放
+        admissionController.release(1L, leaseId);
+        assertFalse(admissionController.hasCapacity(route, null));
+    }
+
+    @Test
+    void full_route_spills_over_and_all_full_is_refused() {
+        DownloadRoute first = route(1L, 1, null);
+        DownloadRoute second = route(2L, 1, null);
+        ReflectionTestUtils.setField(routeRegistry, "snapshot",
+                new RouteRegistry.Snapshot(new DownloadRoute[]{first, second}, new double[]{10, 10}, Map.of()));
+
+        DownloadRouteService.RouteLease owner = downloadRouteService.reserveRoute("/movies/a.mkv", null, null).orElseThrow();
+        DownloadRouteService.RouteLease spilled = downloadRouteService.reserveRoute("/movies/a.mkv", null, null).orElseThrow();
+        assertNotEquals(owner.route().getId(), spilled.route().getId());
+        assertNotEquals(owner.leaseId(), spilled.leaseId());
+        assertThrows(RouteCapacityExceededException.class, () -> downloadRouteService.reserveRoute("/movies/a.mkv", null, null));
+
+        // 释放的租约所在线路重新可用
+        admissionController.release(owner.route().getId(), owner.leaseId());
+        assertEquals(owner.route().getId(), downloadRouteService.reserveRoute("/movies/a.mkv", null, null).orElseThrow().route().getId());
+    }
+
+    @Test
+    void playback_info_selection_checks_capacity_without_taking_leases() {
+        DownloadRoute first = route(1L, 1, null);
+        DownloadRoute second = route(2L, 1, null);
+        ReflectionTestUtils.setField(routeRegistry, "snapshot",
+                new RouteRegistry.Snapshot(new DownloadRoute[]{first, second}, new double[]{10, 10}, Map.of()));
+
+        // PlaybackInfo改写多少次都不占用租约
+        for (int i = 0; i < 5; i++) {
+            downloadRouteService.selectRoute("/movies/a.mkv", null, null).orElseThrow();
+        }
+        assertTrue(admissionController.tryAdmit(first, null).isPresent());
+        assertTrue(admissionController.tryAdmit(second, null).isPresent());
+
+        // 两条线路都满载后PlaybackInfo改写同样拒绝，但不计入拒绝数
+        assertFalse(admissionController.hasCapacity(first, null));
+        assertThrows(RouteCapacityExceededException.class, () -> downloadRouteService.selectRoute("/movies/a.mkv", null, null));
+        assertEquals(0L, admissionController.getStatistics().get("rejected"));
+    }
+}
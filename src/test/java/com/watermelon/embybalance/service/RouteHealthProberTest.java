@@ -0,0 +1,116 @@
+package com.watermelon.embybalance.service;
+
+import com.sun.net.httpserver.HttpServer;
+import com.watermelon.embybalance.entity.DownloadRoute;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteHealthProberTest {
+
+    private HttpServer healthyServer;
+    private HttpServer failingServer;
+    private RouteRegistry routeRegistry;
+    private RouteHealthProber prober;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        healthyServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        healthyServer.createContext("/health/probe.bin", exchange -> {
+            byte[] body = new byte[4096];
+            exchange.sendResponseHeaders(206, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        healthyServer.start();
+        failingServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        failingServer.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(502, -1);
+            exchange.close();
+        });
+        failingServer.start();
+
+        DownloadRoute healthy = route(1L, healthyServer.getAddress().getPort());
+        DownloadRoute failing = route(2L, failingServer.getAddress().getPort());
+        routeRegistry = new RouteRegistry(null, null);
+        ReflectionTestUtils.setField(routeRegistry, "snapshot",
+                new RouteRegistry.Snapshot(new DownloadRoute[]{healthy, failing}, new double[]{50, 50}, Map.of()));
+
+        prober = new RouteHealthProber(routeRegistry, new SimpleAsyncTaskExecutor("probe-"), 1000);
+        ReflectionTestUtils.setField(prober, "probePath", "/health/probe.bin");
+        ReflectionTestUtils.setField(prober, "method", "GET");
+        ReflectionTestUtils.setField(prober, "probeBytes", 4096);
+        ReflectionTestUtils.setField(prober, "timeoutMs", 2000L);
+        ReflectionTestUtils.setField(prober, "degradedTtfbMs", 1000L);
+        ReflectionTestUtils.setField(prober, "degradedThroughputMbps", 0.0);
+        ReflectionTestUtils.setField(prober, "downAfterFailures", 3);
+        ReflectionTestUtils.setField(prober, "recoverAfterSuccesses", 2);
+        ReflectionTestUtils.setField(prober, "degradedFactor", 0.3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        healthyServer.stop(0);
+        failingServer.stop(0);
+    }
+
+    private static DownloadRoute route(Long id, int port) {
+        DownloadRoute route = new DownloadRoute();
+        route.setId(id);
+        route.setDomain("127.0.0.1");
+        route.setProtocol(DownloadRoute.Protocol.HTTP);
+        route.setPort(port);
+        route.setWeight(10);
+        return route;
+    }
+
+    @Test
+    void failing_route_degrades_then_goes_down_and_is_skipped() {
+        prober.probeAll();
+        assertEquals(RouteHealth.State.HEALTHY, prober.getState(1L));
+        assertEquals(RouteHealth.State.DEGRADED, prober.getState(2L));
+        assertEquals(0.3, routeRegistry.snapshot().health(1));
+
+        prober.probeAll();
+        prober.probeAll();
+        assertEquals(RouteHealth.State.DOWN, prober.getState(2L));
+
+        RouteRegistry.Snapshot snapshot = routeRegistry.snapshot();
+        assertEquals(0.0, snapshot.health(1));
+        assertEquals(50.0, snapshot.totalScore());
+        assertEquals(10, snapshot.totalWeight());
+        assertEquals(0, snapshot.bestIndex());
+    }
+
+    @Test
+    void all_routes_down_ignores_health() {
+        RouteRegistry.Snapshot snapshot = new RouteRegistry.Snapshot(
+                new DownloadRoute[]{route(1L, 1), route(2L, 2)}, new double[]{50, 50}, Map.of(1L, 0.0, 2L, 0.0));
+        assertEquals(100.0, snapshot.totalScore());
+        assertEquals(20, snapshot.totalWeight());
+    }
+
+    @Test
+    void down_route_recovers_after_consecutive_good_probes() {
+        RouteHealth health = new RouteHealth(1L);
+        for (int i = 0; i < 3; i++) {
+            health.record(RouteHealth.Outcome.FAILED, -1, -1, "timeout", 3, 2);
+        }
+        assertEquals(RouteHealth.State.DOWN, health.getState());
+
+        health.record(RouteHealth.Outcome.SLOW, 1500, 0.5, null, 3, 2);
+        assertEquals(RouteHealth.State.DOWN, health.getState());
+        health.record(RouteHealth.Outcome.SLOW, 1500, 0.5, null, 3, 2);
+        assertEquals(RouteHealth.State.DEGRADED, health.getState());
+        health.record(RouteHealth.Outcome.GOOD, 20, 50, null, 3, 2);
+        health.record(RouteHealth.Outcome.GOOD, 20, 50, null, 3, 2);
+        assertEquals(RouteHealth.State.HEALTHY, health.getState());
+    }
+}
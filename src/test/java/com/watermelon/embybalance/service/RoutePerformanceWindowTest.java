@@ -0,0 +1,102 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.RouteStatisticsMinute;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 线路性能滑动窗口：分钟桶累加、过期桶复用、启动加载去重和分钟聚合的合并
+ */
+class RoutePerformanceWindowTest {
+
+    private RoutePerformanceWindow window;
+
+    @BeforeEach
+    void setUp() {
+        window = new RoutePerformanceWindow(null, null);
+        // 模拟启动加载已完成，数据库中最大ID为100
+        ReflectionTestUtils.setField(window, "loaded", true);
+        ReflectionTestUtils.setField(window, "loadedMaxId", 100L);
+    }
+
+    @Test
+    void window_sums_means_and_success_rate() {
+        LocalDateTime now = LocalDateTime.now();
+        window.record(101L, 1L, now, 4.0, 200, true);
+        window.record(102L, 1L, now.minusMinutes(10), 2.0, 400, true);
+        window.record(103L, 1L, now.minusMinutes(30), 0.0, 3000, false);
+        window.record(104L, 2L, now, 8.0, 100, true);
+
+        RoutePerformanceWindow.Window route1 = window.window(1L, 24 * 60);
+        assertEquals(3, route1.requests());
+        assertEquals(2.0, route1.avgBandwidth(), 1e-9);
+        assertEquals(1200.0, route1.avgResponseTime(), 1e-9);
+        assertEquals(3.0, route1.avgSuccessBandwidth(), 1e-9);
+        assertEquals(300.0, route1.avgSuccessResponseTime(), 1e-9);
+        assertEquals(200.0 / 3, route1.successRate(), 1e-9);
+
+        // 最近15分钟不包含30分钟前的失败记录
+        assertEquals(100.0, window.window(1L, 15).successRate(), 1e-9);
+        Map<Long, RoutePerformanceWindow.Window> all = window.windows(24 * 60);
+        assertEquals(2, all.size());
+        assertEquals(1, all.get(2L).requests());
+    }
+
+    @Test
+    void expired_buckets_are_excluded_and_reused() {
+        LocalDateTime now = LocalDateTime.now();
+        window.record(101L, 1L, now.minusHours(25), 1.0, 100, true);
+        assertEquals(0, window.window(1L, 24 * 60).requests());
+        assertTrue(window.windows(24 * 60).isEmpty());
+
+        // 相差24小时的分钟落在同一个桶，复用时清零
+        window.record(102L, 1L, now.minusHours(1), 5.0, 100, true);
+        assertEquals(1, window.window(1L, 24 * 60).requests());
+        assertEquals(5.0, window.window(1L, 24 * 60).avgBandwidth(), 1e-9);
+        // 比桶中数据更旧的记录丢弃
+        window.record(103L, 1L, now.minusHours(25), 1.0, 100, false);
+        assertEquals(100.0, window.window(1L, 24 * 60).successRate(), 1e-9);
+    }
+
+    @Test
+    void records_already_loaded_from_database_are_skipped() {
+        LocalDateTime now = LocalDateTime.now();
+        window.record(99L, 1L, now, 1.0, 100, true);
+        window.record(100L, 1L, now, 1.0, 100, true);
+        window.record(null, null, now, 1.0, 100, true);
+        assertEquals(0, window.window(1L, 60).requests());
+        window.record(101L, 1L, now, 1.0, 100, true);
+        assertEquals(1, window.window(1L, 60).requests());
+    }
+
+    @Test
+    void minute_rollup_adds_up_like_individual_records() {
+        RouteStatisticsMinute first = new RouteStatisticsMinute();
+        first.add(10 * 1024 * 1024, 2000, 5.0, 300, true);
+        first.add(0, 0, 0.0, 5000, false);
+        RouteStatisticsMinute second = new RouteStatisticsMinute();
+        second.add(4 * 1024 * 1024, 1000, 4.0, 100, true);
+        first.merge(second);
+
+        assertEquals(3, first.getRequestCount());
+        assertEquals(2, first.getSuccessCount());
+        assertEquals(100, first.getMinResponseTime());
+        assertEquals(5000, first.getMaxResponseTime());
+        assertEquals(5.0, first.getMaxBandwidth(), 1e-9);
+
+        long now = System.currentTimeMillis();
+        window.add(1L, now, first.getRequestCount(), first.getSuccessCount(), first.getBandwidthSum(),
+                first.getResponseTimeSum(), first.getSuccessBandwidthSum(), first.getSuccessResponseTimeSum());
+        window.record(101L, 1L, LocalDateTime.now(), 3.0, 200, true);
+        RoutePerformanceWindow.Window route1 = window.window(1L, 60);
+        assertEquals(4, route1.requests());
+        assertEquals(4.0, route1.avgSuccessBandwidth(), 1e-9);
+        assertEquals(75.0, route1.successRate(), 1e-9);
+    }
+}
@@ -0,0 +1,155 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadRoute;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 线路选择模拟：每个下载节点有一个LRU磁盘缓存，按Zipf分布请求媒体文件，
+ * 对比按权重随机选择和按媒体路径Rendezvous哈希选择的缓存命中率；另含两次随机选择和进行中下载计数的用例
+ */
+class RouteSelectionSimulationTest {
+
+    private static final int FILES = 5000;
+    private static final int REQUESTS = 100_000;
+    private static final int CACHE_FILES_PER_NODE = 300;
+
+    private static DownloadRoute route(long id, int weight) {
+        DownloadRoute route = new DownloadRoute();
+        route.setId(id);
+        route.setDomain("node" + id + ".example.com");
+        route.setProtocol(DownloadRoute.Protocol.HTTP);
+        route.setPort(8080);
+        route.setWeight(weight);
+        return route;
+    }
+
+    private static RouteRegistry.Snapshot snapshot(DownloadRoute... routes) {
+        double[] scores = new double[routes.length];
+        Arrays.fill(scores, 1.0);
+        return new RouteRegistry.Snapshot(routes, scores, Map.of());
+    }
+
+    private static String path(int file) {
+        return "/media/movies/" + file + "/movie.mkv";
+    }
+
+    /**
+     * 按给定选择器回放同一个Zipf请求序列，返回总体缓存命中率
+     */
+    private static double simulate(RouteRegistry.Snapshot snapshot, IntUnaryOperator selector) {
+        double[] cumulative = new double[FILES];
+        double sum = 0;
+        for (int i = 0; i < FILES; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+
+        Random random = new Random(42);
+        @SuppressWarnings("unchecked")
+        LinkedHashMap<Integer, Boolean>[] caches = new LinkedHashMap[snapshot.size()];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                    return size() > CACHE_FILES_PER_NODE;
+                }
+            };
+        }
+
+        int hits = 0;
+        for (int r = 0; r < REQUESTS; r++) {
+            int file = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            file = file >= 0 ? file : -file - 1;
+            LinkedHashMap<Integer, Boolean> cache = caches[selector.applyAsInt(file)];
+            if (cache.get(file) != null) {
+                hits++;
+            } else {
+                cache.put(file, Boolean.TRUE);
+            }
+        }
+        return (double) hits / REQUESTS;
+    }
+
+    @Test
+    void rendezvous_improves_node_cache_hit_ratio_over_random() {
+        RouteRegistry.Snapshot snapshot = snapshot(route(1, 10), route(2, 10), route(3, 20), route(4, 10), route(5, 10));
+        Random selection = new Random(7);
+
+        double randomHitRatio = simulate(snapshot, file -> snapshot.indexByWeight(selection.nextInt(snapshot.totalWeight())));
+        double rendezvousHitRatio = simulate(snapshot, file -> snapshot.indexByRendezvous(path(file)));
+
+        assertTrue(rendezvousHitRatio > randomHitRatio + 0.1,
+                String.format("节点缓存命中率: 随机=%.3f, Rendezvous=%.3f", randomHitRatio, rendezvousHitRatio));
+    }
+
+    @Test
+    void rendezvous_spreads_by_weight_and_moves_only_removed_route_files() {
+        DownloadRoute[] routes = {route(1, 10), route(2, 10), route(3, 20), route(4, 10)};
+        RouteRegistry.Snapshot before = snapshot(routes);
+        RouteRegistry.Snapshot after = snapshot(routes[0], routes[1], routes[2]);
+
+        int[] counts = new int[routes.length];
+        for (int file = 0; file < FILES; file++) {
+            Long owner = before.route(before.indexByRendezvous(path(file))).getId();
+            counts[owner.intValue() - 1]++;
+            Long newOwner = after.route(after.indexByRendezvous(path(file))).getId();
+            if (owner != 4L) {
+                assertEquals(owner, newOwner, "未被删除线路上的文件不应迁移");
+            }
+        }
+        // 权重20的线路约分到40%的文件
+        assertEquals(0.4, (double) counts[2] / FILES, 0.05);
+        assertEquals(0.2, (double) counts[0] / FILES, 0.05);
+    }
+
+    @Test
+    void rendezvous_skips_down_routes() {
+        DownloadRoute[] routes = {route(1, 10), route(2, 10)};
+        RouteRegistry.Snapshot snapshot = new RouteRegistry.Snapshot(routes, new double[]{1, 1}, Map.of(2L, 0.0));
+        for (int file = 0; file < 100; file++) {
+            assertEquals(0, snapshot.indexByRendezvous(path(file)));
+        }
+    }
+
+    @Test
+    void two_choices_prefers_less_loaded_route_scaled_by_capacity() {
+        DownloadRoute[] routes = {route(1, 10), route(2, 10)};
+        RouteRegistry.Snapshot snapshot = new RouteRegistry.Snapshot(routes, new double[]{80, 20}, Map.of());
+        // 线路1容量是线路2的4倍：(6+1)/80 < (1+1)/20，进行中下载更多仍选线路1
+        Map<Long, Double> lighter = Map.of(1L, 6.0, 2L, 1.0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, snapshot.indexByTwoChoices(route -> lighter.get(route.getId())));
+        }
+        Map<Long, Double> busier = Map.of(1L, 9.0, 2L, 1.0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, snapshot.indexByTwoChoices(route -> busier.get(route.getId())));
+        }
+    }
+
+    @Test
+    void load_tracker_counts_issued_and_completed_downloads_and_decays() {
+        RouteLoadTracker tracker = new RouteLoadTracker();
+        ReflectionTestUtils.setField(tracker, "halfLifeMs", 1000L);
+        ReflectionTestUtils.setField(tracker, "decayIntervalMs", 1000L);
+        tracker.onIssued(1L);
+        tracker.onIssued(1L);
+        tracker.onIssued(1L);
+        tracker.onCompleted(1L);
+        assertEquals(2.0, tracker.inFlight(1L));
+
+        tracker.decay();
+        assertEquals(1.0, tracker.inFlight(1L));
+        tracker.onCompleted(1L);
+        tracker.onCompleted(1L);
+        assertEquals(0.0, tracker.inFlight(1L));
+    }
+}
@@ -0,0 +1,85 @@
+package com.watermelon.embybalance.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallsShareOneExecution() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> flight.execute("key", () -> {
+                    calls.incrementAndGet();
+                    release.await();
+                    return "value";
+                }, Duration.ofSeconds(5))));
+            }
+            // 等待所有调用都已加入后再放行执行者
+            while ((long) flight.getStatistics().get("coalesced") < 7) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("value", result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(1L, flight.getStatistics().get("executed"));
+        assertEquals(0, flight.getStatistics().get("inFlight"));
+    }
+
+    @Test
+    void testFollowerTimeout() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> {
+            try {
+                flight.execute("key", () -> {
+                    started.countDown();
+                    release.await();
+                    return "value";
+                }, Duration.ofSeconds(5));
+            } catch (Exception ignored) {
+            }
+        });
+        leader.start();
+        started.await();
+
+        assertThrows(TimeoutException.class,
+                () -> flight.execute("key", () -> "other", Duration.ofMillis(50)));
+        assertEquals(1L, flight.getStatistics().get("timeouts"));
+
+        release.countDown();
+        leader.join();
+    }
+
+    @Test
+    void testFailureIsSharedAndNotCached() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+
+        assertThrows(IllegalStateException.class,
+                () -> flight.execute("key", () -> { throw new IllegalStateException("boom"); }, Duration.ofSeconds(1)));
+        assertEquals("value", flight.execute("key", () -> "value", Duration.ofSeconds(1)));
+    }
+}
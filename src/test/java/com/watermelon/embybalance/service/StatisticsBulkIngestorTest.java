@@ -0,0 +1,142 @@
+package com.watermelon.embybalance.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.watermelon.embybalance.entity.DownloadRoute;
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * NDJSON批量导入：gzip识别、逐行解析、拒绝行报告和请求体损坏
+ * 写入队列替换为内存列表
+ */
+class StatisticsBulkIngestorTest {
+
+    private final List<DownloadStatistics> submitted = new ArrayList<>();
+    private StatisticsBulkIngestor ingestor;
+
+    @BeforeEach
+    void setUp() {
+        DownloadStatisticsService service = new DownloadStatisticsService(null, null, null, null, null, null) {
+            @Override
+            public boolean importDownloadStatistics(DownloadStatistics statistics) {
+                submitted.add(statistics);
+                return true;
+            }
+        };
+        ingestor = new StatisticsBulkIngestor(service, new ObjectMapper());
+        ReflectionTestUtils.setField(ingestor, "maxLineBytes", 256);
+        ReflectionTestUtils.setField(ingestor, "maxReportedRejects", 2);
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void parses_gzip_ndjson_and_reports_rejected_lines() throws IOException {
+        String body = "{\"routeId\":1,\"clientIp\":\"10.0.0.1\",\"downloadSize\":2048,\"downloadDuration\":1000,"
+                + "\"responseTime\":80,\"success\":true,\"extra\":{\"nested\":[1,2]}}\n"
+                + "\r\n"
+                + "{\"routeId\":\"2\",\"success\":\"true\",\"timestamp\":\"2026-01-02T03:04:05\"}\r\n"
+                + "not json\n"
+                + "{\"clientIp\":\"10.0.0.2\"}\n"
+                + "{\"routeId\":3," + "\"filePath\":\"" + "x".repeat(300) + "\"}\n"
+                + "{\"routeId\":4}";
+        StatisticsBulkIngestor.Result result = ingestor.ingest(new ByteArrayInputStream(gzip(body)), "192.168.1.1");
+
+        Map<String, Object> report = result.toMap();
+        assertEquals(6L, report.get("lines"));
+        assertEquals(3L, result.getAccepted());
+        assertEquals(3L, result.getRejected());
+        // 只列出前两条拒绝，行号包含空行
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> rejects = (List<Map<String, Object>>) report.get("rejects");
+        assertEquals(2, rejects.size());
+        assertEquals(4L, rejects.get(0).get("line"));
+        assertEquals(5L, rejects.get(1).get("line"));
+        assertEquals("缺少routeId", rejects.get(1).get("error"));
+        assertEquals(true, report.get("rejectsTruncated"));
+
+        assertEquals(2048L, submitted.get(0).getDownloadSize().longValue());
+        assertTrue(submitted.get(0).getSuccess());
+        assertEquals("192.168.1.1", submitted.get(1).getClientIp());
+        assertEquals(2026, submitted.get(1).getCreatedAt().getYear());
+        assertEquals(4L, submitted.get(2).getRouteId().longValue());
+        assertNull(result.getError());
+    }
+
+    @Test
+    void truncated_gzip_keeps_lines_before_the_error() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("{\"routeId\":1,\"downloadSize\":").append(i).append("}\n");
+        }
+        byte[] compressed = gzip(body.toString());
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 20);
+
+        StatisticsBulkIngestor.Result result = ingestor.ingest(new ByteArrayInputStream(truncated), "10.0.0.1");
+        assertNotNull(result.getError());
+        assertEquals(result.getAccepted(), submitted.size());
+        assertTrue(result.getAccepted() > 0);
+    }
+
+    @Test
+    void bulk_ingest_leaves_live_load_and_leases_alone() throws IOException {
+        RouteLoadTracker loadTracker = new RouteLoadTracker();
+        RouteAdmissionController admissionController = new RouteAdmissionController();
+        ReflectionTestUtils.setField(admissionController, "defaultStreamMbps", 20);
+        StatisticsIngestPipeline pipeline = new StatisticsIngestPipeline(null, null, null, null) {
+            @Override
+            public boolean submit(DownloadStatistics statistics) {
+                submitted.add(statistics);
+                return true;
+            }
+
+            @Override
+            public boolean submitAndWait(DownloadStatistics statistics) {
+                return submit(statistics);
+            }
+        };
+        DownloadStatisticsService service = new DownloadStatisticsService(null, loadTracker, admissionController, null, null, pipeline);
+        StatisticsBulkIngestor bulkIngestor = new StatisticsBulkIngestor(service, new ObjectMapper());
+        ReflectionTestUtils.setField(bulkIngestor, "maxLineBytes", 256);
+        ReflectionTestUtils.setField(bulkIngestor, "maxReportedRejects", 2);
+
+        // 线路1上有一个正在播放的下载
+        DownloadRoute route = new DownloadRoute();
+        route.setId(1L);
+        route.setMaxConcurrentStreams(1);
+        loadTracker.onIssued(1L);
+        long leaseId = admissionController.tryAdmit(route, null).orElseThrow();
+
+        String body = "{\"routeId\":1,\"timestamp\":\"2026-01-02T03:04:05\"}\n{\"routeId\":1}\n";
+        StatisticsBulkIngestor.Result result = bulkIngestor.ingest(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), "10.0.0.1");
+
+        assertEquals(2L, result.getAccepted());
+        assertEquals(1.0, loadTracker.inFlight(1L));
+        assertFalse(admissionController.hasCapacity(route, null));
+
+        // 单条上报代表刚结束的下载，释放进行中计数和租约
+        service.recordDownloadStatistics(1L, "10.0.0.1", "/a.mkv", 1L, 1L, 1L, true, null, leaseId);
+        assertEquals(0.0, loadTracker.inFlight(1L));
+        assertTrue(admissionController.hasCapacity(route, null));
+    }
+}
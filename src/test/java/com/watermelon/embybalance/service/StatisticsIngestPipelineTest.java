@@ -0,0 +1,186 @@
+package com.watermelon.embybalance.service;
+
+import com.watermelon.embybalance.entity.DownloadStatistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 下载统计写入队列：按批量和时间刷新、溢出策略和写入失败重试，多行INSERT的生成键
+ * 队列测试中数据库写入替换为内存记录，ID按顺序分配
+ */
+class StatisticsIngestPipelineTest {
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private RoutePerformanceWindow window;
+    private StatisticsIngestPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        window = new RoutePerformanceWindow(null, null);
+        ReflectionTestUtils.setField(window, "loaded", true);
+        ReflectionTestUtils.setField(window, "loadedMaxId", 0L);
+        pipeline = new StatisticsIngestPipeline(null, null, null, window) {
+            @Override
+            void insertBatch(List<DownloadStatistics> batch) {
+                if (failuresLeft.getAndDecrement() > 0) {
+                    throw new IllegalStateException("database is locked");
+                }
+                batch.forEach(statistics -> statistics.setId(nextId.getAndIncrement()));
+                batchSizes.add(batch.size());
+            }
+        };
+        ReflectionTestUtils.setField(pipeline, "queueCapacity", 100);
+        ReflectionTestUtils.setField(pipeline, "batchSize", 10);
+        ReflectionTestUtils.setField(pipeline, "flushIntervalMs", 50L);
+        ReflectionTestUtils.setField(pipeline, "overflowPolicy", "block");
+        ReflectionTestUtils.setField(pipeline, "blockTimeoutMs", 100L);
+        ReflectionTestUtils.setField(pipeline, "sampleThreshold", 0.5);
+        ReflectionTestUtils.setField(pipeline, "sampleRate", 0.0);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        pipeline.shutdown();
+    }
+
+    private static DownloadStatistics statistics(long routeId) {
+        DownloadStatistics statistics = new DownloadStatistics();
+        statistics.setRouteId(routeId);
+        statistics.setClientIp("10.0.0.1");
+        statistics.setDownloadSize(1024L * 1024);
+        statistics.setDownloadDuration(500L);
+        statistics.setResponseTime(100L);
+        statistics.setSuccess(true);
+        statistics.setCreatedAt(LocalDateTime.now());
+        statistics.calculateBandwidth();
+        return statistics;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), "等待超时");
+    }
+
+    @Test
+    void flushes_full_batches_and_remainder_after_interval() throws InterruptedException {
+        pipeline.start();
+        for (int i = 0; i < 25; i++) {
+            assertTrue(pipeline.submit(statistics(1)));
+        }
+        await(() -> batchSizes.stream().mapToInt(Integer::intValue).sum() == 25);
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 10));
+        assertEquals(0, pipeline.depth());
+        // 写入后计入内存性能窗口
+        await(() -> window.window(1L, 60).requests() == 25);
+        assertEquals(25L, pipeline.getStatistics().get("written"));
+    }
+
+    @Test
+    void drop_policy_rejects_when_full() {
+        ReflectionTestUtils.setField(pipeline, "policy", StatisticsIngestPipeline.OverflowPolicy.DROP);
+        ReflectionTestUtils.setField(pipeline, "queueCapacity", 5);
+        int accepted = 0;
+        for (int i = 0; i < 8; i++) {
+            accepted += pipeline.submit(statistics(1)) ? 1 : 0;
+        }
+        assertEquals(5, accepted);
+        assertEquals(3L, pipeline.getStatistics().get("dropped"));
+    }
+
+    @Test
+    void sample_policy_thins_out_above_threshold() {
+        ReflectionTestUtils.setField(pipeline, "policy", StatisticsIngestPipeline.OverflowPolicy.SAMPLE);
+        for (int i = 0; i < 80; i++) {
+            pipeline.submit(statistics(1));
+        }
+        // 深度达到容量的一半后抽样率为0，不再接收
+        assertEquals(50, pipeline.depth());
+        assertEquals(30L, pipeline.getStatistics().get("sampledOut"));
+    }
+
+    @Test
+    void block_policy_waits_for_writer_then_times_out() {
+        ReflectionTestUtils.setField(pipeline, "policy", StatisticsIngestPipeline.OverflowPolicy.BLOCK);
+        ReflectionTestUtils.setField(pipeline, "queueCapacity", 2);
+        assertTrue(pipeline.submit(statistics(1)));
+        assertTrue(pipeline.submit(statistics(1)));
+        long startedAt = System.currentTimeMillis();
+        // 没有写线程腾出空位，等待block-timeout-ms后丢弃
+        assertFalse(pipeline.submit(statistics(1)));
+        assertTrue(System.currentTimeMillis() - startedAt >= 100);
+        assertEquals(1L, pipeline.getStatistics().get("blocked"));
+
+        pipeline.start();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(pipeline.submit(statistics(1)));
+        }
+    }
+
+    @Test
+    void failed_insert_is_retried() throws InterruptedException {
+        failuresLeft.set(1);
+        pipeline.start();
+        pipeline.submit(statistics(2));
+        await(() -> window.window(2L, 60).requests() == 1);
+        assertEquals(0L, pipeline.getStatistics().get("failed"));
+    }
+
+    @Test
+    void multi_row_insert_reads_ids_from_generated_keys() {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource("jdbc:sqlite::memory:", true);
+        try {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            jdbcTemplate.execute("CREATE TABLE download_statistics (id INTEGER PRIMARY KEY AUTOINCREMENT, route_id INTEGER, "
+                    + "client_ip TEXT, file_path TEXT, download_size INTEGER, download_duration INTEGER, bandwidth REAL, "
+                    + "response_time INTEGER, success BOOLEAN, user_agent TEXT, created_at TIMESTAMP)");
+            jdbcTemplate.update("INSERT INTO download_statistics (id, route_id) VALUES (41, 9)");
+            List<DownloadStatistics> batch = new ArrayList<>();
+            for (int i = 0; i < 1203; i++) {
+                DownloadStatistics row = statistics(1);
+                row.setFilePath("file-" + i);
+                batch.add(row);
+            }
+
+            StatisticsIngestPipeline.insertRows(jdbcTemplate, batch);
+
+            for (DownloadStatistics row : List.of(batch.get(0), batch.get(499), batch.get(500), batch.get(1202))) {
+                assertEquals(row.getFilePath(), jdbcTemplate.queryForObject(
+                        "SELECT file_path FROM download_statistics WHERE id = ?", String.class, row.getId()));
+            }
+            assertEquals(42L, batch.get(0).getId().longValue());
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    void uses_one_generated_key_per_row_when_the_driver_returns_them() {
+        // MySQL驱动为多行INSERT的每一行返回GENERATED_KEY，auto_increment_increment不为1时ID不连续
+        List<DownloadStatistics> rows = List.of(statistics(1), statistics(1), statistics(1));
+        StatisticsIngestPipeline.assignIds(rows, List.of(
+                Map.of("GENERATED_KEY", 11L), Map.of("GENERATED_KEY", 13L), Map.of("GENERATED_KEY", 15L)));
+        assertEquals(List.of(11L, 13L, 15L), rows.stream().map(DownloadStatistics::getId).toList());
+
+        assertThrows(IllegalStateException.class, () -> StatisticsIngestPipeline.assignIds(rows, List.of()));
+    }
+}
@@ -0,0 +1,121 @@
+package com.watermelon.embybalance.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 过期统计清理：分块删除、只删除已聚合的记录、删除前归档
+ * 使用内存SQLite数据库，聚合断点固定
+ */
+class StatisticsRetentionServiceTest {
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private Path directory;
+    private StatisticsRetentionService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dataSource = new SingleConnectionDataSource("jdbc:sqlite::memory:", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE download_statistics (id INTEGER PRIMARY KEY AUTOINCREMENT, route_id INTEGER, "
+                + "client_ip TEXT, file_path TEXT, download_size INTEGER, download_duration INTEGER, bandwidth REAL, "
+                + "response_time INTEGER, success BOOLEAN, user_agent TEXT, created_at TIMESTAMP)");
+        directory = Files.createTempDirectory("statistics-retention");
+
+        RouteStatisticsRollupService rollup = new RouteStatisticsRollupService(null, null, null, null, null, null) {
+            @Override
+            long checkpoint() {
+                return 30;
+            }
+        };
+        service = new StatisticsRetentionService(jdbcTemplate,
+                new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+                new ConcurrencyLimiter("sqlite", 1, 1000), rollup);
+        ReflectionTestUtils.setField(service, "retentionDays", 30);
+        ReflectionTestUtils.setField(service, "chunkSize", 4);
+        ReflectionTestUtils.setField(service, "chunkPauseMs", 0L);
+        ReflectionTestUtils.setField(service, "archiveEnabled", true);
+        ReflectionTestUtils.setField(service, "archiveDirectory", directory.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        dataSource.destroy();
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private void insert(int count, LocalDateTime createdAt) {
+        for (int i = 0; i < count; i++) {
+            jdbcTemplate.update("INSERT INTO download_statistics (route_id, client_ip, file_path, download_size, "
+                            + "download_duration, bandwidth, response_time, success, user_agent, created_at) "
+                            + "VALUES (1, '10.0.0.1', ?, 1048576, 1000, 1.0, 20, 1, 'VLC', ?)",
+                    "file-" + i, Timestamp.valueOf(createdAt));
+        }
+    }
+
+    @Test
+    void deletes_compacted_rows_in_chunks_after_archiving() throws Exception {
+        LocalDateTime expired = LocalDateTime.now().minusDays(40);
+        insert(13, expired);
+        insert(4, LocalDateTime.now().minusDays(1));
+        insert(13, expired);
+        // 聚合断点之后回填的过期记录
+        insert(5, expired);
+
+        Map<String, Object> run = service.cleanup();
+
+        assertEquals(26L, run.get("deleted"));
+        assertEquals(7L, run.get("chunks"));
+        assertEquals(5L, run.get("pendingCompaction"));
+        List<Long> remaining = jdbcTemplate.queryForList("SELECT id FROM download_statistics ORDER BY id", Long.class);
+        assertEquals(List.of(14L, 15L, 16L, 17L, 31L, 32L, 33L, 34L, 35L), remaining);
+
+        Path archive = Path.of((String) run.get("archive"));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(archive)), StandardCharsets.UTF_8))) {
+            List<String> lines = reader.lines().toList();
+            assertEquals(26, lines.size());
+            assertTrue(lines.get(0).startsWith("{\"id\":1,\"routeId\":1,\"clientIp\":\"10.0.0.1\",\"filePath\":\"file-0\""));
+            assertTrue(lines.get(25).startsWith("{\"id\":30,"));
+            assertTrue(lines.get(25).contains("\"timestamp\":" + Timestamp.valueOf(expired).getTime()));
+        }
+
+        // 再次清理没有可删除的记录
+        assertEquals(0L, service.cleanup().get("deleted"));
+    }
+
+    @Test
+    void skips_when_retention_is_disabled() throws Exception {
+        insert(3, LocalDateTime.now().minusDays(400));
+        ReflectionTestUtils.setField(service, "retentionDays", 0);
+
+        assertNotNull(service.cleanup().get("skipped"));
+        assertEquals(3L, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM download_statistics", Long.class).longValue());
+    }
+}